@@ -534,6 +534,7 @@ def build_java_package_manifest(ctx, target, source_files, suffix):
         arguments = ["@" + argfile.path],
         mnemonic = "JavaPackageManifest",
         progress_message = "Parsing java package strings for " + str(target.label),
+        execution_requirements = {"supports-workers": "1"},
     )
     return output
 
@@ -566,13 +567,22 @@ def build_filtered_gen_jar(ctx, target, java, gen_java_sources, srcjars):
     if srcjars:
         for source_jar in srcjars:
             args += ["--keep_source_jar", source_jar.path]
+
+    # persistent workers require the arguments to be passed in a param file
+    argfile = ctx.new_file(
+        ctx.configuration.bin_dir,
+        target.label.name + "-filtered-gen.params",
+    )
+    ctx.actions.write(output = argfile, content = "\n".join(args))
+
     ctx.actions.run(
-        inputs = jar_artifacts + source_jar_artifacts + gen_java_sources + srcjars,
+        inputs = jar_artifacts + source_jar_artifacts + gen_java_sources + srcjars + [argfile],
         outputs = [filtered_jar, filtered_source_jar],
         executable = ctx.executable._jar_filter,
-        arguments = args,
+        arguments = ["@" + argfile.path],
         mnemonic = "JarFilter",
         progress_message = "Filtering generated code for " + str(target.label),
+        execution_requirements = {"supports-workers": "1"},
     )
     output_jar = struct(
         jar = artifact_location(filtered_jar),
@@ -24,21 +24,18 @@ import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
@@ -47,7 +44,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 import javax.annotation.Nullable;
 
 /** Filters a jar, keeping only the classes that are indicated. */
@@ -88,6 +84,10 @@ public final class JarFilter {
       Pattern.compile("^\\s*package\\s+([\\w\\.]+);");
 
   public static void main(String[] args) throws Exception {
+    if (PersistentWorker.isPersistentWorker(args)) {
+      PersistentWorker.run(workArgs -> main(parseArgs(workArgs)));
+      System.exit(0);
+    }
     JarFilterOptions options = parseArgs(args);
     try {
       main(options);
@@ -109,7 +109,7 @@ public final class JarFilter {
       options.filterSourceJars = ImmutableList.of();
     }
 
-    final List<String> archiveFileNamePrefixes = Lists.newArrayList();
+    final Set<String> archiveFileNamePrefixes = new HashSet<>();
     if (options.keepJavaFiles != null) {
       archiveFileNamePrefixes.addAll(parseJavaFiles(options.keepJavaFiles));
     }
@@ -143,14 +143,10 @@ public final class JarFilter {
 
   /** Finds the expected jar archive file name prefixes for the java files. */
   private static List<String> parseJavaFiles(List<Path> javaFiles) throws IOException {
-    ListeningExecutorService executorService =
-        MoreExecutors.listeningDecorator(
-            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
-
     List<ListenableFuture<String>> futures = Lists.newArrayList();
     for (final Path javaFile : javaFiles) {
       futures.add(
-          executorService.submit(
+          PersistentWorker.EXECUTOR.submit(
               () -> {
                 String packageString = getDeclaredPackageOfJavaFile(javaFile);
                 return packageString != null
@@ -241,55 +237,38 @@ public final class JarFilter {
     return packageString.replace('.', '/') + '/' + className;
   }
 
-  /** Filters a list of jars, keeping anything matching the passed predicate. */
+  /**
+   * Filters a list of jars, keeping anything matching the passed predicate. Kept entries are
+   * copied without recompressing them.
+   */
   private static void filterJars(List<Path> jars, Path output, Predicate<String> shouldKeep)
       throws IOException {
-    final int bufferSize = 8 * 1024;
-    byte[] buffer = new byte[bufferSize];
-
-    try (ZipOutputStream outputStream =
-        new ZipOutputStream(new FileOutputStream(output.toFile()))) {
+    try (RawZipWriter writer = new RawZipWriter(output)) {
       for (Path jar : jars) {
-        try (ZipFile sourceZipFile = new ZipFile(jar.toFile())) {
-          Enumeration<? extends ZipEntry> entries = sourceZipFile.entries();
-          while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-            if (!shouldKeep.test(entry.getName())) {
-              continue;
-            }
-
-            ZipEntry newEntry = new ZipEntry(entry.getName());
-            outputStream.putNextEntry(newEntry);
-            try (InputStream inputStream = sourceZipFile.getInputStream(entry)) {
-              int len;
-              while ((len = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, len);
-              }
-            }
-          }
-        }
+        writer.copyEntries(jar, shouldKeep);
       }
     }
   }
 
+  /**
+   * A class is kept if its name up to any '.' or '$' is one of the prefixes. Eg.:
+   * com/google/foo/Foo$Inner.class is kept for the prefix com/google/foo/Foo.
+   */
   @VisibleForTesting
-  static boolean shouldKeepClass(List<String> archiveFileNamePrefixes, String name) {
+  static boolean shouldKeepClass(Set<String> archiveFileNamePrefixes, String name) {
     if (!name.endsWith(".class")) {
       return false;
     }
-    for (String archiveFileNamePrefix : archiveFileNamePrefixes) {
-      if (name.startsWith(archiveFileNamePrefix)
-          && name.length() > archiveFileNamePrefix.length()) {
-        char c = name.charAt(archiveFileNamePrefix.length());
-        if (c == '.' || c == '$') {
-          return true;
-        }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c == '.' || c == '$') && archiveFileNamePrefixes.contains(name.substring(0, i))) {
+        return true;
       }
     }
     return false;
   }
 
-  private static boolean shouldKeepJavaFile(List<String> archiveFileNamePrefixes, String name) {
+  private static boolean shouldKeepJavaFile(Set<String> archiveFileNamePrefixes, String name) {
     if (!name.endsWith(".java")) {
       return false;
     }
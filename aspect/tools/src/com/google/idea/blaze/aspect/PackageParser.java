@@ -20,8 +20,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.intellij.aspect.Common.ArtifactLocation;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.JavaSourcePackage;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.PackageManifest;
@@ -35,7 +33,6 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -69,13 +66,13 @@ public class PackageParser {
   private static final Pattern PACKAGE_PATTERN = Pattern.compile("^\\s*package\\s+([\\w\\.]+)");
 
   public static void main(String[] args) throws Exception {
+    if (PersistentWorker.isPersistentWorker(args)) {
+      PersistentWorker.run(workArgs -> main(parseArgs(workArgs)));
+      System.exit(0);
+    }
     PackageParserOptions options = parseArgs(args);
-    Preconditions.checkNotNull(options.outputManifest);
-
     try {
-      PackageParser parser = new PackageParser(PackageParserIoProvider.INSTANCE);
-      Map<ArtifactLocation, String> outputMap = parser.parsePackageStrings(options.sources);
-      parser.writeManifest(outputMap, options.outputManifest);
+      main(options);
     } catch (Throwable e) {
       logger.log(Level.SEVERE, "Error parsing package strings", e);
       System.exit(1);
@@ -83,6 +80,13 @@ public class PackageParser {
     System.exit(0);
   }
 
+  private static void main(PackageParserOptions options) throws Exception {
+    Preconditions.checkNotNull(options.outputManifest);
+    PackageParser parser = new PackageParser(PackageParserIoProvider.INSTANCE);
+    Map<ArtifactLocation, String> outputMap = parser.parsePackageStrings(options.sources);
+    parser.writeManifest(outputMap, options.outputManifest);
+  }
+
   private static Path getExecutionPath(ArtifactLocation location) {
     return Paths.get(location.getRootExecutionPathFragment(), location.getRelativePath());
   }
@@ -129,14 +133,10 @@ public class PackageParser {
   @VisibleForTesting
   Map<ArtifactLocation, String> parsePackageStrings(List<ArtifactLocation> sources)
       throws Exception {
-
-    ListeningExecutorService executorService =
-        MoreExecutors.listeningDecorator(
-            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
-
     Map<ArtifactLocation, ListenableFuture<String>> futures = Maps.newHashMap();
     for (final ArtifactLocation source : sources) {
-      futures.put(source, executorService.submit(() -> getDeclaredPackageOfJavaFile(source)));
+      futures.put(
+          source, PersistentWorker.EXECUTOR.submit(() -> getDeclaredPackageOfJavaFile(source)));
     }
     Map<ArtifactLocation, String> map = Maps.newHashMap();
     for (Entry<ArtifactLocation, ListenableFuture<String>> entry : futures.entrySet()) {
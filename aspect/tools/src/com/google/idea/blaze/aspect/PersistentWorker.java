@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.aspect;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.repackaged.CodedInputStream;
+import com.google.protobuf.repackaged.CodedOutputStream;
+import com.google.protobuf.repackaged.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+
+/**
+ * Runs a tool as a Bazel persistent worker, so a single JVM handles many actions. Used by {@link
+ * JarFilter} and {@link PackageParser}.
+ *
+ * <p>Bazel sends length-delimited WorkRequest protos on stdin, and expects a WorkResponse proto on
+ * stdout for each. These are encoded by hand, as the worker protocol protos aren't among the
+ * checked-in proto deps. Only the fields used here are read:
+ *
+ * <pre>
+ * message WorkRequest {
+ *   repeated string arguments = 1;
+ *   int32 request_id = 3;
+ * }
+ * message WorkResponse {
+ *   int32 exit_code = 1;
+ *   string output = 2;
+ *   int32 request_id = 3;
+ * }
+ * </pre>
+ */
+final class PersistentWorker {
+
+  static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+  private static final int ARGUMENTS_FIELD = 1;
+  private static final int EXIT_CODE_FIELD = 1;
+  private static final int OUTPUT_FIELD = 2;
+  private static final int REQUEST_ID_FIELD = 3;
+
+  /**
+   * A pool for parallelizing work within an action. Daemon threads, so it outlives individual
+   * requests without keeping a non-worker JVM alive.
+   */
+  static final ListeningExecutorService EXECUTOR =
+      MoreExecutors.listeningDecorator(
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder().setDaemon(true).build()));
+
+  /** Runs a single action with the given arguments. */
+  interface Action {
+    void run(String[] args) throws Exception;
+  }
+
+  private PersistentWorker() {}
+
+  /** Returns whether the tool was started as a persistent worker. */
+  static boolean isPersistentWorker(String[] args) {
+    return Arrays.asList(args).contains(PERSISTENT_WORKER_FLAG);
+  }
+
+  /**
+   * Handles work requests from stdin until it's closed. Anything else written to stdout while
+   * running an action is redirected to stderr, so it doesn't corrupt the responses.
+   */
+  static void run(Action action) throws IOException {
+    PrintStream stdout = System.out;
+    System.setOut(System.err);
+    try {
+      run(System.in, stdout, action);
+    } finally {
+      System.setOut(stdout);
+    }
+  }
+
+  @VisibleForTesting
+  static void run(InputStream in, OutputStream out, Action action) throws IOException {
+    WorkRequest request;
+    while ((request = WorkRequest.read(in)) != null) {
+      int exitCode = 0;
+      String output = "";
+      try {
+        action.run(request.arguments.toArray(new String[0]));
+      } catch (Throwable e) {
+        exitCode = 1;
+        StringWriter stackTrace = new StringWriter();
+        e.printStackTrace(new PrintWriter(stackTrace));
+        output = stackTrace.toString();
+      }
+      writeResponse(out, request.requestId, exitCode, output);
+    }
+  }
+
+  @VisibleForTesting
+  static final class WorkRequest {
+    final ImmutableList<String> arguments;
+    final int requestId;
+
+    WorkRequest(List<String> arguments, int requestId) {
+      this.arguments = ImmutableList.copyOf(arguments);
+      this.requestId = requestId;
+    }
+
+    /** Reads the next length-delimited request, or returns null at the end of the stream. */
+    @Nullable
+    static WorkRequest read(InputStream in) throws IOException {
+      int firstByte = in.read();
+      if (firstByte == -1) {
+        return null;
+      }
+      int size = CodedInputStream.readRawVarint32(firstByte, in);
+      byte[] bytes = new byte[size];
+      int offset = 0;
+      while (offset < size) {
+        int read = in.read(bytes, offset, size - offset);
+        if (read == -1) {
+          throw new IOException("Unexpected end of work request");
+        }
+        offset += read;
+      }
+      CodedInputStream input = CodedInputStream.newInstance(bytes);
+      ImmutableList.Builder<String> arguments = ImmutableList.builder();
+      int requestId = 0;
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case ARGUMENTS_FIELD:
+            arguments.add(input.readString());
+            break;
+          case REQUEST_ID_FIELD:
+            requestId = input.readInt32();
+            break;
+          default:
+            input.skipField(tag);
+        }
+      }
+      return new WorkRequest(arguments.build(), requestId);
+    }
+
+    /** Writes this request length-delimited, as Bazel would. */
+    @VisibleForTesting
+    void write(OutputStream out) throws IOException {
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      CodedOutputStream output = CodedOutputStream.newInstance(message);
+      for (String argument : arguments) {
+        output.writeString(ARGUMENTS_FIELD, argument);
+      }
+      if (requestId != 0) {
+        output.writeInt32(REQUEST_ID_FIELD, requestId);
+      }
+      output.flush();
+      writeDelimited(out, message.toByteArray());
+    }
+  }
+
+  private static void writeResponse(OutputStream out, int requestId, int exitCode, String output)
+      throws IOException {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    CodedOutputStream response = CodedOutputStream.newInstance(message);
+    if (exitCode != 0) {
+      response.writeInt32(EXIT_CODE_FIELD, exitCode);
+    }
+    if (!output.isEmpty()) {
+      response.writeString(OUTPUT_FIELD, output);
+    }
+    if (requestId != 0) {
+      response.writeInt32(REQUEST_ID_FIELD, requestId);
+    }
+    response.flush();
+    writeDelimited(out, message.toByteArray());
+  }
+
+  private static void writeDelimited(OutputStream out, byte[] message) throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    output.writeUInt32NoTag(message.length);
+    output.writeRawBytes(message);
+    output.flush();
+    out.flush();
+  }
+}
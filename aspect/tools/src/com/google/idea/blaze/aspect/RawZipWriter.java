@@ -0,0 +1,309 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.aspect;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes a zip file containing entries copied from other zip files, without decompressing and
+ * recompressing them. The compressed bytes, CRC and sizes of each entry are copied as-is.
+ *
+ * <p>Zip64 input files aren't parsed; their entries are recompressed instead.
+ */
+final class RawZipWriter implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int ZIP64_MARKER = 0xffff;
+  private static final long ZIP64_SIZE_MARKER = 0xffffffffL;
+  // the only general purpose flag retained: entry names are UTF-8
+  private static final int UTF8_FLAG = 1 << 11;
+
+  private final OutputStream out;
+  private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+  private final Set<String> names = new HashSet<>();
+  private long offset = 0;
+  private int entryCount = 0;
+
+  RawZipWriter(Path output) throws IOException {
+    this.out = new BufferedOutputStream(Files.newOutputStream(output));
+  }
+
+  /** Copies the entries of the given zip file whose names match the predicate. */
+  void copyEntries(Path zip, Predicate<String> shouldKeep) throws IOException {
+    try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+      ByteBuffer entries = readCentralDirectory(channel);
+      if (entries == null) {
+        recompressEntries(zip, shouldKeep);
+        return;
+      }
+      while (entries.hasRemaining()) {
+        if (entries.getInt() != CENTRAL_HEADER_SIGNATURE) {
+          throw new ZipException("Invalid central directory header in " + zip);
+        }
+        entries.position(entries.position() + 4); // versions
+        int flags = Short.toUnsignedInt(entries.getShort());
+        int method = Short.toUnsignedInt(entries.getShort());
+        int time = entries.getInt(); // DOS time and date
+        int crc = entries.getInt();
+        long compressedSize = Integer.toUnsignedLong(entries.getInt());
+        long size = Integer.toUnsignedLong(entries.getInt());
+        int nameLength = Short.toUnsignedInt(entries.getShort());
+        int extraLength = Short.toUnsignedInt(entries.getShort());
+        int commentLength = Short.toUnsignedInt(entries.getShort());
+        entries.position(entries.position() + 8); // disk number and attributes
+        long localHeaderOffset = Integer.toUnsignedLong(entries.getInt());
+        byte[] nameBytes = new byte[nameLength];
+        entries.get(nameBytes);
+        entries.position(entries.position() + extraLength + commentLength);
+
+        String name = new String(nameBytes, UTF_8);
+        if (!shouldKeep.test(name)) {
+          continue;
+        }
+        long dataOffset = localDataOffset(channel, localHeaderOffset, zip);
+        writeEntry(nameBytes, flags & UTF8_FLAG, method, time, crc, compressedSize, size);
+        copy(channel, dataOffset, compressedSize);
+      }
+    }
+  }
+
+  /**
+   * Reads the central directory into a little-endian buffer, or returns null if the file uses
+   * zip64 extensions.
+   */
+  private static ByteBuffer readCentralDirectory(FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+    int end = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+    while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("End of central directory not found");
+    }
+    int entryCount = Short.toUnsignedInt(tail.getShort(end + 10));
+    long size = Integer.toUnsignedLong(tail.getInt(end + 12));
+    long start = Integer.toUnsignedLong(tail.getInt(end + 16));
+    if (entryCount == ZIP64_MARKER || size == ZIP64_SIZE_MARKER || start == ZIP64_SIZE_MARKER) {
+      return null;
+    }
+    return read(channel, start, (int) size);
+  }
+
+  /** Returns the offset of an entry's data, following its local header. */
+  private static long localDataOffset(FileChannel channel, long localHeaderOffset, Path zip)
+      throws IOException {
+    ByteBuffer header = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header in " + zip);
+    }
+    int nameLength = Short.toUnsignedInt(header.getShort(26));
+    int extraLength = Short.toUnsignedInt(header.getShort(28));
+    return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int size)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private void copy(FileChannel channel, long position, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 64 * 1024));
+    long copied = 0;
+    while (copied < size) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), size - copied));
+      int read = channel.read(buffer, position + copied);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      out.write(buffer.array(), 0, read);
+      copied += read;
+    }
+    offset += size;
+  }
+
+  /** Fallback for zip files we can't copy directly: inflates then deflates each entry. */
+  private void recompressEntries(Path zip, Predicate<String> shouldKeep) throws IOException {
+    try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (!shouldKeep.test(entry.getName())) {
+          continue;
+        }
+        byte[] contents;
+        try (InputStream in = zipFile.getInputStream(entry)) {
+          contents = ByteStreams.toByteArray(in);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+        try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater)) {
+          deflaterOut.write(contents);
+        } finally {
+          deflater.end();
+        }
+        writeEntry(
+            entry.getName().getBytes(UTF_8),
+            UTF8_FLAG,
+            ZipEntry.DEFLATED,
+            dosTime(entry.getTime()),
+            (int) crc.getValue(),
+            compressed.size(),
+            contents.length);
+        compressed.writeTo(out);
+        offset += compressed.size();
+      }
+    }
+  }
+
+  /** Writes the local header of an entry, and records its central directory header. */
+  private void writeEntry(
+      byte[] name, int flags, int method, int time, int crc, long compressedSize, long size)
+      throws IOException {
+    String nameString = new String(name, UTF_8);
+    if (!names.add(nameString)) {
+      throw new ZipException("duplicate entry: " + nameString);
+    }
+    if (compressedSize >= ZIP64_SIZE_MARKER
+        || size >= ZIP64_SIZE_MARKER
+        || offset >= ZIP64_SIZE_MARKER
+        || entryCount + 1 >= ZIP64_MARKER) {
+      throw new ZipException("Output requires zip64 extensions, which aren't supported");
+    }
+    int version = method == ZipEntry.DEFLATED ? 20 : 10;
+
+    ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    local.putInt(LOCAL_HEADER_SIGNATURE);
+    local.putShort((short) version);
+    local.putShort((short) flags);
+    local.putShort((short) method);
+    local.putInt(time);
+    local.putInt(crc);
+    local.putInt((int) compressedSize);
+    local.putInt((int) size);
+    local.putShort((short) name.length);
+    local.putShort((short) 0); // extra field length
+    out.write(local.array());
+    out.write(name);
+
+    ByteBuffer central = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    central.putInt(CENTRAL_HEADER_SIGNATURE);
+    central.putShort((short) version); // version made by
+    central.putShort((short) version); // version needed to extract
+    central.putShort((short) flags);
+    central.putShort((short) method);
+    central.putInt(time);
+    central.putInt(crc);
+    central.putInt((int) compressedSize);
+    central.putInt((int) size);
+    central.putShort((short) name.length);
+    central.putShort((short) 0); // extra field length
+    central.putShort((short) 0); // comment length
+    central.putShort((short) 0); // disk number
+    central.putShort((short) 0); // internal attributes
+    central.putInt(0); // external attributes
+    central.putInt((int) offset);
+    centralDirectory.write(central.array());
+    centralDirectory.write(name);
+
+    offset += LOCAL_HEADER_SIZE + name.length;
+    entryCount++;
+  }
+
+  /** Writes the central directory, and closes the output. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (offset + centralDirectory.size() >= ZIP64_SIZE_MARKER) {
+        throw new ZipException("Output requires zip64 extensions, which aren't supported");
+      }
+      centralDirectory.writeTo(out);
+      ByteBuffer end =
+          ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+      end.putShort((short) 0); // disk number
+      end.putShort((short) 0); // disk with the central directory
+      end.putShort((short) entryCount);
+      end.putShort((short) entryCount);
+      end.putInt(centralDirectory.size());
+      end.putInt((int) offset);
+      end.putShort((short) 0); // comment length
+      out.write(end.array());
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Converts a java timestamp to the packed DOS time and date used by zip headers. */
+  private static int dosTime(long javaTime) {
+    LocalDateTime time =
+        LocalDateTime.ofInstant(Instant.ofEpochMilli(javaTime), ZoneId.systemDefault());
+    if (javaTime < 0 || time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+    }
+    int date =
+        ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+    return (date << 16)
+        | (time.getHour() << 11)
+        | (time.getMinute() << 5)
+        | (time.getSecond() >> 1);
+  }
+}
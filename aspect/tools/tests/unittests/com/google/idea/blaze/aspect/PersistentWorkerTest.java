@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.aspect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.aspect.PersistentWorker.WorkRequest;
+import com.google.protobuf.repackaged.CodedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PersistentWorker}. */
+@RunWith(JUnit4.class)
+public class PersistentWorkerTest {
+
+  @Test
+  public void testIsPersistentWorker() {
+    assertThat(PersistentWorker.isPersistentWorker(new String[] {"--persistent_worker"})).isTrue();
+    assertThat(PersistentWorker.isPersistentWorker(new String[] {"@params"})).isFalse();
+  }
+
+  @Test
+  public void testRunsEachRequestAndRespondsInOrder() throws IOException {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    new WorkRequest(ImmutableList.of("--foo", "1"), 0).write(requests);
+    new WorkRequest(ImmutableList.of("--fail"), 7).write(requests);
+    List<List<String>> actions = new ArrayList<>();
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    PersistentWorker.run(
+        new ByteArrayInputStream(requests.toByteArray()),
+        responses,
+        args -> {
+          actions.add(ImmutableList.copyOf(args));
+          if (args[0].equals("--fail")) {
+            throw new IllegalStateException("action failed");
+          }
+        });
+
+    assertThat(actions)
+        .containsExactly(ImmutableList.of("--foo", "1"), ImmutableList.of("--fail"))
+        .inOrder();
+    CodedInputStream input = CodedInputStream.newInstance(responses.toByteArray());
+    // a successful response has no fields set
+    assertThat(input.readRawVarint32()).isEqualTo(0);
+    int size = input.readRawVarint32();
+    int limit = input.pushLimit(size);
+    assertThat(input.readTag()).isEqualTo(1 << 3);
+    assertThat(input.readInt32()).isEqualTo(1);
+    assertThat(input.readTag()).isEqualTo((2 << 3) | 2);
+    assertThat(input.readString()).contains("action failed");
+    assertThat(input.readTag()).isEqualTo(3 << 3);
+    assertThat(input.readInt32()).isEqualTo(7);
+    input.popLimit(limit);
+    assertThat(input.isAtEnd()).isTrue();
+  }
+}
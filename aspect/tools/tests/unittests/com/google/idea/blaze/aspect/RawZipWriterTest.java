@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.aspect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RawZipWriter} */
+@RunWith(JUnit4.class)
+public class RawZipWriterTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCopiesMatchingEntriesUnchanged() throws Exception {
+    byte[] contents = new byte[10000];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = (byte) (i % 7);
+    }
+    byte[] storedContents = "stored".getBytes(UTF_8);
+    File input = folder.newFile("input.jar");
+    try (ZipOutputStream zo = new ZipOutputStream(new FileOutputStream(input))) {
+      zo.putNextEntry(new ZipEntry("com/google/foo/Foo.class"));
+      zo.write(contents);
+      zo.closeEntry();
+      ZipEntry stored = new ZipEntry("com/google/foo/Foo$Inner.class");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(storedContents.length);
+      CRC32 crc = new CRC32();
+      crc.update(storedContents);
+      stored.setCrc(crc.getValue());
+      zo.putNextEntry(stored);
+      zo.write(storedContents);
+      zo.closeEntry();
+      zo.putNextEntry(new ZipEntry("com/google/bar/Bar.class"));
+      zo.write(contents);
+      zo.closeEntry();
+    }
+
+    File output = folder.newFile("output.jar");
+    try (RawZipWriter writer = new RawZipWriter(output.toPath())) {
+      writer.copyEntries(input.toPath(), name -> name.startsWith("com/google/foo/"));
+    }
+
+    try (ZipFile inputZip = new ZipFile(input);
+        ZipFile outputZip = new ZipFile(output)) {
+      assertThat(outputZip.size()).isEqualTo(2);
+      assertThat(outputZip.getEntry("com/google/bar/Bar.class")).isNull();
+      for (String name :
+          new String[] {"com/google/foo/Foo.class", "com/google/foo/Foo$Inner.class"}) {
+        ZipEntry original = inputZip.getEntry(name);
+        ZipEntry copied = outputZip.getEntry(name);
+        assertThat(copied.getMethod()).isEqualTo(original.getMethod());
+        assertThat(copied.getCrc()).isEqualTo(original.getCrc());
+        assertThat(copied.getCompressedSize()).isEqualTo(original.getCompressedSize());
+        assertThat(copied.getTime()).isEqualTo(original.getTime());
+      }
+      assertThat(read(outputZip, "com/google/foo/Foo.class")).isEqualTo(contents);
+      assertThat(read(outputZip, "com/google/foo/Foo$Inner.class")).isEqualTo(storedContents);
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testDuplicateEntryThrows() throws Exception {
+    File input = folder.newFile("input.jar");
+    try (ZipOutputStream zo = new ZipOutputStream(new FileOutputStream(input))) {
+      zo.putNextEntry(new ZipEntry("Foo.class"));
+      zo.closeEntry();
+    }
+
+    try (RawZipWriter writer = new RawZipWriter(folder.newFile("output.jar").toPath())) {
+      writer.copyEntries(input.toPath(), name -> true);
+      writer.copyEntries(input.toPath(), name -> true);
+    }
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
@@ -15,23 +15,27 @@
  */
 package com.google.idea.blaze.android.libraries;
 
-import static com.google.common.io.Files.asByteSource;
-
 import com.android.SdkConstants;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.hash.Hashing;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.idea.blaze.android.sync.model.AarLibrary;
 import com.google.idea.blaze.base.filecache.FileCache;
 import com.google.idea.blaze.base.filecache.FileCacheSynchronizer;
 import com.google.idea.blaze.base.filecache.FileCacheSynchronizerTraits;
+import com.google.idea.blaze.base.filecache.FileDiffer;
 import com.google.idea.blaze.base.io.FileOperationProvider;
+import com.google.idea.blaze.base.io.ZipFileDigest;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.prefetch.FetchExecutor;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
@@ -46,18 +50,23 @@ import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.util.io.ZipUtil;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.annotation.Nullable;
 
 /**
@@ -78,6 +87,9 @@ import javax.annotation.Nullable;
  *       org.jetbrains.android.uipreview.ModuleClassLoader}, for that possible assumption.
  *   <li>The IDE may want the AndroidManifest.xml as well.
  * </ul>
+ *
+ * <p>Only these parts of each AAR are extracted. AARs are only re-extracted if their contents have
+ * changed, and unpacked AARs are kept across full syncs.
  */
 public class UnpackedAars {
   private static final Logger logger = Logger.getInstance(UnpackedAars.class);
@@ -88,16 +100,36 @@ public class UnpackedAars {
   @Nullable private AarTraits aarTraits;
   @Nullable private JarTraits jarTraits;
 
+  // the cache key of each AAR, and the modified time and digest of the AAR it was computed from
+  private final Map<File, AarCacheKey> aarCacheKeys = new ConcurrentHashMap<>();
+
+  private static class AarCacheKey {
+    final long modifiedTime;
+    final String cacheKey;
+    @Nullable final String digest;
+
+    AarCacheKey(long modifiedTime, String cacheKey, @Nullable String digest) {
+      this.modifiedTime = modifiedTime;
+      this.cacheKey = cacheKey;
+      this.digest = digest;
+    }
+  }
+
   public static UnpackedAars getInstance(Project project) {
     return ServiceManager.getService(project, UnpackedAars.class);
   }
 
   public UnpackedAars(Project project) {
-    BlazeImportSettings importSettings =
-        BlazeImportSettingsManager.getInstance(project).getImportSettings();
-    this.cacheDir = getCacheDir(importSettings);
     // We want this to be isUnitTestMode in normal operation, so there's no user setting.
-    isUnitTestMode = ApplicationManager.getApplication().isUnitTestMode();
+    this(
+        getCacheDir(BlazeImportSettingsManager.getInstance(project).getImportSettings()),
+        ApplicationManager.getApplication().isUnitTestMode());
+  }
+
+  @VisibleForTesting
+  UnpackedAars(File cacheDir, boolean isUnitTestMode) {
+    this.cacheDir = cacheDir;
+    this.isUnitTestMode = isUnitTestMode;
   }
 
   void onSync(
@@ -107,39 +139,93 @@ public class UnpackedAars {
       SyncMode syncMode) {
     Collection<BlazeLibrary> libraries =
         BlazeLibraryCollector.getLibraries(projectViewSet, projectData);
-    boolean fullRefresh = syncMode == SyncMode.FULL;
-    boolean removeMissingFiles = syncMode == SyncMode.INCREMENTAL;
-    if (isUnitTestMode || fullRefresh) {
-      clearCache();
-    }
-    if (isUnitTestMode) {
-      return;
-    }
-
     List<AarLibrary> aarLibraries =
         libraries.stream()
             .filter(library -> library instanceof AarLibrary)
             .map(library -> (AarLibrary) library)
             .collect(Collectors.toList());
+    onSync(context, aarLibraries, projectData.getArtifactLocationDecoder(), syncMode);
+  }
+
+  @VisibleForTesting
+  void onSync(
+      BlazeContext context,
+      List<AarLibrary> aarLibraries,
+      ArtifactLocationDecoder artifactLocationDecoder,
+      SyncMode syncMode) {
+    // unpacked AARs are keyed by their contents, so rather than clearing them on a full sync,
+    // only those no longer used are removed
+    boolean removeMissingFiles = syncMode == SyncMode.INCREMENTAL || syncMode == SyncMode.FULL;
+    if (isUnitTestMode) {
+      clearCache();
+      return;
+    }
 
-    ArtifactLocationDecoder artifactLocationDecoder = projectData.getArtifactLocationDecoder();
+    Map<File, String> aarFileToCacheKey;
+    try {
+      aarFileToCacheKey =
+          updateCacheKeys(
+              aarLibraries.stream()
+                  .map(library -> artifactLocationDecoder.decode(library.aarArtifact))
+                  .collect(Collectors.toList()));
+    } catch (InterruptedException e) {
+      context.setCancelled();
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      logger.warn("Unpacked AAR synchronization didn't complete", e);
+      return;
+    }
     BiMap<File, String> sourceAarFileToCacheKey = HashBiMap.create(aarLibraries.size());
     BiMap<File, String> sourceJarFileToCacheKey = HashBiMap.create(aarLibraries.size());
     for (AarLibrary library : aarLibraries) {
       File aarFile = artifactLocationDecoder.decode(library.aarArtifact);
-      String cacheKey = cacheKeyForAar(aarFile);
+      String cacheKey = aarFileToCacheKey.get(aarFile);
+      if (cacheKey == null) {
+        // the AAR doesn't exist
+        cacheKey = cacheKeyForAar(aarFile, null);
+      }
       sourceAarFileToCacheKey.put(aarFile, cacheKey);
       File jarFile =
           artifactLocationDecoder.decode(library.libraryArtifact.jarForIntellijLibrary());
       // Use the aar key for the jar as well.
       sourceJarFileToCacheKey.put(jarFile, cacheKey);
     }
-    this.aarTraits = new AarTraits(cacheDir, sourceAarFileToCacheKey);
+    this.aarTraits = new AarTraits(cacheDir, sourceAarFileToCacheKey, aarCacheKeys);
     this.jarTraits = new JarTraits(cacheDir, sourceJarFileToCacheKey);
 
     refresh(context, removeMissingFiles);
   }
 
+  /**
+   * Returns the cache key of each existing AAR. Keys are only recomputed for AARs modified since
+   * they were last computed.
+   */
+  private Map<File, String> updateCacheKeys(List<File> aarFiles)
+      throws InterruptedException, ExecutionException {
+    ImmutableMap<File, Long> modifiedTimes = FileDiffer.readFileState(aarFiles);
+    aarCacheKeys.keySet().retainAll(modifiedTimes.keySet());
+    List<ListenableFuture<?>> futures = new ArrayList<>();
+    for (Map.Entry<File, Long> entry : modifiedTimes.entrySet()) {
+      File aarFile = entry.getKey();
+      long modifiedTime = entry.getValue();
+      AarCacheKey existing = aarCacheKeys.get(aarFile);
+      if (existing != null && existing.modifiedTime == modifiedTime) {
+        continue;
+      }
+      futures.add(
+          FetchExecutor.EXECUTOR.submit(
+              () -> {
+                String digest = digest(aarFile);
+                aarCacheKeys.put(
+                    aarFile,
+                    new AarCacheKey(modifiedTime, cacheKeyForAar(aarFile, digest), digest));
+              }));
+    }
+    Futures.allAsList(futures).get();
+    return Maps.transformValues(aarCacheKeys, cacheKey -> cacheKey.cacheKey);
+  }
+
   /** Refreshes any updated files in the cache. Does not add or remove any files */
   void refresh(BlazeContext context) {
     refresh(context, false);
@@ -221,18 +307,21 @@ public class UnpackedAars {
     jarTraits = null;
   }
 
-  private static String cacheKeyForAar(File aar) {
-    return cacheKeyInternal(aar) + SdkConstants.DOT_AAR;
+  private static String cacheKeyForAar(File aar, @Nullable String digest) {
+    String hash =
+        digest != null ? digest.substring(0, 16) : Integer.toHexString(aar.getParent().hashCode());
+    return FileUtil.getNameWithoutExtension(aar) + "_" + hash + SdkConstants.DOT_AAR;
   }
 
-  private static String cacheKeyInternal(File aar) {
-    long hash = aar.getParent().hashCode();
+  /** Returns a digest of the AAR's contents, or null if it can't be read. */
+  @Nullable
+  private static String digest(File aar) {
     try {
-      hash = asByteSource(aar).hash(Hashing.farmHashFingerprint64()).asLong();
+      return ZipFileDigest.digest(aar).toString();
     } catch (IOException e) {
       logger.warn("Fail to calculate checksum of file " + aar, e);
+      return null;
     }
-    return FileUtil.getNameWithoutExtension(aar) + "_" + Long.toHexString(hash);
   }
 
   private static File getCacheDir(BlazeImportSettings importSettings) {
@@ -269,17 +358,28 @@ public class UnpackedAars {
    * instead of the directory itself to stash the timestamp. Directory timestamps are bit more
    * brittle and can change whenever an operation is done to a child of the directory. E.g., if
    * {@link JarTraits} copies a jar into the directory.
+   *
+   * <p>The stamp file contains a digest of the AAR it was extracted from, so an AAR which was
+   * rebuilt without changing isn't extracted again.
    */
   static class AarTraits implements FileCacheSynchronizerTraits {
 
     private static final String STAMP_FILE_NAME = "aar.timestamp";
+    // public resource declarations, read by the IDE's AAR resource repository
+    private static final String PUBLIC_RESOURCES_FILE_NAME = "public.txt";
     private final File cacheDir;
     private final BiMap<File, String> sourceFileToCacheKey;
+    // the digests computed for the cache keys, reused to check the stamp files
+    private final Map<File, AarCacheKey> aarCacheKeys;
     private final FileOperationProvider fileOpProvider;
 
-    AarTraits(File cacheDir, BiMap<File, String> sourceFileToCacheKey) {
+    AarTraits(
+        File cacheDir,
+        BiMap<File, String> sourceFileToCacheKey,
+        Map<File, AarCacheKey> aarCacheKeys) {
       this.cacheDir = cacheDir;
       this.sourceFileToCacheKey = sourceFileToCacheKey;
+      this.aarCacheKeys = aarCacheKeys;
       this.fileOpProvider = FileOperationProvider.getInstance();
     }
 
@@ -337,39 +437,107 @@ public class UnpackedAars {
     private void unpackAar(
         FileOperationProvider fileOperationProvider, File sourceFile, File cacheFile) {
       File cacheDirectory = cacheDirectoryForCacheFile(cacheFile);
+      String digest = currentDigest(fileOperationProvider, sourceFile);
       try {
+        if (digest != null && digest.equals(readStampFile(fileOperationProvider, cacheFile))) {
+          // the AAR was rebuilt, but its contents haven't changed
+          setStampFileModifiedTime(fileOperationProvider, sourceFile, cacheFile);
+          return;
+        }
         if (fileOperationProvider.exists(cacheDirectory)) {
           // NOTE: this forces AAR synchronizer to run before the Jar synchronizer (which puts
           // files within the cacheDirectory).
           fileOperationProvider.deleteRecursively(cacheDirectory);
         }
-        ZipUtil.extract(
-            sourceFile,
-            cacheDirectory,
-            // Skip jars. The merged jar will be synchronized by JarTraits.
-            (dir, name) -> !name.endsWith(".jar"));
-        createStampFile(fileOperationProvider, sourceFile, cacheFile);
+        extract(sourceFile, cacheDirectory);
+        createStampFile(fileOperationProvider, sourceFile, cacheFile, digest);
       } catch (IOException e) {
         logger.warn(String.format("Failed to extract AAR %s to %s", sourceFile, cacheDirectory), e);
       }
     }
 
+    /**
+     * Returns the digest computed with the AAR's cache key, or computes it again if the AAR has
+     * been modified since.
+     */
+    @Nullable
+    private String currentDigest(FileOperationProvider fileOperationProvider, File aar) {
+      AarCacheKey cacheKey = aarCacheKeys.get(aar);
+      if (cacheKey != null
+          && cacheKey.modifiedTime == fileOperationProvider.getFileModifiedTime(aar)) {
+        return cacheKey.digest;
+      }
+      return digest(aar);
+    }
+
+    /**
+     * Extracts the parts of the AAR used by the IDE. Jars are skipped, as the merged jar will be
+     * synchronized by {@link JarTraits}.
+     */
+    private static void extract(File aar, File directory) throws IOException {
+      try (ZipFile zip = new ZipFile(aar)) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (entry.isDirectory() || !shouldExtract(entry.getName())) {
+            continue;
+          }
+          File file = new File(directory, entry.getName());
+          if (!FileUtil.isAncestor(directory, file, true)) {
+            logger.warn(String.format("Skipping AAR entry outside its directory: %s", file));
+            continue;
+          }
+          FileUtil.createParentDirs(file);
+          try (InputStream input = zip.getInputStream(entry)) {
+            Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          }
+        }
+      }
+    }
+
+    @VisibleForTesting
+    static boolean shouldExtract(String entryName) {
+      return entryName.startsWith(SdkConstants.FD_RES + "/")
+          || entryName.equals(SdkConstants.FN_ANDROID_MANIFEST_XML)
+          || entryName.equals(SdkConstants.FN_RESOURCE_TEXT)
+          || entryName.equals(PUBLIC_RESOURCES_FILE_NAME);
+    }
+
+    @Nullable
+    private static String readStampFile(
+        FileOperationProvider fileOperationProvider, File stampFile) {
+      if (!fileOperationProvider.exists(stampFile)) {
+        return null;
+      }
+      try {
+        return new String(Files.readAllBytes(stampFile.toPath()), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
     private void createStampFile(
-        FileOperationProvider fileOperationProvider, File sourceFile, File stampFile) {
-      long sourceTime = fileOperationProvider.getFileModifiedTime(sourceFile);
-      String warningMessage =
-          String.format(
-              "Failed to set AAR stamp file last modified time (%s, %s)", stampFile, sourceTime);
+        FileOperationProvider fileOperationProvider,
+        File sourceFile,
+        File stampFile,
+        @Nullable String digest) {
       try {
-        if (!stampFile.createNewFile()) {
-          logger.warn(warningMessage);
-          return;
-        }
-        if (!fileOperationProvider.setFileModifiedTime(stampFile, sourceTime)) {
-          logger.warn(warningMessage);
-        }
+        Files.write(
+            stampFile.toPath(), (digest != null ? digest : "").getBytes(StandardCharsets.UTF_8));
       } catch (IOException e) {
-        logger.warn(warningMessage, e);
+        logger.warn(String.format("Failed to create AAR stamp file %s", stampFile), e);
+        return;
+      }
+      setStampFileModifiedTime(fileOperationProvider, sourceFile, stampFile);
+    }
+
+    private void setStampFileModifiedTime(
+        FileOperationProvider fileOperationProvider, File sourceFile, File stampFile) {
+      long sourceTime = fileOperationProvider.getFileModifiedTime(sourceFile);
+      if (!fileOperationProvider.setFileModifiedTime(stampFile, sourceTime)) {
+        logger.warn(
+            String.format(
+                "Failed to set AAR stamp file last modified time (%s, %s)", stampFile, sourceTime));
       }
     }
 
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.android.libraries;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.android.sync.model.AarLibrary;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.async.executor.MockBlazeExecutor;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
+import com.google.idea.blaze.base.io.FileOperationProvider;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.sync.SyncMode;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link UnpackedAars}. */
+@RunWith(JUnit4.class)
+public class UnpackedAarsTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final BlazeContext context = new BlazeContext();
+  private File workspace;
+  private ArtifactLocationDecoder decoder;
+  private UnpackedAars unpackedAars;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    applicationServices.register(BlazeExecutor.class, new MockBlazeExecutor());
+    applicationServices.register(FileOperationProvider.class, new FileOperationProvider());
+    try {
+      workspace = tmpFolder.newFolder("workspace");
+      unpackedAars = new UnpackedAars(tmpFolder.newFolder("aar_libraries"), false);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    decoder = location -> new File(workspace, location.getRelativePath());
+  }
+
+  @Test
+  public void shouldExtract_partsReadByIde_areExtracted() {
+    assertThat(UnpackedAars.AarTraits.shouldExtract("res/values/strings.xml")).isTrue();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("AndroidManifest.xml")).isTrue();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("R.txt")).isTrue();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("public.txt")).isTrue();
+  }
+
+  @Test
+  public void shouldExtract_otherParts_areSkipped() {
+    assertThat(UnpackedAars.AarTraits.shouldExtract("classes.jar")).isFalse();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("libs/dep.jar")).isFalse();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("jni/x86/libfoo.so")).isFalse();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("proguard.txt")).isFalse();
+    assertThat(UnpackedAars.AarTraits.shouldExtract("resources/res/values/strings.xml"))
+        .isFalse();
+  }
+
+  @Test
+  public void onSync_extractsOnlyPartsReadByIde() throws IOException {
+    AarLibrary library = writeAar("lib", "strings");
+
+    unpackedAars.onSync(context, ImmutableList.of(library), decoder, SyncMode.INCREMENTAL);
+
+    File resDirectory = unpackedAars.getResourceDirectory(decoder, library);
+    File aarDirectory = resDirectory.getParentFile();
+    assertThat(new File(resDirectory, "values/strings.xml").exists()).isTrue();
+    assertThat(new File(aarDirectory, "AndroidManifest.xml").exists()).isTrue();
+    assertThat(new File(aarDirectory, "R.txt").exists()).isTrue();
+    assertThat(new File(aarDirectory, "classes.jar").exists()).isFalse();
+    assertThat(new File(aarDirectory, "proguard.txt").exists()).isFalse();
+    assertThat(unpackedAars.getClassJar(decoder, library).exists()).isTrue();
+  }
+
+  @Test
+  public void onSync_aarRebuiltWithSameContents_isNotExtractedAgain() throws IOException {
+    AarLibrary library = writeAar("lib", "strings");
+    unpackedAars.onSync(context, ImmutableList.of(library), decoder, SyncMode.INCREMENTAL);
+    File aarDirectory = unpackedAars.getResourceDirectory(decoder, library).getParentFile();
+    File marker = new File(aarDirectory, "marker");
+    assertThat(marker.createNewFile()).isTrue();
+
+    writeAar("lib", "strings");
+    File aar = aarFile("lib");
+    assertThat(aar.setLastModified(aar.lastModified() + TimeUnit.MINUTES.toMillis(1))).isTrue();
+    unpackedAars.onSync(context, ImmutableList.of(library), decoder, SyncMode.INCREMENTAL);
+
+    assertThat(unpackedAars.getResourceDirectory(decoder, library).getParentFile())
+        .isEqualTo(aarDirectory);
+    assertThat(marker.exists()).isTrue();
+    assertThat(new File(aarDirectory, "aar.timestamp").lastModified())
+        .isEqualTo(aar.lastModified());
+  }
+
+  @Test
+  public void onSync_aarWithChangedContents_isExtractedAgain() throws IOException {
+    AarLibrary library = writeAar("lib", "strings");
+    unpackedAars.onSync(context, ImmutableList.of(library), decoder, SyncMode.INCREMENTAL);
+    File aarDirectory = unpackedAars.getResourceDirectory(decoder, library).getParentFile();
+
+    writeAar("lib", "other_strings");
+    File aar = aarFile("lib");
+    assertThat(aar.setLastModified(aar.lastModified() + TimeUnit.MINUTES.toMillis(1))).isTrue();
+    unpackedAars.onSync(context, ImmutableList.of(library), decoder, SyncMode.INCREMENTAL);
+
+    File resDirectory = unpackedAars.getResourceDirectory(decoder, library);
+    assertThat(resDirectory.getParentFile()).isNotEqualTo(aarDirectory);
+    assertThat(new File(resDirectory, "values/other_strings.xml").exists()).isTrue();
+    assertThat(aarDirectory.exists()).isFalse();
+  }
+
+  @Test
+  public void onSync_fullSync_keepsUnpackedAarsStillInUse() throws IOException {
+    AarLibrary kept = writeAar("kept", "strings");
+    AarLibrary removed = writeAar("removed", "strings");
+    unpackedAars.onSync(context, ImmutableList.of(kept, removed), decoder, SyncMode.INCREMENTAL);
+    File keptDirectory = unpackedAars.getResourceDirectory(decoder, kept).getParentFile();
+    File removedDirectory = unpackedAars.getResourceDirectory(decoder, removed).getParentFile();
+    File marker = new File(keptDirectory, "marker");
+    assertThat(marker.createNewFile()).isTrue();
+
+    unpackedAars.onSync(context, ImmutableList.of(kept), decoder, SyncMode.FULL);
+
+    assertThat(marker.exists()).isTrue();
+    assertThat(removedDirectory.exists()).isFalse();
+  }
+
+  private File aarFile(String name) {
+    return new File(workspace, name + ".aar");
+  }
+
+  /**
+   * Writes an AAR with a single resource file, and the merged jar derived from it. Entries have
+   * fixed timestamps, so AARs written with the same resource have the same contents.
+   */
+  private AarLibrary writeAar(String name, String resourceName) throws IOException {
+    File aar = aarFile(name);
+    Map<String, String> entries =
+        ImmutableMap.of(
+            "res/values/" + resourceName + ".xml", "<resources/>",
+            "AndroidManifest.xml", "<manifest/>",
+            "R.txt", "",
+            "classes.jar", "classes",
+            "proguard.txt", "");
+    // replace rather than overwrite the AAR, as blaze does
+    Files.deleteIfExists(aar.toPath());
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(aar))) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        ZipEntry zipEntry = new ZipEntry(entry.getKey());
+        zipEntry.setTime(0);
+        out.putNextEntry(zipEntry);
+        out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    File jar = new File(workspace, name + "_merged.jar");
+    Files.write(jar.toPath(), resourceName.getBytes(StandardCharsets.UTF_8));
+    return new AarLibrary(
+        LibraryArtifact.builder().setClassJar(artifact(jar.getName())).build(),
+        artifact(aar.getName()));
+  }
+
+  private static ArtifactLocation artifact(String relativePath) {
+    return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(false).build();
+  }
+}
@@ -163,7 +163,7 @@ public class BlazeAndroidWorkspaceImporterTest extends BlazeTestCase {
           }
         });
 
-    applicationServices.register(PackageManifestReader.class, new PackageManifestReader());
+    projectServices.register(PackageManifestReader.class, new PackageManifestReader());
     applicationServices.register(PrefetchService.class, new MockPrefetchService());
 
     registerExtensionPoint(JavaLikeLanguage.EP_NAME, JavaLikeLanguage.class)
@@ -19,6 +19,7 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Queues;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
@@ -44,6 +45,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -125,11 +128,33 @@ public final class BuildEventProtocolOutputReader {
   public static ImmutableList<File> parseAllOutputFilenames(
       InputStream inputStream, Predicate<String> fileFilter) throws IOException {
     ImmutableSet.Builder<File> files = ImmutableSet.builder();
+    streamAllOutputFilenames(inputStream, fileFilter, files::addAll);
+    return files.build().asList();
+  }
+
+  /**
+   * Reads all output files listed in the BEP output that satisfy the specified predicate, passing
+   * each newly-reported batch to {@code consumer} as soon as it's parsed.
+   *
+   * <p>Each file is passed to the consumer at most once. If the {@link InputStream} blocks until
+   * more build events are available, files are reported while the build is still running.
+   *
+   * @throws IOException if the BEP output file is incorrectly formatted
+   */
+  public static void streamAllOutputFilenames(
+      InputStream inputStream, Predicate<String> fileFilter, Consumer<ImmutableList<File>> consumer)
+      throws IOException {
+    Set<File> seenFiles = new HashSet<>();
     BuildEventStreamProtos.BuildEvent event;
     while ((event = BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(inputStream)) != null) {
-      files.addAll(parseFilenames(event, fileFilter));
+      ImmutableList<File> newFiles =
+          parseFilenames(event, fileFilter).stream()
+              .filter(seenFiles::add)
+              .collect(toImmutableList());
+      if (!newFiles.isEmpty()) {
+        consumer.accept(newFiles);
+      }
     }
-    return files.build().asList();
   }
 
   /**
@@ -169,6 +194,81 @@ public final class BuildEventProtocolOutputReader {
       throws IOException {
     Map<String, BuildEventStreamProtos.NamedSetOfFiles> fileSets = new HashMap<>();
     Set<String> fileSetsForOutputGroups = new HashSet<>();
+    readOutputGroupFileSets(
+        inputStream,
+        outputGroups,
+        fileSets,
+        (outputGroup, fileSetIds) -> fileSetsForOutputGroups.addAll(fileSetIds));
+    return traverseFileSetsTransitively(fileSets, fileSetsForOutputGroups, fileFilter);
+  }
+
+  /**
+   * Reads all output files belonging to the given output group(s), keyed by output group.
+   *
+   * @throws IOException if the BEP output file is incorrectly formatted
+   */
+  public static ImmutableListMultimap<String, File> parseOutputGroupFilenames(
+      InputStream inputStream, Collection<String> outputGroups, Predicate<String> fileFilter)
+      throws IOException {
+    Map<String, BuildEventStreamProtos.NamedSetOfFiles> fileSets = new HashMap<>();
+    Map<String, Set<String>> fileSetsByOutputGroup = new HashMap<>();
+    readOutputGroupFileSets(
+        inputStream,
+        outputGroups,
+        fileSets,
+        (outputGroup, fileSetIds) ->
+            fileSetsByOutputGroup
+                .computeIfAbsent(outputGroup, group -> new HashSet<>())
+                .addAll(fileSetIds));
+    ImmutableListMultimap.Builder<String, File> files = ImmutableListMultimap.builder();
+    fileSetsByOutputGroup.forEach(
+        (outputGroup, fileSetIds) ->
+            files.putAll(
+                outputGroup, traverseFileSetsTransitively(fileSets, fileSetIds, fileFilter)));
+    return files.build();
+  }
+
+  /**
+   * Reads the labels of all targets whose aspects failed to build without reporting any of the
+   * given output groups, i.e. those for which the output groups' own outcome is unknown.
+   *
+   * <p>Only aspect completion events are considered, as the aspect's output groups are never
+   * reported by the target's own completion event.
+   *
+   * @throws IOException if the BEP output file is incorrectly formatted
+   */
+  public static ImmutableSet<Label> parseFailedTargetsMissingOutputGroups(
+      InputStream inputStream, Collection<String> outputGroups) throws IOException {
+    ImmutableSet<String> outputGroupsSet = ImmutableSet.copyOf(outputGroups);
+    ImmutableSet.Builder<Label> labels = ImmutableSet.builder();
+    BuildEventStreamProtos.BuildEvent event;
+    while ((event = BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(inputStream)) != null) {
+      if (!event.getId().hasTargetCompleted()
+          || event.getId().getTargetCompleted().getAspect().isEmpty()
+          || !event.hasCompleted()
+          || event.getCompleted().getSuccess()) {
+        continue;
+      }
+      boolean reportsOutputGroup =
+          event.getCompleted().getOutputGroupList().stream()
+              .anyMatch(o -> outputGroupsSet.contains(o.getName()));
+      if (!reportsOutputGroup) {
+        labels.add(Label.create(event.getId().getTargetCompleted().getLabel()));
+      }
+    }
+    return labels.build();
+  }
+
+  /**
+   * Reads all named file sets from the BEP output, passing the IDs of the top-level file sets
+   * belonging to each of the given output groups to {@code outputGroupConsumer}.
+   */
+  private static void readOutputGroupFileSets(
+      InputStream inputStream,
+      Collection<String> outputGroups,
+      Map<String, BuildEventStreamProtos.NamedSetOfFiles> fileSets,
+      BiConsumer<String, List<String>> outputGroupConsumer)
+      throws IOException {
     BuildEventStreamProtos.BuildEvent event;
     // optimize for #contains()
     ImmutableSet<String> outputGroupsSet = ImmutableSet.copyOf(outputGroups);
@@ -176,19 +276,17 @@ public final class BuildEventProtocolOutputReader {
       if (event.getId().hasNamedSet() && event.hasNamedSetOfFiles()) {
         fileSets.put(event.getId().getNamedSet().getId(), event.getNamedSetOfFiles());
       } else if (event.hasCompleted()) {
-        fileSetsForOutputGroups.addAll(
-            event
-                .getCompleted()
-                .getOutputGroupList()
-                .stream()
-                .filter(o -> outputGroupsSet.contains(o.getName()))
-                .map(OutputGroup::getFileSetsList)
-                .flatMap(List::stream)
-                .map(NamedSetOfFilesId::getId)
-                .collect(Collectors.toList()));
+        event.getCompleted().getOutputGroupList().stream()
+            .filter(o -> outputGroupsSet.contains(o.getName()))
+            .forEach(
+                o ->
+                    outputGroupConsumer.accept(
+                        o.getName(),
+                        o.getFileSetsList().stream()
+                            .map(NamedSetOfFilesId::getId)
+                            .collect(Collectors.toList())));
       }
     }
-    return traverseFileSetsTransitively(fileSets, fileSetsForOutputGroups, fileFilter);
   }
 
   /**
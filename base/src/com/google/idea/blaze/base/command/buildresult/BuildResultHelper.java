@@ -16,10 +16,14 @@
 package com.google.idea.blaze.base.command.buildresult;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.idea.blaze.base.model.primitives.Label;
 import java.io.File;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 
 /** Assists in getting build artifacts from a build operation. */
 public interface BuildResultHelper extends AutoCloseable {
@@ -39,6 +43,21 @@ public interface BuildResultHelper extends AutoCloseable {
    */
   ImmutableList<File> getBuildArtifacts() throws GetArtifactsException;
 
+  /**
+   * Starts reading build artifacts while the build is still running, passing each batch of newly
+   * reported artifacts to {@code artifactConsumer} as soon as it's available.
+   *
+   * <p>Must be called before the build starts. Once the build has finished, callers must call
+   * {@link BuildArtifactStream#awaitCompletion}, after which every artifact will have been passed
+   * to the consumer. The consumer may be called on a background thread, but never concurrently.
+   *
+   * <p>Implementations which can't read build results until the build is complete report all
+   * artifacts from {@link BuildArtifactStream#awaitCompletion}.
+   */
+  default BuildArtifactStream streamBuildArtifacts(Consumer<ImmutableList<File>> artifactConsumer) {
+    return () -> artifactConsumer.accept(getBuildArtifacts());
+  }
+
   /**
    * Returns the build artifacts, attempting to filter out all artifacts not directly produced by
    * the specified target. Some implementations may return artifacts produced by other targets.
@@ -51,9 +70,43 @@ public interface BuildResultHelper extends AutoCloseable {
   ImmutableList<File> getArtifactsForOutputGroups(Collection<String> outputGroups)
       throws GetArtifactsException;
 
+  /**
+   * Returns all build artifacts belonging to the given output groups, keyed by output group. An
+   * artifact belonging to several of the output groups is listed under each of them.
+   */
+  default ImmutableListMultimap<String, File> getArtifactsByOutputGroup(
+      Collection<String> outputGroups) throws GetArtifactsException {
+    ImmutableListMultimap.Builder<String, File> artifacts = ImmutableListMultimap.builder();
+    for (String outputGroup : outputGroups) {
+      artifacts.putAll(outputGroup, getArtifactsForOutputGroups(ImmutableList.of(outputGroup)));
+    }
+    return artifacts.build();
+  }
+
+  /**
+   * Returns the targets which failed to build without reporting any artifacts for the given output
+   * groups, or null if this implementation can't tell which targets failed.
+   *
+   * <p>May only be called once the build is complete.
+   */
+  @Nullable
+  default ImmutableSet<Label> getFailedTargetsMissingOutputGroups(Collection<String> outputGroups)
+      throws GetArtifactsException {
+    return null;
+  }
+
   @Override
   void close();
 
+  /** A handle on the artifacts streamed from an in-progress build. */
+  interface BuildArtifactStream {
+    /**
+     * Signals that the build has finished, then blocks until all remaining artifacts have been
+     * passed to the consumer.
+     */
+    void awaitCompletion() throws GetArtifactsException;
+  }
+
   /** Indicates a failure to get artifact information */
   class GetArtifactsException extends Exception {
     public GetArtifactsException(String message) {
@@ -16,8 +16,14 @@
 package com.google.idea.blaze.base.command.buildresult;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.command.info.BlazeInfo;
 import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.common.concurrency.ConcurrencyUtil;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import java.io.BufferedInputStream;
@@ -25,9 +31,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
@@ -41,6 +52,7 @@ class BuildResultHelperBep implements BuildResultHelper {
   private static final Logger logger = Logger.getInstance(BuildResultHelperBep.class);
   private final File outputFile;
   private final Predicate<String> fileFilter;
+  private final List<Future<?>> streamingReaders = new ArrayList<>();
 
   BuildResultHelperBep(Predicate<String> fileFilter) {
     this.fileFilter = fileFilter;
@@ -58,6 +70,43 @@ class BuildResultHelperBep implements BuildResultHelper {
         input -> BuildEventProtocolOutputReader.parseAllOutputFilenames(input, fileFilter));
   }
 
+  @Override
+  public BuildArtifactStream streamBuildArtifacts(Consumer<ImmutableList<File>> artifactConsumer) {
+    TailingFileInputStream tailingStream = new TailingFileInputStream(outputFile);
+    // the reader runs for the whole build, so is given its own thread rather than tying up a
+    // shared executor thread
+    ListeningExecutorService readerExecutor =
+        MoreExecutors.listeningDecorator(
+            Executors.newSingleThreadExecutor(
+                ConcurrencyUtil.namedDaemonThreadPoolFactory(BuildResultHelperBep.class)));
+    ListenableFuture<Void> reader =
+        readerExecutor.submit(
+            () -> {
+              try (InputStream inputStream = new BufferedInputStream(tailingStream)) {
+                BuildEventProtocolOutputReader.streamAllOutputFilenames(
+                    inputStream, fileFilter, artifactConsumer);
+              }
+              return null;
+            });
+    readerExecutor.shutdown();
+    synchronized (streamingReaders) {
+      streamingReaders.add(reader);
+    }
+    return () -> {
+      tailingStream.markWriterFinished();
+      try {
+        reader.get();
+      } catch (InterruptedException e) {
+        reader.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new GetArtifactsException("Interrupted while reading BEP output");
+      } catch (ExecutionException e) {
+        logger.error(e.getCause());
+        throw new GetArtifactsException(e.getCause().getMessage());
+      }
+    };
+  }
+
   @Override
   public ImmutableList<File> getBuildArtifactsForTarget(Label target) throws GetArtifactsException {
     return readResult(
@@ -73,6 +122,24 @@ class BuildResultHelperBep implements BuildResultHelper {
                 input, outputGroups, fileFilter));
   }
 
+  @Override
+  public ImmutableListMultimap<String, File> getArtifactsByOutputGroup(
+      Collection<String> outputGroups) throws GetArtifactsException {
+    return readResult(
+        input ->
+            BuildEventProtocolOutputReader.parseOutputGroupFilenames(
+                input, outputGroups, fileFilter));
+  }
+
+  @Override
+  public ImmutableSet<Label> getFailedTargetsMissingOutputGroups(Collection<String> outputGroups)
+      throws GetArtifactsException {
+    return readResult(
+        input ->
+            BuildEventProtocolOutputReader.parseFailedTargetsMissingOutputGroups(
+                input, outputGroups));
+  }
+
   private <V> V readResult(BepReader<V> readAction) throws GetArtifactsException {
     try (InputStream inputStream = new BufferedInputStream(new FileInputStream(outputFile))) {
       return readAction.read(inputStream);
@@ -84,6 +151,11 @@ class BuildResultHelperBep implements BuildResultHelper {
 
   @Override
   public void close() {
+    synchronized (streamingReaders) {
+      // stop tailing the output file, in case the build was abandoned
+      streamingReaders.forEach(reader -> reader.cancel(true));
+      streamingReaders.clear();
+    }
     if (!outputFile.delete()) {
       logger.warn("Could not delete BEP output file: " + outputFile);
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.command.buildresult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InputStream} reading a file which may still be written to by another process (e.g. the
+ * BEP output file of a running blaze build).
+ *
+ * <p>On reaching the current end of the file, reads block until more data is appended. Once {@link
+ * #markWriterFinished} is called, the remaining data is read and end-of-stream is reported as
+ * usual. The file needn't exist when this stream is created.
+ */
+final class TailingFileInputStream extends InputStream {
+
+  private static final long POLL_INTERVAL_MILLIS = 50;
+
+  private final File file;
+  private volatile boolean writerFinished = false;
+  @Nullable private InputStream delegate;
+
+  TailingFileInputStream(File file) {
+    this.file = file;
+  }
+
+  /** Indicates that no more data will be appended to the file. */
+  void markWriterFinished() {
+    writerFinished = true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (true) {
+      // read the flag before reading the file, so we can't miss data appended just before it's set
+      boolean finished = writerFinished;
+      InputStream input = getDelegate(finished);
+      int bytesRead = input != null ? input.read(buffer, offset, length) : -1;
+      if (bytesRead > 0) {
+        return bytesRead;
+      }
+      if (finished) {
+        return -1;
+      }
+      waitForMoreData();
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return delegate != null ? delegate.available() : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (delegate != null) {
+      delegate.close();
+    }
+  }
+
+  /**
+   * Returns a stream over the file, or null if it hasn't been created yet. Once the writer has
+   * finished, a missing file is an error.
+   */
+  @Nullable
+  private InputStream getDelegate(boolean writerFinished) throws IOException {
+    if (delegate == null && (writerFinished || file.exists())) {
+      delegate = new FileInputStream(file);
+    }
+    return delegate;
+  }
+
+  private static void waitForMoreData() throws InterruptedIOException {
+    try {
+      Thread.sleep(POLL_INTERVAL_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for file data");
+    }
+  }
+}
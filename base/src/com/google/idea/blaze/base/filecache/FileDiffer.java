@@ -53,6 +53,22 @@ public final class FileDiffer {
     oldState = oldState != null ? oldState : ImmutableMap.of();
 
     // Find changed/new
+    diffUpdated(oldState, newState, updated);
+
+    // Find removed
+    Set<K> removedSet = Sets.newHashSet();
+    removedSet.addAll(oldState.keySet());
+    removedSet.removeAll(newState.keySet());
+    removed.addAll(removedSet);
+  }
+
+  /**
+   * Finds the new or changed entries of {@code newState}, ignoring removed entries. Useful when
+   * {@code newState} is only a subset of the complete state.
+   */
+  public static <K, V> void diffUpdated(
+      @Nullable Map<K, V> oldState, Map<K, V> newState, Collection<K> updated) {
+    oldState = oldState != null ? oldState : ImmutableMap.of();
     for (Map.Entry<K, V> entry : newState.entrySet()) {
       K key = entry.getKey();
       V value = entry.getValue();
@@ -63,11 +79,5 @@ public final class FileDiffer {
         updated.add(key);
       }
     }
-
-    // Find removed
-    Set<K> removedSet = Sets.newHashSet();
-    removedSet.addAll(oldState.keySet());
-    removedSet.removeAll(newState.keySet());
-    removed.addAll(removedSet);
   }
 }
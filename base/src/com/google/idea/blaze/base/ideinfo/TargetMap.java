@@ -20,14 +20,30 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.intellij.model.ProjectData;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
 import javax.annotation.Nullable;
 
-/** Map of configured targets (and soon aspects). */
+/**
+ * Map of configured targets (and soon aspects).
+ *
+ * <p>May be lazily decoded, in which case each target is only decoded on first access. Retrieving
+ * the full {@link #map} or {@link #targets} decodes all remaining targets.
+ */
 public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
-  private final ImmutableMap<TargetKey, TargetIdeInfo> targetMap;
+  // null until every target has been decoded, for lazily decoded target maps
+  @Nullable private volatile ImmutableMap<TargetKey, TargetIdeInfo> targetMap;
+  // null once every target has been decoded
+  @Nullable private volatile LazyTargets lazyTargets;
 
   public TargetMap(ImmutableMap<TargetKey, TargetIdeInfo> targetMap) {
     this.targetMap = targetMap;
+    this.lazyTargets = null;
+  }
+
+  private TargetMap(LazyTargets lazyTargets) {
+    this.targetMap = null;
+    this.lazyTargets = lazyTargets;
   }
 
   public static TargetMap fromProto(ProjectData.TargetMap proto) {
@@ -38,28 +54,57 @@ public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
             .collect(ImmutableMap.toImmutableMap(TargetIdeInfo::getKey, Functions.identity())));
   }
 
+  /**
+   * Returns a target map whose targets are decoded on demand.
+   *
+   * @param keyToIndex the key of each target, in iteration order, mapped to its index
+   * @param decoder decodes the target with the given index, returning null if it can't be decoded.
+   *     Must be thread-safe. May be called more than once for the same index under contention.
+   */
+  public static TargetMap lazilyDecoded(
+      ImmutableMap<TargetKey, Integer> keyToIndex, IntFunction<TargetIdeInfo> decoder) {
+    return new TargetMap(new LazyTargets(keyToIndex, decoder));
+  }
+
   @Override
   public ProjectData.TargetMap toProto() {
     ProjectData.TargetMap.Builder builder = ProjectData.TargetMap.newBuilder();
-    targetMap.values().stream().map(TargetIdeInfo::toProto).forEach(builder::addTargets);
+    map().values().stream().map(TargetIdeInfo::toProto).forEach(builder::addTargets);
     return builder.build();
   }
 
   @Nullable
   public TargetIdeInfo get(TargetKey key) {
-    return targetMap.get(key);
+    ImmutableMap<TargetKey, TargetIdeInfo> map = targetMap;
+    if (map != null) {
+      return map.get(key);
+    }
+    LazyTargets lazy = lazyTargets;
+    return lazy != null ? lazy.get(key) : map().get(key);
   }
 
   public boolean contains(TargetKey key) {
-    return targetMap.containsKey(key);
+    ImmutableMap<TargetKey, TargetIdeInfo> map = targetMap;
+    return map != null ? map.containsKey(key) : get(key) != null;
   }
 
   public ImmutableCollection<TargetIdeInfo> targets() {
-    return targetMap.values();
+    return map().values();
   }
 
   public ImmutableMap<TargetKey, TargetIdeInfo> map() {
-    return targetMap;
+    ImmutableMap<TargetKey, TargetIdeInfo> map = targetMap;
+    if (map != null) {
+      return map;
+    }
+    synchronized (this) {
+      if (targetMap == null) {
+        targetMap = lazyTargets.decodeAll();
+        // release the encoded targets
+        lazyTargets = null;
+      }
+      return targetMap;
+    }
   }
 
   @Override
@@ -71,11 +116,59 @@ public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
       return false;
     }
     TargetMap other = (TargetMap) o;
-    return Objects.equals(targetMap, other.targetMap);
+    return Objects.equals(map(), other.map());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(targetMap);
+    return Objects.hash(map());
+  }
+
+  /** Targets which haven't yet all been decoded. */
+  private static final class LazyTargets {
+    // marks targets which couldn't be decoded
+    private static final Object UNDECODABLE = new Object();
+
+    private final ImmutableMap<TargetKey, Integer> keyToIndex;
+    private final IntFunction<TargetIdeInfo> decoder;
+    private final AtomicReferenceArray<Object> decoded;
+
+    LazyTargets(ImmutableMap<TargetKey, Integer> keyToIndex, IntFunction<TargetIdeInfo> decoder) {
+      this.keyToIndex = keyToIndex;
+      this.decoder = decoder;
+      this.decoded = new AtomicReferenceArray<>(keyToIndex.size());
+    }
+
+    @Nullable
+    TargetIdeInfo get(TargetKey key) {
+      Integer index = keyToIndex.get(key);
+      return index != null ? get(index) : null;
+    }
+
+    @Nullable
+    private TargetIdeInfo get(int index) {
+      Object target = decoded.get(index);
+      if (target == null) {
+        TargetIdeInfo decodedTarget = decoder.apply(index);
+        target = decodedTarget != null ? decodedTarget : UNDECODABLE;
+        if (!decoded.compareAndSet(index, null, target)) {
+          // another thread decoded it first
+          target = decoded.get(index);
+        }
+      }
+      return target != UNDECODABLE ? (TargetIdeInfo) target : null;
+    }
+
+    ImmutableMap<TargetKey, TargetIdeInfo> decodeAll() {
+      ImmutableMap.Builder<TargetKey, TargetIdeInfo> builder = ImmutableMap.builder();
+      keyToIndex.forEach(
+          (key, index) -> {
+            TargetIdeInfo target = get(index);
+            if (target != null) {
+              builder.put(key, target);
+            }
+          });
+      return builder.build();
+    }
   }
 }
@@ -15,18 +15,31 @@
  */
 package com.google.idea.blaze.base.io;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.math.IntMath;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import java.io.File;
+import java.math.RoundingMode;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
-/** Reads file attributes from a list files in parallel. */
+/**
+ * Reads file attributes from a list files in parallel.
+ *
+ * <p>Files are read in batches, one per executor task, since a single file attribute is too cheap
+ * to be worth a task of its own.
+ */
 public class FileAttributeScanner {
 
+  // the smallest batch of files worth a separate executor task
+  private static final int MIN_BATCH_SIZE = 256;
+
   interface AttributeReader<T> {
     T getAttribute(File file);
 
@@ -36,35 +49,37 @@ public class FileAttributeScanner {
   public static <T> ImmutableMap<File, T> readAttributes(
       Iterable<File> fileList, AttributeReader<T> attributeReader, BlazeExecutor executor)
       throws InterruptedException, ExecutionException {
-    List<ListenableFuture<FilePair<T>>> futures = Lists.newArrayList();
-    for (File file : fileList) {
+    List<File> files = ImmutableList.copyOf(fileList);
+    Map<File, T> attributes = new ConcurrentHashMap<>();
+
+    int batchSize =
+        Math.max(
+            MIN_BATCH_SIZE,
+            IntMath.divide(
+                files.size(),
+                Runtime.getRuntime().availableProcessors(),
+                RoundingMode.CEILING));
+    List<ListenableFuture<?>> futures = Lists.newArrayList();
+    for (List<File> batch : Lists.partition(files, batchSize)) {
       futures.add(
           executor.submit(
               () -> {
-                T attribute = attributeReader.getAttribute(file);
-                if (attributeReader.isValid(attribute)) {
-                  return new FilePair<>(file, attribute);
+                for (File file : batch) {
+                  attributes.put(file, attributeReader.getAttribute(file));
                 }
                 return null;
               }));
     }
+    Futures.allAsList(futures).get();
 
+    // retain the original file order
     ImmutableMap.Builder<File, T> result = ImmutableMap.builder();
-    for (FilePair<T> filePair : Futures.allAsList(futures).get()) {
-      if (filePair != null) {
-        result.put(filePair.file, filePair.attribute);
+    for (File file : files) {
+      T attribute = attributes.get(file);
+      if (attribute != null && attributeReader.isValid(attribute)) {
+        result.put(file, attribute);
       }
     }
     return result.build();
   }
-
-  private static class FilePair<T> {
-    public final File file;
-    public final T attribute;
-
-    public FilePair(File file, T attribute) {
-      this.file = file;
-      this.attribute = attribute;
-    }
-  }
 }
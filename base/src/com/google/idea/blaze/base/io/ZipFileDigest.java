@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.io;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.annotation.Nullable;
+
+/**
+ * Digests zip files (jars, aars, etc.) from their central directory, which lists the name, CRC and
+ * size of each entry. This identifies the contents of the file without having to read all of it.
+ */
+public final class ZipFileDigest {
+
+  // the end of central directory record, followed by a comment of up to 64kB
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_ZIP_COMMENT_SIZE = 0xffff;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+  private ZipFileDigest() {}
+
+  /**
+   * Returns a digest of the zip file's length and central directory. Falls back to a digest of its
+   * full contents if the central directory can't be read, e.g. for zip64 files.
+   */
+  public static HashCode digest(File file) throws IOException {
+    try (RandomAccessFile zip = new RandomAccessFile(file, "r")) {
+      byte[] centralDirectory = readCentralDirectory(zip);
+      if (centralDirectory != null) {
+        return Hashing.sha256()
+            .newHasher()
+            .putLong(zip.length())
+            .putBytes(centralDirectory)
+            .hash();
+      }
+    }
+    return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256());
+  }
+
+  @Nullable
+  private static byte[] readCentralDirectory(RandomAccessFile zip) throws IOException {
+    long length = zip.length();
+    int tailSize = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_ZIP_COMMENT_SIZE);
+    byte[] tail = new byte[tailSize];
+    zip.seek(length - tailSize);
+    zip.readFully(tail);
+    ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (buffer.getInt(i) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        continue;
+      }
+      long size = buffer.getInt(i + 12) & 0xffffffffL;
+      long offset = buffer.getInt(i + 16) & 0xffffffffL;
+      if (offset + size > length - tailSize + i) {
+        return null;
+      }
+      byte[] centralDirectory = new byte[(int) size];
+      zip.seek(offset);
+      zip.readFully(centralDirectory);
+      return centralDirectory;
+    }
+    return null;
+  }
+}
@@ -34,6 +34,7 @@ import java.io.OutputStream;
 import java.util.Objects;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 /** The top-level object serialized to cache. */
@@ -70,12 +71,18 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
   @VisibleForTesting
   public static BlazeProjectData fromProto(
       BuildSystem buildSystem, ProjectData.BlazeProjectData proto) {
+    return fromProto(buildSystem, proto, TargetMap.fromProto(proto.getTargetMap()));
+  }
+
+  /** Ignores the proto's target map, using the given one instead. */
+  static BlazeProjectData fromProto(
+      BuildSystem buildSystem, ProjectData.BlazeProjectData proto, TargetMap targetMap) {
     BlazeInfo blazeInfo = BlazeInfo.fromProto(buildSystem, proto.getBlazeInfo());
     WorkspacePathResolver workspacePathResolver =
         WorkspacePathResolver.fromProto(proto.getWorkspacePathResolver());
     return new BlazeProjectData(
         proto.getSyncTime(),
-        TargetMap.fromProto(proto.getTargetMap()),
+        targetMap,
         blazeInfo,
         BlazeVersionData.fromProto(proto.getBlazeVersionData()),
         workspacePathResolver,
@@ -86,15 +93,22 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
 
   @Override
   public ProjectData.BlazeProjectData toProto() {
+    return toProtoBuilderWithoutTargets().setTargetMap(targetMap.toProto()).build();
+  }
+
+  /** Serializes everything except the target map. */
+  ProjectData.BlazeProjectData toProtoWithoutTargets() {
+    return toProtoBuilderWithoutTargets().build();
+  }
+
+  private ProjectData.BlazeProjectData.Builder toProtoBuilderWithoutTargets() {
     return ProjectData.BlazeProjectData.newBuilder()
         .setSyncTime(syncTime)
-        .setTargetMap(targetMap.toProto())
         .setBlazeInfo(blazeInfo.toProto())
         .setBlazeVersionData(blazeVersionData.toProto())
         .setWorkspacePathResolver(workspacePathResolver.toProto())
         .setWorkspaceLanguageSettings(workspaceLanguageSettings.toProto())
-        .setSyncState(syncState.toProto())
-        .build();
+        .setSyncState(syncState.toProto());
   }
 
   public long getSyncTime() {
@@ -143,6 +157,36 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
     }
   }
 
+  /**
+   * Loads project data saved by {@link #saveToDiskSegmented}. The file is memory mapped, and
+   * targets are only decoded on first access.
+   *
+   * @param onCorruptTarget run if a target turns out to be corrupt when it's decoded. The target is
+   *     left out of the target map.
+   * @throws IOException if the file is missing, truncated or corrupt
+   */
+  public static BlazeProjectData loadFromDiskSegmented(
+      BuildSystem buildSystem, File file, Runnable onCorruptTarget) throws IOException {
+    return SegmentedProjectDataFile.read(buildSystem, file, onCorruptTarget);
+  }
+
+  /** Saves the project data uncompressed, with each target serialized separately. */
+  public void saveToDiskSegmented(File file) throws IOException {
+    saveToDiskSegmented(file, null);
+  }
+
+  /**
+   * Saves the project data uncompressed, with each target serialized separately.
+   *
+   * @param previouslySaved the project data most recently saved to this file, if known. If only a
+   *     small fraction of the targets have changed since, only those changes are appended to the
+   *     file's delta log.
+   */
+  public void saveToDiskSegmented(File file, @Nullable BlazeProjectData previouslySaved)
+      throws IOException {
+    SegmentedProjectDataFile.write(this, previouslySaved, file);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (o == this) {
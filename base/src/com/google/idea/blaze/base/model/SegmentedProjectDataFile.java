@@ -0,0 +1,467 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.settings.BuildSystem;
+import com.google.protobuf.repackaged.CodedInputStream;
+import com.google.protobuf.repackaged.Descriptors.FieldDescriptor;
+import com.google.protobuf.repackaged.InvalidProtocolBufferException;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes {@link BlazeProjectData} in an uncompressed, segmented format, which is memory
+ * mapped when read. Targets are stored individually, so that a few can be replaced cheaply, and
+ * are only decoded on first access.
+ *
+ * <p>Layout: magic number, format version, a random ID identifying this file, then the
+ * length-prefixed project data (without targets), the length-prefixed {@link
+ * ProjectData.TargetMapIndex}, and finally each serialized target, back-to-back in index order.
+ * The index holds a CRC32 of each target, checked when it's decoded.
+ *
+ * <p>Saves which change few targets are instead appended to a delta log next to the file, as
+ * length-delimited {@link ProjectData.BlazeProjectDataDelta} records. Each record holds only the
+ * targets and top-level project data fields (or sync state entries) which changed. Once the log
+ * grows too large relative to the file, the next save rewrites the file and discards the log.
+ */
+final class SegmentedProjectDataFile {
+
+  private static final Logger logger = Logger.getInstance(SegmentedProjectDataFile.class);
+
+  private static final long MAGIC = 0x424c415a45504431L; // "BLAZEPD1"
+  private static final int VERSION = 4;
+  // the delta log is compacted once it exceeds this fraction of the base file's size
+  private static final double MAX_DELTA_LOG_FRACTION = 0.25;
+
+  private SegmentedProjectDataFile() {}
+
+  /**
+   * Reads the project data. Targets are decoded lazily, so a corrupt target is only detected on
+   * first access. It's then dropped from the target map, and {@code onCorruptTarget} is run.
+   */
+  static BlazeProjectData read(BuildSystem buildSystem, File file, Runnable onCorruptTarget)
+      throws IOException {
+    ByteBuffer buffer = readBuffer(file);
+    try {
+      if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Unrecognized project data format: " + file);
+      }
+      long baseId = buffer.getLong();
+      ProjectData.BlazeProjectData.Builder header =
+          ProjectData.BlazeProjectData.parseFrom(nextSegment(buffer, buffer.getInt())).toBuilder();
+      ProjectData.TargetMapIndex index =
+          ProjectData.TargetMapIndex.parseFrom(nextSegment(buffer, buffer.getInt()));
+      List<ProjectData.BlazeProjectDataDelta> deltas = readDeltas(deltaLogFile(file), baseId);
+      deltas.forEach(delta -> applyChanges(header, delta));
+      return BlazeProjectData.fromProto(
+          buildSystem,
+          header.build(),
+          readTargetMap(index, buffer.slice(), deltas, file, onCorruptTarget));
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Truncated project data file: " + file, e);
+    }
+  }
+
+  private static TargetMap readTargetMap(
+      ProjectData.TargetMapIndex index,
+      ByteBuffer targets,
+      List<ProjectData.BlazeProjectDataDelta> deltas,
+      File file,
+      Runnable onCorruptTarget)
+      throws IOException {
+    List<IntellijIdeInfo.TargetKey> keys = index.getKeysList();
+    List<Integer> sizes = index.getTargetSizesList();
+    List<Integer> crcs = index.getTargetCrcsList();
+    if (keys.size() != sizes.size() || keys.size() != crcs.size()) {
+      throw new IOException("Corrupt target index in project data file: " + file);
+    }
+    int[] offsets = new int[keys.size() + 1];
+    for (int i = 0; i < keys.size(); i++) {
+      offsets[i + 1] = offsets[i] + sizes.get(i);
+    }
+    if (offsets[keys.size()] > targets.remaining()) {
+      throw new IOException("Truncated project data file: " + file);
+    }
+
+    Map<TargetKey, IntellijIdeInfo.TargetIdeInfo> updated = new LinkedHashMap<>();
+    Set<TargetKey> removed = new HashSet<>();
+    for (ProjectData.BlazeProjectDataDelta delta : deltas) {
+      for (IntellijIdeInfo.TargetIdeInfo target : delta.getUpdatedTargetsList()) {
+        TargetKey key = TargetKey.fromProto(target.getKey());
+        updated.put(key, target);
+        removed.remove(key);
+      }
+      for (IntellijIdeInfo.TargetKey proto : delta.getRemovedTargetsList()) {
+        TargetKey key = TargetKey.fromProto(proto);
+        updated.remove(key);
+        removed.add(key);
+      }
+    }
+
+    // indices past the end of the base file's targets refer to targets from the delta log
+    int baseCount = keys.size();
+    List<IntellijIdeInfo.TargetIdeInfo> deltaTargets = new ArrayList<>();
+    ImmutableMap.Builder<TargetKey, Integer> keyToIndex = ImmutableMap.builder();
+    for (int i = 0; i < baseCount; i++) {
+      TargetKey key = TargetKey.fromProto(keys.get(i));
+      if (removed.contains(key)) {
+        continue;
+      }
+      IntellijIdeInfo.TargetIdeInfo target = updated.remove(key);
+      if (target != null) {
+        keyToIndex.put(key, baseCount + deltaTargets.size());
+        deltaTargets.add(target);
+      } else {
+        keyToIndex.put(key, i);
+      }
+    }
+    for (Map.Entry<TargetKey, IntellijIdeInfo.TargetIdeInfo> entry : updated.entrySet()) {
+      keyToIndex.put(entry.getKey(), baseCount + deltaTargets.size());
+      deltaTargets.add(entry.getValue());
+    }
+    return TargetMap.lazilyDecoded(
+        keyToIndex.build(),
+        i ->
+            i < baseCount
+                ? decodeTarget(targets, offsets[i], offsets[i + 1], crcs.get(i), onCorruptTarget)
+                : TargetIdeInfo.fromProto(deltaTargets.get(i - baseCount)));
+  }
+
+  /**
+   * Returns null for targets {@link TargetIdeInfo#fromProto} doesn't recognize, and for corrupt
+   * targets, after running {@code onCorruptTarget}.
+   */
+  @Nullable
+  private static TargetIdeInfo decodeTarget(
+      ByteBuffer targets, int start, int end, int expectedCrc, Runnable onCorruptTarget) {
+    ByteBuffer target = targets.duplicate();
+    target.limit(end).position(start);
+    CRC32 crc = new CRC32();
+    crc.update(target.duplicate());
+    if ((int) crc.getValue() != expectedCrc) {
+      logger.warn("Corrupt target in project data file: checksum mismatch");
+      onCorruptTarget.run();
+      return null;
+    }
+    try {
+      return TargetIdeInfo.fromProto(IntellijIdeInfo.TargetIdeInfo.parseFrom(target));
+    } catch (IOException e) {
+      logger.warn("Corrupt target in project data file", e);
+      onCorruptTarget.run();
+      return null;
+    }
+  }
+
+  /** Returns the next 'size' bytes of the buffer, advancing past them. */
+  private static ByteBuffer nextSegment(ByteBuffer buffer, int size) {
+    ByteBuffer segment = buffer.slice();
+    segment.limit(size);
+    buffer.position(buffer.position() + size);
+    return segment;
+  }
+
+  private static ByteBuffer readBuffer(File file) throws IOException {
+    if (SystemInfo.isWindows) {
+      // a mapped file can't be replaced on Windows, which would prevent saving the next sync
+      return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // the mapping remains valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /**
+   * Reads the delta log records applying to the base file with the given ID.
+   *
+   * <p>A partially written trailing record, from an interrupted save, is truncated from the log, so
+   * that the next save appends directly after the last complete record. Any other read failure, or
+   * an unparseable record before the end of the log, fails the load.
+   */
+  private static ImmutableList<ProjectData.BlazeProjectDataDelta> readDeltas(
+      File deltaLog, long baseId) throws IOException {
+    if (!deltaLog.exists()) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<ProjectData.BlazeProjectDataDelta> deltas = ImmutableList.builder();
+    long logLength = deltaLog.length();
+    long validLength = 0;
+    try (CountingInputStream in =
+        new CountingInputStream(new BufferedInputStream(new FileInputStream(deltaLog)))) {
+      int firstByte;
+      while ((firstByte = in.read()) != -1) {
+        byte[] record = readRecord(firstByte, in, logLength);
+        if (record == null) {
+          // each record only depends on those before it, so they still describe a consistent
+          // state
+          logger.warn("Truncating incomplete project data delta log record");
+          break;
+        }
+        ProjectData.BlazeProjectDataDelta delta;
+        try {
+          delta = ProjectData.BlazeProjectDataDelta.parseFrom(record);
+        } catch (InvalidProtocolBufferException e) {
+          if (in.getCount() < logLength) {
+            throw new IOException("Corrupt project data delta log: " + deltaLog, e);
+          }
+          logger.warn("Truncating incomplete project data delta log record", e);
+          break;
+        }
+        validLength = in.getCount();
+        // records written against an earlier base file are obsolete
+        if (delta.getBaseId() == baseId) {
+          deltas.add(delta);
+        }
+      }
+    }
+    if (validLength < logLength) {
+      try (FileChannel channel = FileChannel.open(deltaLog.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+      }
+    }
+    return deltas.build();
+  }
+
+  /**
+   * Reads the rest of a length-delimited record, given the first byte of its length. Returns null
+   * if the log ends partway through the record.
+   */
+  @Nullable
+  private static byte[] readRecord(int firstByte, CountingInputStream in, long logLength)
+      throws IOException {
+    int size;
+    try {
+      size = CodedInputStream.readRawVarint32(firstByte, in);
+    } catch (InvalidProtocolBufferException e) {
+      // the log ends partway through the length
+      return null;
+    }
+    if (size < 0 || size > logLength - in.getCount()) {
+      return null;
+    }
+    byte[] record = new byte[size];
+    ByteStreams.readFully(in, record);
+    return record;
+  }
+
+  /**
+   * Applies the project data changes from a delta log record. Fields in the record replace those
+   * in the header, rather than being merged with them.
+   */
+  private static void applyChanges(
+      ProjectData.BlazeProjectData.Builder header, ProjectData.BlazeProjectDataDelta delta) {
+    ProjectData.BlazeProjectData changes = delta.getProjectData();
+    changes
+        .getAllFields()
+        .forEach(
+            (field, value) -> {
+              if (field.getNumber() != ProjectData.BlazeProjectData.SYNC_STATE_FIELD_NUMBER) {
+                header.setField(field, value);
+              }
+            });
+    ProjectData.SyncState.Builder syncState = header.getSyncStateBuilder();
+    changes.getSyncState().getAllFields().forEach(syncState::setField);
+    for (int fieldNumber : delta.getRemovedSyncStateFieldsList()) {
+      FieldDescriptor field = ProjectData.SyncState.getDescriptor().findFieldByNumber(fieldNumber);
+      if (field != null) {
+        syncState.clearField(field);
+      }
+    }
+  }
+
+  /**
+   * Adds the project data fields which differ between the two versions to the delta record. Sync
+   * state entries are compared individually, so unchanged sync data isn't rewritten.
+   */
+  private static void addChanges(
+      ProjectData.BlazeProjectDataDelta.Builder delta,
+      ProjectData.BlazeProjectData previous,
+      ProjectData.BlazeProjectData current) {
+    ProjectData.BlazeProjectData.Builder changes = ProjectData.BlazeProjectData.newBuilder();
+    for (FieldDescriptor field : ProjectData.BlazeProjectData.getDescriptor().getFields()) {
+      int number = field.getNumber();
+      if (number != ProjectData.BlazeProjectData.TARGET_MAP_FIELD_NUMBER
+          && number != ProjectData.BlazeProjectData.SYNC_STATE_FIELD_NUMBER
+          && !previous.getField(field).equals(current.getField(field))) {
+        changes.setField(field, current.getField(field));
+      }
+    }
+    ProjectData.SyncState previousSyncState = previous.getSyncState();
+    ProjectData.SyncState currentSyncState = current.getSyncState();
+    for (FieldDescriptor field : ProjectData.SyncState.getDescriptor().getFields()) {
+      if (!currentSyncState.hasField(field)) {
+        if (previousSyncState.hasField(field)) {
+          delta.addRemovedSyncStateFields(field.getNumber());
+        }
+      } else if (!currentSyncState.getField(field).equals(previousSyncState.getField(field))) {
+        changes.getSyncStateBuilder().setField(field, currentSyncState.getField(field));
+      }
+    }
+    delta.setProjectData(changes);
+  }
+
+  /**
+   * Saves the project data, appending the changes since 'previouslySaved' to the delta log if it's
+   * small enough, otherwise rewriting the full file.
+   */
+  static void write(
+      BlazeProjectData projectData, @Nullable BlazeProjectData previouslySaved, File file)
+      throws IOException {
+    if (previouslySaved == null || !appendDelta(projectData, previouslySaved, file)) {
+      writeFull(projectData, file);
+    }
+  }
+
+  /** Returns false if the full file should be rewritten instead. */
+  private static boolean appendDelta(
+      BlazeProjectData projectData, BlazeProjectData previouslySaved, File file)
+      throws IOException {
+    Long baseId = readBaseId(file);
+    if (baseId == null) {
+      return false;
+    }
+    ImmutableMap<TargetKey, TargetIdeInfo> oldTargets = previouslySaved.getTargetMap().map();
+    ImmutableMap<TargetKey, TargetIdeInfo> newTargets = projectData.getTargetMap().map();
+    ProjectData.BlazeProjectDataDelta.Builder delta =
+        ProjectData.BlazeProjectDataDelta.newBuilder().setBaseId(baseId);
+    addChanges(
+        delta, previouslySaved.toProtoWithoutTargets(), projectData.toProtoWithoutTargets());
+    long deltaLimit = (long) (file.length() * MAX_DELTA_LOG_FRACTION);
+    long deltaSize = delta.getProjectData().getSerializedSize();
+    for (Map.Entry<TargetKey, TargetIdeInfo> entry : newTargets.entrySet()) {
+      // unchanged targets are generally reused between syncs, so this is usually an identity check
+      if (!Objects.equals(oldTargets.get(entry.getKey()), entry.getValue())) {
+        IntellijIdeInfo.TargetIdeInfo target = entry.getValue().toProto();
+        delta.addUpdatedTargets(target);
+        deltaSize += target.getSerializedSize();
+        if (deltaSize > deltaLimit) {
+          return false;
+        }
+      }
+    }
+    for (TargetKey key : oldTargets.keySet()) {
+      if (!newTargets.containsKey(key)) {
+        delta.addRemovedTargets(key.toProto());
+      }
+    }
+    File deltaLog = deltaLogFile(file);
+    ProjectData.BlazeProjectDataDelta record = delta.build();
+    if (deltaLog.length() + record.getSerializedSize() > deltaLimit) {
+      // compact the log into a new base file
+      return false;
+    }
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(deltaLog, true))) {
+      record.writeDelimitedTo(out);
+    }
+    return true;
+  }
+
+  /** Returns the ID of the given base file, or null if it's missing or unrecognized. */
+  @Nullable
+  private static Long readBaseId(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      return in.readLong() == MAGIC && in.readInt() == VERSION ? in.readLong() : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the full project data to a temporary file, then moves it into place, discarding the
+   * delta log. The file is never modified in place, as it may still be mapped by a previously
+   * loaded {@link BlazeProjectData}.
+   */
+  private static void writeFull(BlazeProjectData projectData, File file) throws IOException {
+    ProjectData.TargetMapIndex.Builder index = ProjectData.TargetMapIndex.newBuilder();
+    List<byte[]> targets = new ArrayList<>();
+    for (TargetIdeInfo target : projectData.getTargetMap().targets()) {
+      IntellijIdeInfo.TargetIdeInfo proto = target.toProto();
+      byte[] bytes = proto.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      index
+          .addKeys(proto.getKey())
+          .addTargetSizes(bytes.length)
+          .addTargetCrcs((int) crc.getValue());
+      targets.add(bytes);
+    }
+    byte[] header = projectData.toProtoWithoutTargets().toByteArray();
+    byte[] indexBytes = index.build().toByteArray();
+
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(ThreadLocalRandom.current().nextLong());
+      out.writeInt(header.length);
+      out.write(header);
+      out.writeInt(indexBytes.length);
+      out.write(indexBytes);
+      for (byte[] target : targets) {
+        out.write(target);
+      }
+    }
+    Files.move(
+        tempFile.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    // any remaining records have a different base ID, so are ignored if this fails
+    Files.deleteIfExists(deltaLogFile(file).toPath());
+  }
+
+  private static File deltaLogFile(File file) {
+    return new File(file.getPath() + ".delta");
+  }
+}
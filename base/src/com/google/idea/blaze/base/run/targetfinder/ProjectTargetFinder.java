@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.base.run.targetfinder;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.idea.blaze.base.dependencies.TargetInfo;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
@@ -22,9 +23,11 @@ import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.sync.SyncCache;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.openapi.project.Project;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
@@ -35,22 +38,33 @@ class ProjectTargetFinder implements TargetFinder {
   public Future<TargetInfo> findTarget(Project project, Label label) {
     BlazeProjectData projectData =
         BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-    TargetInfo target = projectData != null ? findTarget(projectData.getTargetMap(), label) : null;
+    TargetInfo target =
+        projectData != null ? findTarget(project, projectData.getTargetMap(), label) : null;
     return Futures.immediateFuture(target);
   }
 
   @Nullable
-  private static TargetInfo findTarget(TargetMap map, Label label) {
+  private static TargetInfo findTarget(Project project, TargetMap map, Label label) {
     // look for a plain target first
     TargetIdeInfo target = map.get(TargetKey.forPlainTarget(label));
     if (target != null) {
       return target.toTargetInfo();
     }
     // otherwise just return any matching target
-    return map.targets().stream()
-        .filter(t -> Objects.equals(label, t.getKey().getLabel()))
-        .findFirst()
-        .map(TargetIdeInfo::toTargetInfo)
-        .orElse(null);
+    ImmutableMap<Label, TargetKey> labelIndex =
+        SyncCache.getInstance(project)
+            .get(ProjectTargetFinder.class, (p, projectData) -> buildLabelIndex(projectData));
+    TargetKey key = labelIndex != null ? labelIndex.get(label) : null;
+    target = key != null ? map.get(key) : null;
+    return target != null ? target.toTargetInfo() : null;
+  }
+
+  /** Maps each label to the first target in the target map with that label. */
+  private static ImmutableMap<Label, TargetKey> buildLabelIndex(BlazeProjectData projectData) {
+    Map<Label, TargetKey> index = new HashMap<>();
+    for (TargetKey key : projectData.getTargetMap().map().keySet()) {
+      index.putIfAbsent(key.getLabel(), key);
+    }
+    return ImmutableMap.copyOf(index);
   }
 }
@@ -15,10 +15,15 @@
  */
 package com.google.idea.blaze.base.run.testmap;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
@@ -38,23 +43,48 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.function.Predicate;
 
-/** Filters a {@link TargetMap} according to a given filter. */
+/**
+ * Filters a {@link TargetMap} according to a given filter.
+ *
+ * <p>The filtered targets reachable from each source target are memoized, so instances should be
+ * discarded on sync (e.g. by storing them in the {@link
+ * com.google.idea.blaze.base.sync.SyncCache}).
+ */
 public class FilteredTargetMap {
 
+  // precomputing the reachable targets for every source target would take space quadratic in the
+  // number of targets, so only the most recently queried ones are kept
+  private static final int MAX_CACHED_SOURCE_TARGETS = 2048;
+
   private final Project project;
   private final Multimap<File, TargetKey> rootsMap;
   private final TargetMap targetMap;
   private final Predicate<TargetIdeInfo> filter;
+  private final LoadingCache<TargetKey, ImmutableSet<TargetIdeInfo>> reachableTargets;
 
   public FilteredTargetMap(
       Project project,
       ArtifactLocationDecoder artifactLocationDecoder,
       TargetMap targetMap,
       Predicate<TargetIdeInfo> filter) {
+    this(project, artifactLocationDecoder, targetMap, filter, MAX_CACHED_SOURCE_TARGETS);
+  }
+
+  @VisibleForTesting
+  FilteredTargetMap(
+      Project project,
+      ArtifactLocationDecoder artifactLocationDecoder,
+      TargetMap targetMap,
+      Predicate<TargetIdeInfo> filter,
+      int maxCachedSourceTargets) {
     this.project = project;
     this.rootsMap = createRootsMap(artifactLocationDecoder, targetMap.targets());
     this.targetMap = targetMap;
     this.filter = filter;
+    this.reachableTargets =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxCachedSourceTargets)
+            .build(CacheLoader.from(this::findReachableTargets));
   }
 
   public ImmutableSet<TargetIdeInfo> targetsForSourceFile(File sourceFile) {
@@ -64,22 +94,35 @@ public class FilteredTargetMap {
   public ImmutableSet<TargetIdeInfo> targetsForSourceFiles(List<File> sourceFiles) {
     BlazeProjectData blazeProjectData =
         BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-    if (blazeProjectData != null) {
-      return targetsForSourceFilesImpl(ReverseDependencyMap.get(project), sourceFiles);
+    if (blazeProjectData == null) {
+      return ImmutableSet.of();
     }
-    return ImmutableSet.of();
-  }
-
-  private ImmutableSet<TargetIdeInfo> targetsForSourceFilesImpl(
-      ImmutableMultimap<TargetKey, TargetKey> rdepsMap, List<File> sourceFiles) {
-    ImmutableSet.Builder<TargetIdeInfo> result = ImmutableSet.builder();
     Set<TargetKey> roots =
         sourceFiles.stream()
             .flatMap(f -> rootsMap.get(f).stream())
             .collect(ImmutableSet.toImmutableSet());
+    if (roots.size() == 1) {
+      return reachableTargets.getUnchecked(Iterables.getOnlyElement(roots));
+    }
+    ImmutableSet.Builder<TargetIdeInfo> result = ImmutableSet.builder();
+    for (TargetKey root : roots) {
+      result.addAll(reachableTargets.getUnchecked(root));
+    }
+    return result.build();
+  }
+
+  /** Whether the targets reachable from the given source target are currently memoized. */
+  @VisibleForTesting
+  boolean isCached(TargetKey sourceTarget) {
+    return reachableTargets.getIfPresent(sourceTarget) != null;
+  }
 
+  /** Returns the targets passing the filter which are reachable via reverse dependencies. */
+  private ImmutableSet<TargetIdeInfo> findReachableTargets(TargetKey root) {
+    ImmutableMultimap<TargetKey, TargetKey> rdepsMap = ReverseDependencyMap.get(project);
+    ImmutableSet.Builder<TargetIdeInfo> result = ImmutableSet.builder();
     Queue<TargetKey> todo = Queues.newArrayDeque();
-    todo.addAll(roots);
+    todo.add(root);
     Set<TargetKey> seen = Sets.newHashSet();
     while (!todo.isEmpty()) {
       TargetKey targetKey = todo.remove();
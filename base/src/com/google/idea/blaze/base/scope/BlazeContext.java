@@ -35,11 +35,12 @@ public class BlazeContext {
 
   boolean isEnding;
 
-  boolean isCancelled;
+  // may be set by child contexts running on other threads
+  volatile boolean isCancelled;
 
   private int holdCount;
 
-  private boolean hasErrors;
+  private volatile boolean hasErrors;
 
   private boolean propagatesErrors = true;
 
@@ -95,6 +95,7 @@ import com.google.idea.blaze.base.sync.sharding.BlazeBuildTargetSharder;
 import com.google.idea.blaze.base.sync.sharding.BlazeBuildTargetSharder.ShardedTargetsResult;
 import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
 import com.google.idea.blaze.base.sync.sharding.SuggestBuildShardingNotification;
+import com.google.idea.blaze.base.sync.sharding.TargetShardingHistory;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoderImpl;
 import com.google.idea.blaze.base.sync.workspace.WorkingSet;
@@ -139,6 +140,9 @@ final class BlazeSyncTask implements Progressive {
   private static final Logger logger = Logger.getInstance(BlazeSyncTask.class);
   private static final BoolExperiment saveStateDuringRootsChange =
       new BoolExperiment("blaze.save.state.during.roots.change", true);
+  // builds the ide-info and ide-resolve output groups in a single blaze invocation per shard
+  private static final BoolExperiment combineInfoAndResolveBuilds =
+      new BoolExperiment("blaze.sync.combine.info.and.resolve.builds", false);
 
   private final Project project;
   private final BlazeImportSettings importSettings;
@@ -423,9 +427,17 @@ final class BlazeSyncTask implements Progressive {
       printTargets(context, syncParams.title, syncParams.targetExpressions);
     }
 
+    TargetShardingHistory shardingHistory =
+        previousSyncState != null ? previousSyncState.get(TargetShardingHistory.class) : null;
     ShardedTargetsResult shardedTargetsResult =
         BlazeBuildTargetSharder.expandAndShardTargets(
-            project, context, workspaceRoot, projectViewSet, workspacePathResolver, targets);
+            project,
+            context,
+            workspaceRoot,
+            projectViewSet,
+            workspacePathResolver,
+            targets,
+            shardingHistory);
     if (shardedTargetsResult.buildResult.status == BuildResult.Status.FATAL_ERROR) {
       return SyncResult.FAILURE;
     }
@@ -435,6 +447,7 @@ final class BlazeSyncTask implements Progressive {
 
     BlazeConfigurationHandler configHandler = new BlazeConfigurationHandler(blazeInfo);
     boolean mergeWithOldState = !syncParams.addProjectViewTargets;
+    boolean combinedBuild = combineInfoAndResolveBuilds.getValue();
     BlazeIdeInterface.IdeResult ideQueryResult =
         getIdeQueryResult(
             project,
@@ -449,7 +462,8 @@ final class BlazeSyncTask implements Progressive {
             syncStateBuilder,
             previousSyncState,
             mergeWithOldState,
-            oldBlazeProjectData != null ? oldBlazeProjectData.getTargetMap() : null);
+            oldBlazeProjectData != null ? oldBlazeProjectData.getTargetMap() : null,
+            combinedBuild);
     if (context.isCancelled()) {
       return SyncResult.CANCELLED;
     }
@@ -469,15 +483,17 @@ final class BlazeSyncTask implements Progressive {
     BuildResult ideInfoResult = ideQueryResult.buildResult;
 
     BuildResult ideResolveResult =
-        resolveIdeArtifacts(
-            project,
-            context,
-            workspaceRoot,
-            projectViewSet,
-            blazeInfo,
-            blazeVersionData,
-            workspaceLanguageSettings,
-            shardedTargets);
+        combinedBuild
+            ? ideQueryResult.invocationResult
+            : resolveIdeArtifacts(
+                project,
+                context,
+                workspaceRoot,
+                projectViewSet,
+                blazeInfo,
+                blazeVersionData,
+                workspaceLanguageSettings,
+                shardedTargets);
     if (ideResolveResult.status == BuildResult.Status.FATAL_ERROR) {
       context.setHasError();
       if (ideResolveResult.outOfMemory()) {
@@ -489,6 +505,17 @@ final class BlazeSyncTask implements Progressive {
       return SyncResult.CANCELLED;
     }
 
+    TargetShardingHistory newShardingHistory =
+        TargetShardingHistory.update(
+            shardingHistory,
+            shardedTargets,
+            ImportRoots.builder(workspaceRoot, importSettings.getBuildSystem())
+                .add(projectViewSet)
+                .build());
+    if (newShardingHistory != null) {
+      syncStateBuilder.put(newShardingHistory);
+    }
+
     Scope.push(
         context,
         (childContext) -> {
@@ -772,7 +799,8 @@ final class BlazeSyncTask implements Progressive {
       Builder syncStateBuilder,
       @Nullable SyncState previousSyncState,
       boolean mergeWithOldState,
-      @Nullable TargetMap oldTargetMap) {
+      @Nullable TargetMap oldTargetMap,
+      boolean resolveIdeArtifacts) {
 
     return Scope.push(
         parentContext,
@@ -796,7 +824,8 @@ final class BlazeSyncTask implements Progressive {
               syncStateBuilder,
               previousSyncState,
               mergeWithOldState,
-              oldTargetMap);
+              oldTargetMap,
+              resolveIdeArtifacts);
         });
   }
 
@@ -16,26 +16,54 @@
 package com.google.idea.blaze.base.sync;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Maps;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
-/** Computes a cache on the project data. */
+/**
+ * Computes a cache on the project data.
+ *
+ * <p>Each entry is computed at most once per sync, and computing one entry never blocks readers of
+ * another.
+ */
 public class SyncCache {
+  private static final Logger logger = Logger.getInstance(SyncCache.class);
+
   /** Computes a value based on the sync project data. */
   public interface SyncCacheComputable<T> {
     T compute(Project project, BlazeProjectData projectData);
   }
 
+  /**
+   * Precomputes frequently used sync cache entries on a pooled thread as soon as sync completes,
+   * so the first reader doesn't have to wait for them. Not run for startup syncs.
+   */
+  public interface Precomputer {
+    ExtensionPointName<Precomputer> EP_NAME =
+        ExtensionPointName.create("com.google.idea.blaze.SyncCachePrecomputer");
+
+    /** Computes the sync cache entries, typically by reading them via {@link SyncCache#get}. */
+    void precompute(Project project);
+  }
+
   private final Project project;
-  private final Map<Object, Object> cache = Maps.newHashMap();
+  private final ConcurrentMap<Object, Entry<?>> cache = new ConcurrentHashMap<>();
 
   public SyncCache(Project project) {
     this.project = project;
@@ -48,22 +76,92 @@ public class SyncCache {
   /** Computes a value derived from the sync project data and caches it until the next sync. */
   @Nullable
   @SuppressWarnings("unchecked")
-  public synchronized <T> T get(Object key, SyncCacheComputable<T> computable) {
-    T value = (T) cache.get(key);
-    if (value == null) {
+  public <T> T get(Object key, SyncCacheComputable<T> computable) {
+    Entry<T> entry = (Entry<T>) cache.computeIfAbsent(key, k -> new Entry<>());
+    return entry.get(project, computable);
+  }
+
+  @VisibleForTesting
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * A single cache entry. The first reader computes it without holding any lock, while concurrent
+   * readers wait for that computation. A computable may read other entries, but never (even
+   * indirectly) the one it is computing.
+   */
+  private static class Entry<T> {
+    private final AtomicReference<FutureTask<T>> task = new AtomicReference<>();
+    // the thread running the current task, used to detect an entry being read while computing it
+    @Nullable private volatile Thread computingThread;
+
+    @Nullable
+    T get(Project project, SyncCacheComputable<T> computable) {
+      while (true) {
+        FutureTask<T> task = this.task.get();
+        if (task == null) {
+          FutureTask<T> newTask = new FutureTask<>(() -> compute(project, computable));
+          if (this.task.compareAndSet(null, newTask)) {
+            return run(newTask);
+          }
+          continue;
+        }
+        if (computingThread == Thread.currentThread()) {
+          throw new IllegalStateException("Sync cache entry read while it is being computed");
+        }
+        try {
+          return Futures.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+          // the computing thread reports its own failure (e.g. its cancellation), so try again
+          this.task.compareAndSet(task, null);
+        }
+      }
+    }
+
+    @Nullable
+    private T run(FutureTask<T> task) {
+      computingThread = Thread.currentThread();
+      try {
+        task.run();
+      } finally {
+        computingThread = null;
+      }
+      try {
+        T value = Futures.getDone(task);
+        if (value == null) {
+          // there's no project data yet, so compute the entry again on the next read
+          this.task.compareAndSet(task, null);
+        }
+        return value;
+      } catch (ExecutionException e) {
+        this.task.compareAndSet(task, null);
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    @Nullable
+    private static <T> T compute(Project project, SyncCacheComputable<T> computable) {
       BlazeProjectData blazeProjectData =
           BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-      if (blazeProjectData != null) {
-        value = computable.compute(project, blazeProjectData);
-        cache.put(key, value);
-      }
+      return blazeProjectData != null ? computable.compute(project, blazeProjectData) : null;
     }
-    return value;
   }
 
-  @VisibleForTesting
-  public synchronized void clear() {
-    cache.clear();
+  private static void precompute(Project project) {
+    for (Precomputer precomputer : Precomputer.EP_NAME.getExtensions()) {
+      if (project.isDisposed()) {
+        return;
+      }
+      try {
+        precomputer.precompute(project);
+      } catch (ProcessCanceledException e) {
+        // the entry will be computed on first use instead
+      } catch (RuntimeException e) {
+        logger.warn("Failed to precompute sync cache entry", e);
+      }
+    }
   }
 
   static class ClearSyncCache implements SyncListener {
@@ -78,6 +176,11 @@ public class SyncCache {
         SyncResult syncResult) {
       SyncCache syncCache = getInstance(project);
       syncCache.clear();
+      // on startup the project data was just loaded from disk, with targets decoded on demand.
+      // Precomputing would decode every target, so entries are computed on first use instead.
+      if (syncMode != SyncMode.STARTUP && Precomputer.EP_NAME.getExtensions().length > 0) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> precompute(project));
+      }
     }
   }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.filecache.FileDiffer;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import com.google.idea.blaze.base.prefetch.PrefetchService;
+import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy;
+import com.google.idea.blaze.base.sync.projectview.ImportRoots;
+import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
+import com.google.idea.common.concurrency.ConcurrencyUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Diffs, prefetches and parses the ide-info output files of each build shard as soon as they're
+ * available, so this work overlaps with blaze building the rest of the shard, and the subsequent
+ * shards.
+ *
+ * <p>Batches of files are ingested one at a time, in the order they're submitted, on a dedicated
+ * thread. The per-file work is fanned out to the {@link BlazeExecutor}.
+ *
+ * <p>Streamed build events each report only a few files, so files are coalesced into batches
+ * before being diffed and prefetched, rather than making a round trip per build event.
+ */
+final class AspectOutputIngester {
+
+  // a batch is queued once it has this many files, or its first file has waited this long
+  private static final int MIN_BATCH_SIZE = 1000;
+  private static final long MAX_BATCH_DELAY_MILLIS = 1000;
+
+  /** An aspect output file, and the target parsed from it. */
+  static class TargetFilePair {
+    final File file;
+    @Nullable final TargetIdeInfo target;
+
+    TargetFilePair(File file, @Nullable TargetIdeInfo target) {
+      this.file = file;
+      this.target = target;
+    }
+  }
+
+  /** The combined result of ingesting every shard's output. */
+  static class IngestedOutput {
+    /** The modification times of every ide-info file built, across all shards. */
+    final ImmutableMap<File, Long> fileState;
+    /** The new or changed ide-info files, relative to the previous sync. */
+    final ImmutableList<File> updatedFiles;
+    /** The ide-info files present in the previous sync, but not built this time. */
+    final ImmutableList<File> removedFiles;
+    /** The targets parsed from the updated files, in build order. */
+    final ImmutableList<TargetFilePair> updatedTargets;
+
+    IngestedOutput(
+        ImmutableMap<File, Long> fileState,
+        ImmutableList<File> updatedFiles,
+        ImmutableList<File> removedFiles,
+        ImmutableList<TargetFilePair> updatedTargets) {
+      this.fileState = fileState;
+      this.updatedFiles = updatedFiles;
+      this.removedFiles = removedFiles;
+      this.updatedTargets = updatedTargets;
+    }
+  }
+
+  /** Thrown when the modification times of the ide-info output files can't be read. */
+  static class FileDiffException extends Exception {
+    FileDiffException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  private static class ShardOutput {
+    final ImmutableMap<File, Long> fileState;
+    final ImmutableList<File> updatedFiles;
+    final ImmutableList<TargetFilePair> updatedTargets;
+
+    ShardOutput(
+        ImmutableMap<File, Long> fileState,
+        ImmutableList<File> updatedFiles,
+        ImmutableList<TargetFilePair> updatedTargets) {
+      this.fileState = fileState;
+      this.updatedFiles = updatedFiles;
+      this.updatedTargets = updatedTargets;
+    }
+  }
+
+  private final ListeningExecutorService ingestionExecutor =
+      MoreExecutors.listeningDecorator(
+          Executors.newSingleThreadExecutor(
+              ConcurrencyUtil.namedDaemonThreadPoolFactory(AspectOutputIngester.class)));
+  @GuardedBy("shardOutputs")
+  private final List<ListenableFuture<ShardOutput>> shardOutputs = new ArrayList<>();
+  // files not yet queued for ingestion, and when the first of them was added
+  @GuardedBy("shardOutputs")
+  private final List<File> pendingFiles = new ArrayList<>();
+
+  @GuardedBy("shardOutputs")
+  private long pendingSinceMillis;
+  // only accessed from the ingestion thread
+  private final Set<File> ingestedFiles = new HashSet<>();
+
+  @Nullable private final ImmutableMap<File, Long> prevFileState;
+  private final WorkspaceLanguageSettings workspaceLanguageSettings;
+  private final ImportRoots importRoots;
+  private final AspectStrategy aspectStrategy;
+  private final int minBatchSize;
+  private final LongSupplier clock;
+
+  final AtomicLong totalSizeLoaded = new AtomicLong(0);
+  final Set<LanguageClass> ignoredLanguages = Sets.newConcurrentHashSet();
+
+  AspectOutputIngester(
+      @Nullable ImmutableMap<File, Long> prevFileState,
+      WorkspaceLanguageSettings workspaceLanguageSettings,
+      ImportRoots importRoots,
+      AspectStrategy aspectStrategy) {
+    this(
+        prevFileState,
+        workspaceLanguageSettings,
+        importRoots,
+        aspectStrategy,
+        MIN_BATCH_SIZE,
+        System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  AspectOutputIngester(
+      @Nullable ImmutableMap<File, Long> prevFileState,
+      WorkspaceLanguageSettings workspaceLanguageSettings,
+      ImportRoots importRoots,
+      AspectStrategy aspectStrategy,
+      int minBatchSize,
+      LongSupplier clock) {
+    this.prevFileState = prevFileState;
+    this.workspaceLanguageSettings = workspaceLanguageSettings;
+    this.importRoots = importRoots;
+    this.aspectStrategy = aspectStrategy;
+    this.minBatchSize = minBatchSize;
+    this.clock = clock;
+  }
+
+  /**
+   * Adds ide-info output files for ingestion: either a whole shard's, or those reported so far by
+   * a running build. They're queued once enough files have been added, or the earliest added has
+   * waited long enough. Returns immediately. May be called from any thread.
+   */
+  void ingestShard(Collection<File> files) {
+    if (files.isEmpty()) {
+      return;
+    }
+    synchronized (shardOutputs) {
+      long now = clock.getAsLong();
+      if (pendingFiles.isEmpty()) {
+        pendingSinceMillis = now;
+      }
+      pendingFiles.addAll(files);
+      if (pendingFiles.size() >= minBatchSize
+          || now - pendingSinceMillis >= MAX_BATCH_DELAY_MILLIS) {
+        queuePendingFiles();
+      }
+    }
+  }
+
+  @GuardedBy("shardOutputs")
+  private void queuePendingFiles() {
+    if (pendingFiles.isEmpty()) {
+      return;
+    }
+    ImmutableList<File> batch = ImmutableList.copyOf(pendingFiles);
+    pendingFiles.clear();
+    shardOutputs.add(ingestionExecutor.submit(() -> ingest(batch)));
+  }
+
+  /**
+   * Queues any remaining files, and returns a future which completes once every file added so far
+   * has been ingested. No more files may be added after this is called.
+   */
+  ListenableFuture<IngestedOutput> finish() {
+    synchronized (shardOutputs) {
+      queuePendingFiles();
+      ingestionExecutor.shutdown();
+      return Futures.transform(
+          Futures.allAsList(shardOutputs), this::combine, MoreExecutors.directExecutor());
+    }
+  }
+
+  /** Abandons any outstanding ingestion work. */
+  void cancel() {
+    synchronized (shardOutputs) {
+      pendingFiles.clear();
+      shardOutputs.forEach(future -> future.cancel(true));
+      ingestionExecutor.shutdownNow();
+    }
+  }
+
+  private ShardOutput ingest(List<File> files)
+      throws InterruptedException, ExecutionException, FileDiffException {
+    // shards overlap in their transitive dependencies, so only ingest each file once
+    List<File> newFiles = files.stream().filter(ingestedFiles::add).collect(Collectors.toList());
+    ImmutableMap<File, Long> fileState;
+    try {
+      fileState = FileDiffer.readFileState(newFiles);
+    } catch (ExecutionException e) {
+      throw new FileDiffException(e);
+    }
+    List<File> updatedFiles = new ArrayList<>();
+    FileDiffer.diffUpdated(prevFileState, fileState, updatedFiles);
+
+    PrefetchService.getInstance().prefetchFiles(updatedFiles, true, false).get();
+
+    ListeningExecutorService executor = BlazeExecutor.getInstance().getExecutor();
+    List<ListenableFuture<TargetFilePair>> futures = new ArrayList<>();
+    for (File file : updatedFiles) {
+      futures.add(executor.submit(() -> readTargetFile(file)));
+    }
+    return new ShardOutput(
+        fileState,
+        ImmutableList.copyOf(updatedFiles),
+        ImmutableList.copyOf(Futures.allAsList(futures).get()));
+  }
+
+  private TargetFilePair readTargetFile(File file) throws IOException {
+    totalSizeLoaded.addAndGet(file.length());
+    IntellijIdeInfo.TargetIdeInfo message = aspectStrategy.readAspectFile(file);
+    return new TargetFilePair(file, protoToTarget(message));
+  }
+
+  @Nullable
+  private TargetIdeInfo protoToTarget(IntellijIdeInfo.TargetIdeInfo message) {
+    Kind kind = Kind.fromProto(message);
+    if (kind == null) {
+      return null;
+    }
+    if (workspaceLanguageSettings.isLanguageActive(kind.getLanguageClass())) {
+      return TargetIdeInfo.fromProto(message);
+    }
+    TargetKey key = message.hasKey() ? TargetKey.fromProto(message.getKey()) : null;
+    if (key != null && importRoots.importAsSource(key.getLabel())) {
+      ignoredLanguages.add(kind.getLanguageClass());
+    }
+    return null;
+  }
+
+  private IngestedOutput combine(List<ShardOutput> shards) {
+    ImmutableMap.Builder<File, Long> fileState = ImmutableMap.builder();
+    ImmutableList.Builder<File> updatedFiles = ImmutableList.builder();
+    ImmutableList.Builder<TargetFilePair> updatedTargets = ImmutableList.builder();
+    for (ShardOutput shard : shards) {
+      fileState.putAll(shard.fileState);
+      updatedFiles.addAll(shard.updatedFiles);
+      updatedTargets.addAll(shard.updatedTargets);
+    }
+    ImmutableMap<File, Long> combinedFileState = fileState.build();
+    ImmutableList<File> removedFiles =
+        prevFileState == null
+            ? ImmutableList.of()
+            : prevFileState.keySet().stream()
+                .filter(file -> !combinedFileState.containsKey(file))
+                .collect(toImmutableList());
+    return new IngestedOutput(
+        combinedFileState, updatedFiles.build(), removedFiles, updatedTargets.build());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import com.google.common.collect.ImmutableBiMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/** A {@link MapUpdater} for a bimap, keeping values unique. */
+final class BiMapUpdater<K, V> extends MapUpdater<K, V> {
+
+  // the latest key each value was put with. May be stale, so is checked against the forward map.
+  private final Map<V, K> updatedInverse = new HashMap<>();
+
+  BiMapUpdater(ImmutableBiMap<K, V> base) {
+    super(base);
+  }
+
+  /** Returns the key currently mapped to the given value, if any. */
+  @Nullable
+  K getKey(V value) {
+    K key = updatedInverse.get(value);
+    if (key != null && value.equals(get(key))) {
+      return key;
+    }
+    key = ((ImmutableBiMap<K, V>) base).inverse().get(value);
+    return key != null && value.equals(get(key)) ? key : null;
+  }
+
+  /**
+   * Equivalent to {@link com.google.common.collect.BiMap#forcePut}: any existing entry with the
+   * same value is removed.
+   */
+  void forcePut(K key, V value) {
+    K previousKey = getKey(value);
+    if (previousKey != null && !Objects.equals(previousKey, key)) {
+      remove(previousKey);
+    }
+    put(key, value);
+    updatedInverse.put(value, key);
+  }
+
+  @Override
+  ImmutableBiMap<K, V> build() {
+    if (!hasChanges()) {
+      return (ImmutableBiMap<K, V>) base;
+    }
+    ImmutableBiMap.Builder<K, V> builder = ImmutableBiMap.builder();
+    forEachUpdatedEntry(builder::put);
+    return builder.build();
+  }
+}
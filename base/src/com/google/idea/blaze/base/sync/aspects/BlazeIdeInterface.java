@@ -40,11 +40,23 @@ public interface BlazeIdeInterface {
   /** The result of the ide operation */
   class IdeResult {
     @Nullable public final TargetMap targetMap;
+    /** The result of building the ide-info output group. */
     public final BuildResult buildResult;
+    /**
+     * The result of the blaze invocations as a whole, including the ide-resolve output group if it
+     * was built alongside the ide-info output group.
+     */
+    public final BuildResult invocationResult;
 
     public IdeResult(@Nullable TargetMap targetMap, BuildResult buildResult) {
+      this(targetMap, buildResult, buildResult);
+    }
+
+    public IdeResult(
+        @Nullable TargetMap targetMap, BuildResult buildResult, BuildResult invocationResult) {
       this.targetMap = targetMap;
       this.buildResult = buildResult;
+      this.invocationResult = invocationResult;
     }
   }
 
@@ -52,6 +64,8 @@ public interface BlazeIdeInterface {
    * Queries blaze to update the rule map for the given targets.
    *
    * @param mergeWithOldState If true, we overlay the given targets to the current rule map.
+   * @param resolveIdeArtifacts If true, the ide-resolve output group is built in the same blaze
+   *     invocations, in which case callers needn't call {@link #resolveIdeArtifacts}.
    * @return A tuple of the latest updated rule map and the result of the operation.
    */
   IdeResult updateTargetMap(
@@ -68,7 +82,8 @@ public interface BlazeIdeInterface {
       SyncState.Builder syncStateBuilder,
       @Nullable SyncState previousSyncState,
       boolean mergeWithOldState,
-      @Nullable TargetMap oldTargetMap);
+      @Nullable TargetMap oldTargetMap,
+      boolean resolveIdeArtifacts);
 
   /**
    * Attempts to resolve the requested ide artifacts.
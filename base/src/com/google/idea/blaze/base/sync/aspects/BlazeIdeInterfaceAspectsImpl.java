@@ -15,20 +15,17 @@
  */
 package com.google.idea.blaze.base.sync.aspects;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
 import com.google.idea.blaze.base.async.FutureUtil;
-import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.async.process.LineProcessingOutputStream;
 import com.google.idea.blaze.base.bazel.BuildSystemProvider;
@@ -37,20 +34,20 @@ import com.google.idea.blaze.base.command.BlazeCommandName;
 import com.google.idea.blaze.base.command.BlazeFlags;
 import com.google.idea.blaze.base.command.BlazeInvocationContext;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelper;
+import com.google.idea.blaze.base.command.buildresult.BuildResultHelper.BuildArtifactStream;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelper.GetArtifactsException;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelperProvider;
 import com.google.idea.blaze.base.command.info.BlazeConfigurationHandler;
 import com.google.idea.blaze.base.command.info.BlazeInfo;
 import com.google.idea.blaze.base.console.BlazeConsoleLineProcessorProvider;
-import com.google.idea.blaze.base.filecache.FileDiffer;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.lang.AdditionalLanguagesHelper;
 import com.google.idea.blaze.base.model.BlazeVersionData;
 import com.google.idea.blaze.base.model.SyncState;
-import com.google.idea.blaze.base.model.primitives.Kind;
 import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import com.google.idea.blaze.base.model.primitives.Label;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
 import com.google.idea.blaze.base.prefetch.PrefetchFileSource;
@@ -63,9 +60,14 @@ import com.google.idea.blaze.base.scope.ScopedFunction;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.PerformanceWarning;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
+import com.google.idea.blaze.base.scope.output.StatusOutput;
 import com.google.idea.blaze.base.scope.scopes.TimingScope;
 import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import com.google.idea.blaze.base.scope.scopes.TimingScopeListener;
 import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.sync.aspects.AspectOutputIngester.FileDiffException;
+import com.google.idea.blaze.base.sync.aspects.AspectOutputIngester.IngestedOutput;
+import com.google.idea.blaze.base.sync.aspects.AspectOutputIngester.TargetFilePair;
 import com.google.idea.blaze.base.sync.aspects.BuildResult.Status;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy.OutputGroup;
@@ -73,7 +75,9 @@ import com.google.idea.blaze.base.sync.projectview.ImportRoots;
 import com.google.idea.blaze.base.sync.projectview.LanguageSupport;
 import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
 import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
+import com.google.idea.blaze.base.sync.sharding.ShardedTargetList.ShardInvocation;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
@@ -84,13 +88,15 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import javax.annotation.Nullable;
@@ -100,6 +106,9 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
 
   private static final Logger logger = Logger.getInstance(BlazeIdeInterfaceAspectsImpl.class);
 
+  private static final BoolExperiment streamBuildEvents =
+      new BoolExperiment("blaze.sync.stream.build.events", true);
+
   @Override
   public IdeResult updateTargetMap(
       Project project,
@@ -115,7 +124,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       SyncState.Builder syncStateBuilder,
       @Nullable SyncState previousSyncState,
       boolean mergeWithOldState,
-      @Nullable TargetMap oldTargetMap) {
+      @Nullable TargetMap oldTargetMap,
+      boolean resolveIdeArtifacts) {
     BlazeIdeInterfaceState prevState =
         previousSyncState != null ? previousSyncState.get(BlazeIdeInterfaceState.class) : null;
 
@@ -134,65 +144,64 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       oldTargetMap = null;
     }
 
-    IdeInfoResult ideInfoResult =
-        getIdeInfo(
-            project,
-            context,
-            workspaceRoot,
-            projectViewSet,
-            blazeInfo,
-            workspaceLanguageSettings.getActiveLanguages(),
-            shardedTargets,
-            aspectStrategy);
-    context.output(PrintOutput.log("ide-info result: " + ideInfoResult.buildResult.status));
-    if (ideInfoResult.buildResult.status == BuildResult.Status.FATAL_ERROR) {
-      return new IdeResult(oldTargetMap, ideInfoResult.buildResult);
-    }
-    // If there was a partial error, make a best-effort attempt to sync. Retain
-    // any old state that we have in an attempt not to lose too much code.
-    if (ideInfoResult.buildResult.status == BuildResult.Status.BUILD_ERROR) {
-      mergeWithOldState = true;
-    }
+    ImportRoots importRoots =
+        ImportRoots.builder(workspaceRoot, Blaze.getBuildSystem(project))
+            .add(projectViewSet)
+            .build();
 
-    Collection<File> fileList = ideInfoResult.files;
-    List<File> updatedFiles = Lists.newArrayList();
-    List<File> removedFiles = Lists.newArrayList();
-    ImmutableMap<File, Long> fileState;
+    // read the output of each shard while blaze builds the next one
+    AspectOutputIngester ingester =
+        new AspectOutputIngester(
+            prevState != null ? prevState.fileState : null,
+            workspaceLanguageSettings,
+            importRoots,
+            aspectStrategy);
+    IdeInfoResult ideInfoResult;
+    BuildResult buildResult;
+    IngestedOutput output;
     try {
-      fileState =
-          FileDiffer.updateFiles(
-              prevState != null ? prevState.fileState : null, fileList, updatedFiles, removedFiles);
-    } catch (InterruptedException e) {
-      throw new ProcessCanceledException(e);
-    } catch (ExecutionException e) {
-      IssueOutput.error("Failed to diff aspect output files: " + e).submit(context);
-      return new IdeResult(oldTargetMap, BuildResult.FATAL_ERROR);
+      ideInfoResult =
+          getIdeInfo(
+              project,
+              context,
+              workspaceRoot,
+              projectViewSet,
+              blazeInfo,
+              workspaceLanguageSettings.getActiveLanguages(),
+              shardedTargets,
+              aspectStrategy,
+              resolveIdeArtifacts,
+              ingester::ingestShard);
+      buildResult = ideInfoResult.ideInfoResult;
+      context.output(PrintOutput.log("ide-info result: " + buildResult.status));
+      if (buildResult.status == BuildResult.Status.FATAL_ERROR) {
+        return new IdeResult(oldTargetMap, buildResult, ideInfoResult.invocationResult);
+      }
+      // If there was a partial error, make a best-effort attempt to sync. Retain
+      // any old state that we have in an attempt not to lose too much code.
+      if (buildResult.status == BuildResult.Status.BUILD_ERROR) {
+        mergeWithOldState = true;
+      }
+
+      output = waitForIngestedOutput(context, ingester.finish());
+      if (output == null) {
+        return new IdeResult(oldTargetMap, BuildResult.FATAL_ERROR);
+      }
+    } finally {
+      // no-op if ingestion has already completed
+      ingester.cancel();
     }
 
     // if we're merging with the old state, no files are removed
-    int targetCount = fileList.size() + (mergeWithOldState ? removedFiles.size() : 0);
-    int removedCount = mergeWithOldState ? 0 : removedFiles.size();
+    int targetCount =
+        output.fileState.size() + (mergeWithOldState ? output.removedFiles.size() : 0);
+    int removedCount = mergeWithOldState ? 0 : output.removedFiles.size();
 
     context.output(
         PrintOutput.log(
             String.format(
                 "Total rules: %d, new/changed: %d, removed: %d",
-                targetCount, updatedFiles.size(), removedCount)));
-
-    ListenableFuture<?> prefetchFuture =
-        PrefetchService.getInstance().prefetchFiles(updatedFiles, true, false);
-    if (!FutureUtil.waitForFuture(context, prefetchFuture)
-        .timed("FetchAspectOutput", EventType.Prefetching)
-        .withProgressMessage("Reading IDE info result...")
-        .run()
-        .success()) {
-      return new IdeResult(oldTargetMap, BuildResult.FATAL_ERROR);
-    }
-
-    ImportRoots importRoots =
-        ImportRoots.builder(workspaceRoot, Blaze.getBuildSystem(project))
-            .add(projectViewSet)
-            .build();
+                targetCount, output.updatedFiles.size(), removedCount)));
 
     Ref<TargetMap> targetMapReference = Ref.create(oldTargetMap);
     BlazeIdeInterfaceState state =
@@ -200,32 +209,76 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
             project,
             context,
             prevState,
-            fileState,
             configHandler,
             workspaceLanguageSettings,
-            importRoots,
             aspectStrategy,
-            updatedFiles,
-            removedFiles,
+            output,
+            ingester.totalSizeLoaded.get(),
+            ingester.ignoredLanguages,
             mergeWithOldState,
             targetMapReference);
     if (state == null) {
       return new IdeResult(oldTargetMap, BuildResult.FATAL_ERROR);
     }
     syncStateBuilder.put(state);
-    return new IdeResult(targetMapReference.get(), ideInfoResult.buildResult);
+    return new IdeResult(targetMapReference.get(), buildResult, ideInfoResult.invocationResult);
   }
 
-  private static class IdeInfoResult {
-    final Collection<File> files;
-    final BuildResult buildResult;
+  /**
+   * Waits for the aspect output files to be ingested, returning null if they couldn't be. Throws
+   * {@link ProcessCanceledException} if the sync was cancelled in the meantime.
+   */
+  @Nullable
+  private static IngestedOutput waitForIngestedOutput(
+      BlazeContext context, ListenableFuture<IngestedOutput> future) {
+    return Scope.push(
+        context,
+        childContext -> {
+          childContext.push(new TimingScope("FetchAspectOutput", EventType.Prefetching));
+          childContext.output(new StatusOutput("Reading IDE info result..."));
+          try {
+            return future.get();
+          } catch (InterruptedException | CancellationException e) {
+            throw new ProcessCanceledException(e);
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException || cause instanceof CancellationException) {
+              throw new ProcessCanceledException(cause);
+            }
+            if (cause instanceof FileDiffException) {
+              IssueOutput.error("Failed to diff aspect output files: " + cause.getCause())
+                  .submit(childContext);
+            } else {
+              logger.error(e);
+              IssueOutput.error("Failed to read aspect output files").submit(childContext);
+            }
+            return null;
+          }
+        });
+  }
 
-    IdeInfoResult(Collection<File> files, BuildResult buildResult) {
-      this.files = files;
-      this.buildResult = buildResult;
+  /** The results of the blaze invocations building the ide-info output group. */
+  private static class IdeInfoResult {
+    /** The outcome of the ide-info output group alone. */
+    final BuildResult ideInfoResult;
+    /** The outcome of the blaze invocations as a whole. */
+    final BuildResult invocationResult;
+
+    IdeInfoResult(BuildResult ideInfoResult, BuildResult invocationResult) {
+      this.ideInfoResult = ideInfoResult;
+      this.invocationResult = invocationResult;
     }
   }
 
+  /**
+   * Builds the ide-info output group for each shard in turn, passing the output files to {@code
+   * ideInfoFileConsumer} as soon as they're known: as blaze reports them if streaming build events,
+   * otherwise once each shard is built.
+   *
+   * <p>If {@code resolveIdeArtifacts} is true, the ide-resolve output group is built in the same
+   * blaze invocations, and its output artifacts prefetched. Build errors from the ide-resolve
+   * output group are then reflected in the invocation result, but not the ide-info result.
+   */
   private static IdeInfoResult getIdeInfo(
       Project project,
       BlazeContext context,
@@ -234,36 +287,55 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       BlazeInfo blazeInfo,
       ImmutableSet<LanguageClass> activeLanguages,
       ShardedTargetList shardedTargets,
-      AspectStrategy aspectStrategy) {
+      AspectStrategy aspectStrategy,
+      boolean resolveIdeArtifacts,
+      Consumer<Collection<File>> ideInfoFileConsumer) {
 
-    Set<File> ideInfoFiles = new LinkedHashSet<>();
     Function<Integer, String> progressMessage =
         count ->
             String.format(
-                "Building IDE info files for shard %s of %s...",
-                count, shardedTargets.shardedTargets.size());
-    Function<List<TargetExpression>, BuildResult> invocation =
-        targets -> {
-          IdeInfoResult result =
-              getIdeInfoForTargets(
-                  project,
-                  context,
-                  workspaceRoot,
-                  projectViewSet,
-                  blazeInfo,
-                  activeLanguages,
-                  targets,
-                  aspectStrategy);
-          ideInfoFiles.addAll(result.files);
-          return result.buildResult;
-        };
-    BuildResult result =
+                "Building IDE %s files for shard %s of %s...",
+                resolveIdeArtifacts ? "info and resolve" : "info",
+                count,
+                shardedTargets.shardedTargets.size());
+    // keyed by shard, so a shard re-run after a blaze OOM replaces the original result
+    Map<List<TargetExpression>, BuildResult> ideInfoResults = new LinkedHashMap<>();
+    ShardInvocation invocation =
+        (targets, blazeTimer) ->
+            getIdeInfoForTargets(
+                project,
+                context,
+                workspaceRoot,
+                projectViewSet,
+                blazeInfo,
+                activeLanguages,
+                targets,
+                aspectStrategy,
+                resolveIdeArtifacts,
+                ideInfoFileConsumer,
+                result -> ideInfoResults.put(targets, result),
+                blazeTimer);
+    BuildResult invocationResult =
         shardedTargets.runShardedCommand(project, context, progressMessage, invocation);
-    return new IdeInfoResult(ideInfoFiles, result);
+    if (invocationResult.status == Status.FATAL_ERROR) {
+      return new IdeInfoResult(invocationResult, invocationResult);
+    }
+    BuildResult ideInfoResult =
+        ideInfoResults.values().stream().reduce(BuildResult.SUCCESS, BuildResult::combine);
+    return new IdeInfoResult(ideInfoResult, invocationResult);
   }
 
-  /** Runs blaze build with the aspect's ide-info output group for a given set of targets */
-  private static IdeInfoResult getIdeInfoForTargets(
+  /**
+   * Runs blaze build with the aspect's ide-info output group for a given set of targets, passing
+   * its output files to {@code ideInfoFileConsumer} and the output group's outcome to {@code
+   * ideInfoResultConsumer}. Returns the result of the blaze invocation as a whole.
+   *
+   * <p>If {@code resolveIdeArtifacts} is true, also requests the ide-resolve output group, and
+   * prefetches its output artifacts. Targets which then fail to build without reporting their
+   * ide-info output group are rebuilt with the ide-info output group alone, to tell whether it was
+   * the ide-info output group which failed.
+   */
+  private static BuildResult getIdeInfoForTargets(
       Project project,
       BlazeContext context,
       WorkspaceRoot workspaceRoot,
@@ -271,10 +343,18 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       BlazeInfo blazeInfo,
       ImmutableSet<LanguageClass> activeLanguages,
       List<TargetExpression> targets,
-      AspectStrategy aspectStrategy) {
+      AspectStrategy aspectStrategy,
+      boolean resolveIdeArtifacts,
+      Consumer<Collection<File>> ideInfoFileConsumer,
+      Consumer<BuildResult> ideInfoResultConsumer,
+      TimingScopeListener blazeTimer) {
+    Predicate<String> ideInfoFilter = aspectStrategy.getAspectOutputFilePredicate();
+    Predicate<String> genfileFilter = getGenfilePrefetchFilter();
     try (BuildResultHelper buildResultHelper =
         BuildResultHelperProvider.forFilesForSync(
-            project, blazeInfo, aspectStrategy.getAspectOutputFilePredicate())) {
+            project,
+            blazeInfo,
+            resolveIdeArtifacts ? ideInfoFilter.or(genfileFilter) : ideInfoFilter)) {
 
       BlazeCommand.Builder builder =
           BlazeCommand.builder(getBinaryPath(project), BlazeCommandName.BUILD)
@@ -288,7 +368,26 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                       BlazeCommandName.BUILD,
                       BlazeInvocationContext.SYNC_CONTEXT));
 
-      aspectStrategy.addAspectAndOutputGroups(builder, OutputGroup.INFO, activeLanguages);
+      ImmutableList<String> infoOutputGroups =
+          aspectStrategy.getOutputGroups(OutputGroup.INFO, activeLanguages);
+      ImmutableList<String> resolveOutputGroups =
+          resolveIdeArtifacts
+              ? aspectStrategy.getOutputGroups(OutputGroup.RESOLVE, activeLanguages)
+              : ImmutableList.of();
+      aspectStrategy.addAspectAndOutputGroups(
+          builder,
+          ImmutableList.<String>builder()
+              .addAll(infoOutputGroups)
+              .addAll(resolveOutputGroups)
+              .build());
+
+      // parse the BEP output while blaze is still running, handing off files as they're reported
+      // rather than all at once afterwards. Artifacts are only split by output group once the
+      // build is complete.
+      BuildArtifactStream artifactStream =
+          streamBuildEvents.getValue() && !resolveIdeArtifacts
+              ? buildResultHelper.streamBuildArtifacts(ideInfoFileConsumer::accept)
+              : null;
 
       int retVal =
           ExternalTask.builder(workspaceRoot)
@@ -298,33 +397,73 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   LineProcessingOutputStream.of(
                       BlazeConsoleLineProcessorProvider.getAllStderrLineProcessors(context)))
               .build()
-              .run(new TimingScope("ExecuteBlazeCommand", EventType.BlazeInvocation));
+              .run(blazeInvocationScope(blazeTimer));
 
       BuildResult buildResult = BuildResult.fromExitCode(retVal);
       if (buildResult.status == Status.FATAL_ERROR) {
-        return new IdeInfoResult(ImmutableList.of(), buildResult);
+        ideInfoResultConsumer.accept(buildResult);
+        return buildResult;
+      }
+      ImmutableSet<Label> incompleteTargets = null;
+      if (resolveIdeArtifacts && buildResult.status == Status.BUILD_ERROR) {
+        try {
+          incompleteTargets =
+              buildResultHelper.getFailedTargetsMissingOutputGroups(infoOutputGroups);
+        } catch (GetArtifactsException e) {
+          // fall back to treating the whole build's errors as ide-info errors
+        }
+      }
+      if (incompleteTargets == null) {
+        ideInfoResultConsumer.accept(buildResult);
+      } else if (incompleteTargets.isEmpty()) {
+        ideInfoResultConsumer.accept(BuildResult.SUCCESS);
       }
-      return Scope.push(
+      Scope.push(
           context,
           childContext -> {
             try {
               childContext.push(new TimingScope("IdeInfoBuildArtifacts", EventType.Other));
-              return new IdeInfoResult(buildResultHelper.getBuildArtifacts(), buildResult);
+              if (resolveIdeArtifacts) {
+                ImmutableListMultimap<String, File> artifacts =
+                    buildResultHelper.getArtifactsByOutputGroup(
+                        ImmutableList.<String>builder()
+                            .addAll(infoOutputGroups)
+                            .addAll(resolveOutputGroups)
+                            .build());
+                prefetchGenfiles(
+                    context, filterArtifacts(artifacts, resolveOutputGroups, genfileFilter));
+                ideInfoFileConsumer.accept(
+                    filterArtifacts(artifacts, infoOutputGroups, ideInfoFilter));
+              } else if (artifactStream == null) {
+                ideInfoFileConsumer.accept(buildResultHelper.getBuildArtifacts());
+              } else {
+                artifactStream.awaitCompletion();
+              }
             } catch (GetArtifactsException e) {
               IssueOutput.error("Failed to get ide-info files: " + e.getMessage()).submit(context);
-              return new IdeInfoResult(ImmutableList.of(), buildResult);
             }
           });
-    }
-  }
-
-  private static class TargetFilePair {
-    private final File file;
-    private final TargetIdeInfo target;
-
-    TargetFilePair(File file, TargetIdeInfo target) {
-      this.file = file;
-      this.target = target;
+      if (incompleteTargets != null && !incompleteTargets.isEmpty()) {
+        context.output(
+            PrintOutput.log(
+                String.format(
+                    "Rebuilding ide-info output group for %s failed targets",
+                    incompleteTargets.size())));
+        getIdeInfoForTargets(
+            project,
+            context,
+            workspaceRoot,
+            projectViewSet,
+            blazeInfo,
+            activeLanguages,
+            ImmutableList.copyOf(incompleteTargets),
+            aspectStrategy,
+            /* resolveIdeArtifacts= */ false,
+            ideInfoFileConsumer,
+            ideInfoResultConsumer,
+            blazeTimer);
+      }
+      return buildResult;
     }
   }
 
@@ -333,13 +472,12 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       Project project,
       BlazeContext parentContext,
       @Nullable BlazeIdeInterfaceState prevState,
-      ImmutableMap<File, Long> fileState,
       BlazeConfigurationHandler configHandler,
       WorkspaceLanguageSettings workspaceLanguageSettings,
-      ImportRoots importRoots,
       AspectStrategy aspectStrategy,
-      List<File> newFiles,
-      List<File> removedFiles,
+      IngestedOutput output,
+      long totalSizeLoaded,
+      Set<LanguageClass> ignoredLanguages,
       boolean mergeWithOldState,
       Ref<TargetMap> targetMapReference) {
     Result<BlazeIdeInterfaceState> result =
@@ -351,12 +489,12 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
 
                   // If we're not removing we have to merge the old state
                   // into the new one or we'll miss file removes next time
-                  ImmutableMap<File, Long> nextFileState = fileState;
+                  ImmutableMap<File, Long> nextFileState = output.fileState;
                   if (mergeWithOldState && prevState != null) {
                     ImmutableMap.Builder<File, Long> fileStateBuilder =
-                        ImmutableMap.<File, Long>builder().putAll(fileState);
+                        ImmutableMap.<File, Long>builder().putAll(output.fileState);
                     for (Map.Entry<File, Long> entry : prevState.fileState.entrySet()) {
-                      if (!fileState.containsKey(entry.getKey())) {
+                      if (!output.fileState.containsKey(entry.getKey())) {
                         fileStateBuilder.put(entry);
                       }
                     }
@@ -368,86 +506,63 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   state.workspaceLanguageSettings = workspaceLanguageSettings;
                   state.aspectStrategyName = aspectStrategy.getName();
 
-                  Map<TargetKey, TargetIdeInfo> targetMap = Maps.newHashMap();
-                  if (prevState != null && !targetMapReference.isNull()) {
-                    targetMap.putAll(targetMapReference.get().map());
-                    state.fileToTargetMapKey.putAll(prevState.fileToTargetMapKey);
-                  }
+                  // record changes on top of the previous state, rather than copying it
+                  TargetMap prevTargetMap =
+                      prevState != null && !targetMapReference.isNull()
+                          ? targetMapReference.get()
+                          : null;
+                  MapUpdater<TargetKey, TargetIdeInfo> targetMap =
+                      new MapUpdater<>(
+                          prevTargetMap != null ? prevTargetMap.map() : ImmutableMap.of());
+                  BiMapUpdater<File, TargetKey> fileToTargetMapKey =
+                      new BiMapUpdater<>(
+                          prevTargetMap != null
+                              ? prevState.fileToTargetMapKey
+                              : ImmutableBiMap.of());
 
                   // Update removed unless we're merging with the old state
                   if (!mergeWithOldState) {
-                    for (File removedFile : removedFiles) {
-                      TargetKey key = state.fileToTargetMapKey.remove(removedFile);
+                    for (File removedFile : output.removedFiles) {
+                      TargetKey key = fileToTargetMapKey.remove(removedFile);
                       if (key != null) {
                         targetMap.remove(key);
                       }
                     }
                   }
 
-                  AtomicLong totalSizeLoaded = new AtomicLong(0);
-                  Set<LanguageClass> ignoredLanguages = Sets.newConcurrentHashSet();
-
-                  ListeningExecutorService executor = BlazeExecutor.getInstance().getExecutor();
-
-                  // Read protos from any new files
-                  List<ListenableFuture<TargetFilePair>> futures = Lists.newArrayList();
-                  for (File file : newFiles) {
-                    futures.add(
-                        executor.submit(
-                            () -> {
-                              totalSizeLoaded.addAndGet(file.length());
-                              IntellijIdeInfo.TargetIdeInfo message =
-                                  aspectStrategy.readAspectFile(file);
-                              TargetIdeInfo target =
-                                  protoToTarget(
-                                      workspaceLanguageSettings,
-                                      importRoots,
-                                      message,
-                                      ignoredLanguages);
-                              return new TargetFilePair(file, target);
-                            }));
-                  }
-
                   Set<TargetKey> newTargets = new HashSet<>();
                   Set<String> configurations = new LinkedHashSet<>();
                   configurations.add(configHandler.defaultConfigurationPathComponent);
 
                   // Update state with result from proto files
                   int duplicateTargetLabels = 0;
-                  try {
-                    for (TargetFilePair targetFilePair : Futures.allAsList(futures).get()) {
-                      if (targetFilePair.target != null) {
-                        File file = targetFilePair.file;
-                        String config = configHandler.getConfigurationPathComponent(file);
-                        configurations.add(config);
-                        TargetKey key = targetFilePair.target.getKey();
-                        if (targetMap.putIfAbsent(key, targetFilePair.target) == null) {
-                          state.fileToTargetMapKey.forcePut(file, key);
-                        } else {
-                          if (!newTargets.add(key)) {
-                            duplicateTargetLabels++;
-                          }
-                          // prioritize the default configuration over build order
-                          if (Objects.equals(
-                              config, configHandler.defaultConfigurationPathComponent)) {
-                            targetMap.put(key, targetFilePair.target);
-                            state.fileToTargetMapKey.forcePut(file, key);
-                          }
+                  for (TargetFilePair targetFilePair : output.updatedTargets) {
+                    if (targetFilePair.target != null) {
+                      File file = targetFilePair.file;
+                      String config = configHandler.getConfigurationPathComponent(file);
+                      configurations.add(config);
+                      TargetKey key = targetFilePair.target.getKey();
+                      if (targetMap.putIfAbsent(key, targetFilePair.target) == null) {
+                        fileToTargetMapKey.forcePut(file, key);
+                      } else {
+                        if (!newTargets.add(key)) {
+                          duplicateTargetLabels++;
+                        }
+                        // prioritize the default configuration over build order
+                        if (Objects.equals(
+                            config, configHandler.defaultConfigurationPathComponent)) {
+                          targetMap.put(key, targetFilePair.target);
+                          fileToTargetMapKey.forcePut(file, key);
                         }
                       }
                     }
-                  } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return Result.error(null);
-                  } catch (ExecutionException e) {
-                    return Result.error(e);
                   }
 
                   context.output(
                       PrintOutput.log(
                           String.format(
                               "Loaded %d aspect files, total size %dkB",
-                              newFiles.size(), totalSizeLoaded.get() / 1024)));
+                              output.updatedFiles.size(), totalSizeLoaded / 1024)));
                   if (duplicateTargetLabels > 0) {
                     context.output(
                         new PerformanceWarning(
@@ -459,12 +574,16 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                                 (100 * duplicateTargetLabels / targetMap.size()))));
                   }
 
-                  ignoredLanguages.retainAll(
+                  Set<LanguageClass> ignoredAvailableLanguages = new HashSet<>(ignoredLanguages);
+                  ignoredAvailableLanguages.retainAll(
                       LanguageSupport.availableAdditionalLanguages(
                           workspaceLanguageSettings.getWorkspaceType()));
-                  warnIgnoredLanguages(project, context, ignoredLanguages);
+                  warnIgnoredLanguages(project, context, ignoredAvailableLanguages);
 
-                  targetMapReference.set(new TargetMap(ImmutableMap.copyOf(targetMap)));
+                  if (prevTargetMap == null || targetMap.hasChanges()) {
+                    targetMapReference.set(new TargetMap(targetMap.build()));
+                  }
+                  state.fileToTargetMapKey = fileToTargetMapKey.build();
                   return Result.of(state.build());
                 });
 
@@ -475,26 +594,6 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
     return result.result;
   }
 
-  @Nullable
-  private static TargetIdeInfo protoToTarget(
-      WorkspaceLanguageSettings languageSettings,
-      ImportRoots importRoots,
-      IntellijIdeInfo.TargetIdeInfo message,
-      Set<LanguageClass> ignoredLanguages) {
-    Kind kind = Kind.fromProto(message);
-    if (kind == null) {
-      return null;
-    }
-    if (languageSettings.isLanguageActive(kind.getLanguageClass())) {
-      return TargetIdeInfo.fromProto(message);
-    }
-    TargetKey key = message.hasKey() ? TargetKey.fromProto(message.getKey()) : null;
-    if (key != null && importRoots.importAsSource(key.getLabel())) {
-      ignoredLanguages.add(kind.getLanguageClass());
-    }
-    return null;
-  }
-
   private static void warnIgnoredLanguages(
       Project project, BlazeContext context, Set<LanguageClass> ignoredLangs) {
     if (ignoredLangs.isEmpty()) {
@@ -533,8 +632,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
             String.format(
                 "Building IDE resolve files for shard %s of %s...",
                 count, shardedTargets.shardedTargets.size());
-    Function<List<TargetExpression>, BuildResult> invocation =
-        targets ->
+    ShardInvocation invocation =
+        (targets, blazeTimer) ->
             doResolveIdeArtifacts(
                 project,
                 context,
@@ -543,7 +642,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                 blazeInfo,
                 blazeVersionData,
                 workspaceLanguageSettings,
-                targets);
+                targets,
+                blazeTimer);
     return shardedTargets.runShardedCommand(project, context, progressMessage, invocation);
   }
 
@@ -561,8 +661,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
             String.format(
                 "Building IDE resolve files for shard %s of %s...",
                 count, shardedTargets.shardedTargets.size());
-    Function<List<TargetExpression>, BuildResult> invocation =
-        targets ->
+    ShardInvocation invocation =
+        (targets, blazeTimer) ->
             doCompileIdeArtifacts(
                 project,
                 context,
@@ -570,7 +670,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                 projectViewSet,
                 blazeVersionData,
                 workspaceLanguageSettings,
-                targets);
+                targets,
+                blazeTimer);
     return shardedTargets.runShardedCommand(project, context, progressMessage, invocation);
   }
 
@@ -587,7 +688,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       BlazeInfo blazeInfo,
       BlazeVersionData blazeVersionData,
       WorkspaceLanguageSettings workspaceLanguageSettings,
-      List<TargetExpression> targets) {
+      List<TargetExpression> targets,
+      TimingScopeListener blazeTimer) {
     try (BuildResultHelper buildResultHelper =
         BuildResultHelperProvider.forFilesForSync(project, blazeInfo, getGenfilePrefetchFilter())) {
 
@@ -619,7 +721,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   LineProcessingOutputStream.of(
                       BlazeConsoleLineProcessorProvider.getAllStderrLineProcessors(context)))
               .build()
-              .run(new TimingScope("ExecuteBlazeCommand", EventType.BlazeInvocation));
+              .run(blazeInvocationScope(blazeTimer));
 
       BuildResult result = BuildResult.fromExitCode(retVal);
       if (result.status != BuildResult.Status.FATAL_ERROR) {
@@ -647,7 +749,8 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       ProjectViewSet projectViewSet,
       BlazeVersionData blazeVersionData,
       WorkspaceLanguageSettings workspaceLanguageSettings,
-      List<TargetExpression> targets) {
+      List<TargetExpression> targets,
+      TimingScopeListener blazeTimer) {
     BlazeCommand.Builder blazeCommandBuilder =
         BlazeCommand.builder(getBinaryPath(project), BlazeCommandName.BUILD)
             .addTargets(targets)
@@ -675,11 +778,31 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                 LineProcessingOutputStream.of(
                     BlazeConsoleLineProcessorProvider.getAllStderrLineProcessors(context)))
             .build()
-            .run();
+            .run(blazeInvocationScope(blazeTimer));
 
     return BuildResult.fromExitCode(retVal);
   }
 
+  /** A timing scope for a blaze invocation, which also reports its duration to {@code timer}. */
+  private static TimingScope blazeInvocationScope(TimingScopeListener timer) {
+    TimingScope scope = new TimingScope("ExecuteBlazeCommand", EventType.BlazeInvocation);
+    scope.addScopeListener(timer, /* propagateToChildren= */ false);
+    return scope;
+  }
+
+  /** Returns the distinct artifacts in the given output groups which satisfy {@code filter}. */
+  private static ImmutableList<File> filterArtifacts(
+      ImmutableListMultimap<String, File> artifactsByOutputGroup,
+      Collection<String> outputGroups,
+      Predicate<String> filter) {
+    return outputGroups.stream()
+        .map(artifactsByOutputGroup::get)
+        .flatMap(List::stream)
+        .filter(file -> filter.test(file.getPath()))
+        .distinct()
+        .collect(toImmutableList());
+  }
+
   /** A filename filter for blaze output artifacts to prefetch. */
   private static Predicate<String> getGenfilePrefetchFilter() {
     ImmutableSet<String> extensions = PrefetchFileSource.getAllPrefetchFileExtensions();
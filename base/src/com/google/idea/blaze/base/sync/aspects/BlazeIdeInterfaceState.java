@@ -16,8 +16,6 @@
 package com.google.idea.blaze.base.sync.aspects;
 
 import com.google.common.base.Functions;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.intellij.model.ProjectData;
@@ -37,11 +35,11 @@ final class BlazeIdeInterfaceState implements SyncData<ProjectData.BlazeIdeInter
 
   private BlazeIdeInterfaceState(
       ImmutableMap<File, Long> fileState,
-      BiMap<File, TargetKey> fileToTargetMapKey,
+      ImmutableBiMap<File, TargetKey> fileToTargetMapKey,
       WorkspaceLanguageSettings workspaceLanguageSettings,
       String aspectStrategyName) {
     this.fileState = fileState;
-    this.fileToTargetMapKey = ImmutableBiMap.copyOf(fileToTargetMapKey);
+    this.fileToTargetMapKey = fileToTargetMapKey;
     this.workspaceLanguageSettings = workspaceLanguageSettings;
     this.aspectStrategyName = aspectStrategyName;
   }
@@ -92,7 +90,7 @@ final class BlazeIdeInterfaceState implements SyncData<ProjectData.BlazeIdeInter
 
   static class Builder {
     ImmutableMap<File, Long> fileState = null;
-    BiMap<File, TargetKey> fileToTargetMapKey = HashBiMap.create();
+    ImmutableBiMap<File, TargetKey> fileToTargetMapKey = ImmutableBiMap.of();
     WorkspaceLanguageSettings workspaceLanguageSettings;
     String aspectStrategyName;
 
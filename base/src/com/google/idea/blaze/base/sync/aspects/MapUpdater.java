@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Records updates to an immutable map without copying it, so the cost of each update is
+ * proportional to the number of changed entries. The updated map is then built in a single pass,
+ * and if nothing changed, the original map is returned as-is.
+ */
+class MapUpdater<K, V> {
+
+  final ImmutableMap<K, V> base;
+  // new and replaced entries
+  private final Map<K, V> updated = new HashMap<>();
+  // removed entries present in the base map
+  private final Set<K> removed = new HashSet<>();
+  private int size;
+
+  MapUpdater(ImmutableMap<K, V> base) {
+    this.base = base;
+    this.size = base.size();
+  }
+
+  @Nullable
+  V get(K key) {
+    V value = updated.get(key);
+    if (value != null) {
+      return value;
+    }
+    return removed.contains(key) ? null : base.get(key);
+  }
+
+  /** Returns the previous value for the key, if any. */
+  @Nullable
+  V put(K key, V value) {
+    V previous = get(key);
+    if (previous == null) {
+      size++;
+    }
+    updated.put(key, value);
+    removed.remove(key);
+    return previous;
+  }
+
+  /** Adds the entry and returns null if the key isn't present, otherwise returns its value. */
+  @Nullable
+  V putIfAbsent(K key, V value) {
+    V previous = get(key);
+    if (previous == null) {
+      put(key, value);
+    }
+    return previous;
+  }
+
+  /** Returns the removed value, if any. */
+  @Nullable
+  V remove(K key) {
+    V previous = get(key);
+    if (previous == null) {
+      return null;
+    }
+    size--;
+    updated.remove(key);
+    if (base.containsKey(key)) {
+      removed.add(key);
+    }
+    return previous;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean hasChanges() {
+    return !updated.isEmpty() || !removed.isEmpty();
+  }
+
+  /**
+   * Returns the updated map, or the original map if nothing changed. Retains the original
+   * iteration order, with new entries at the end.
+   */
+  ImmutableMap<K, V> build() {
+    if (!hasChanges()) {
+      return base;
+    }
+    ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+    forEachUpdatedEntry(builder::put);
+    return builder.build();
+  }
+
+  /** Iterates over the entries of the updated map. */
+  void forEachUpdatedEntry(EntryConsumer<K, V> consumer) {
+    for (Map.Entry<K, V> entry : base.entrySet()) {
+      K key = entry.getKey();
+      if (removed.contains(key)) {
+        continue;
+      }
+      V value = updated.get(key);
+      consumer.accept(key, value != null ? value : entry.getValue());
+    }
+    for (Map.Entry<K, V> entry : updated.entrySet()) {
+      if (!base.containsKey(entry.getKey())) {
+        consumer.accept(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /** Accepts a single map entry. */
+  interface EntryConsumer<K, V> {
+    void accept(K key, V value);
+  }
+}
@@ -58,6 +58,11 @@ public class BlazeDataStorage {
     return new File(getProjectConfigurationDir(), locationHash);
   }
 
+  /** Returns the directory for caches shared between all projects. */
+  public static File getSharedCacheDir() {
+    return new File(PathManager.getSystemPath(), "blaze/shared").getAbsoluteFile();
+  }
+
   private static File getProjectConfigurationDir() {
     return new File(PathManager.getSystemPath(), "blaze/projects").getAbsoluteFile();
   }
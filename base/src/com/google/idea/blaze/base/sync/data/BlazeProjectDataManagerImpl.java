@@ -20,17 +20,22 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.async.executor.ProgressiveTaskWithProgressIndicator;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.blaze.base.sync.BlazeSyncManager;
 import com.google.idea.common.concurrency.ConcurrencyUtil;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /** Stores a cache of blaze project data and issues any side effects when that data is updated. */
 public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
@@ -38,12 +43,28 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
   private static final Logger logger =
       Logger.getInstance(BlazeProjectDataManagerImpl.class.getName());
 
+  // save project data in a memory-mapped format, with targets decoded on demand, appending small
+  // changes to a delta log
+  private static final BoolExperiment segmentedCache =
+      new BoolExperiment("blaze.project.data.segmented.cache", true);
+
+  private static final String CACHE_FILE_NAME = "cache.dat.gz";
+  private static final String SEGMENTED_CACHE_FILE_NAME = "cache.dat";
+
   private final Project project;
   // a per-project single-threaded executor to write project data to disk
   private final ListeningExecutorService writeDataExecutor;
 
   @Nullable private volatile BlazeProjectData blazeProjectData;
 
+  // the project data last written to (or read from) the segmented cache file, if still current
+  @GuardedBy("this")
+  @Nullable
+  private BlazeProjectData savedProjectData;
+
+  // only the first corrupt target found in the cache file requests a resync
+  private final AtomicBoolean corruptCacheReported = new AtomicBoolean();
+
   public static BlazeProjectDataManagerImpl getImpl(Project project) {
     return (BlazeProjectDataManagerImpl) BlazeProjectDataManager.getInstance(project);
   }
@@ -77,8 +98,19 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
 
   @Nullable
   private synchronized BlazeProjectData loadProject(BlazeImportSettings importSettings) {
+    // only one of the two formats is present, whichever was last saved
+    File segmentedFile = getCacheFile(project, importSettings, SEGMENTED_CACHE_FILE_NAME);
     try {
-      File file = getCacheFile(project, importSettings);
+      if (segmentedFile.exists()) {
+        blazeProjectData =
+            BlazeProjectData.loadFromDiskSegmented(
+                importSettings.getBuildSystem(),
+                segmentedFile,
+                () -> onCorruptTarget(segmentedFile));
+        savedProjectData = blazeProjectData;
+        return blazeProjectData;
+      }
+      File file = getCacheFile(project, importSettings, CACHE_FILE_NAME);
       blazeProjectData = BlazeProjectData.loadFromDisk(importSettings.getBuildSystem(), file);
       return blazeProjectData;
     } catch (Throwable e) {
@@ -89,6 +121,21 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
     }
   }
 
+  /**
+   * Called when a lazily decoded target turns out to be corrupt. The loaded project data is missing
+   * that target, so the cache is discarded and a full sync requested to rebuild it.
+   */
+  private void onCorruptTarget(File segmentedFile) {
+    if (!corruptCacheReported.compareAndSet(false, true)) {
+      return;
+    }
+    // not synchronized, as targets may be decoded while saving. Without the file, the next save
+    // rewrites it in full rather than appending to the delta log.
+    FileUtil.delete(segmentedFile);
+    logger.warn("Corrupt project data cache, requesting a full sync");
+    BlazeSyncManager.getInstance(project).fullProjectSync();
+  }
+
   public void saveProject(
       final BlazeImportSettings importSettings, final BlazeProjectData blazeProjectData) {
     this.blazeProjectData = blazeProjectData;
@@ -100,9 +147,22 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
         .submitTask(
             (ProgressIndicator indicator) -> {
               try {
-                File file = getCacheFile(project, importSettings);
+                File file = getCacheFile(project, importSettings, CACHE_FILE_NAME);
+                File segmentedFile =
+                    getCacheFile(project, importSettings, SEGMENTED_CACHE_FILE_NAME);
                 synchronized (this) {
-                  blazeProjectData.saveToDisk(file);
+                  // the cache file's state is unknown if saving fails partway through
+                  BlazeProjectData previouslySaved = savedProjectData;
+                  savedProjectData = null;
+                  if (segmentedCache.getValue()) {
+                    // after a partial sync, this only appends the changed targets
+                    blazeProjectData.saveToDiskSegmented(segmentedFile, previouslySaved);
+                    savedProjectData = blazeProjectData;
+                    FileUtil.delete(file);
+                  } else {
+                    blazeProjectData.saveToDisk(file);
+                    FileUtil.delete(segmentedFile);
+                  }
                 }
               } catch (Throwable e) {
                 logger.error(serializationErrorMessage(e), e);
@@ -118,7 +178,8 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
     return message + " Please resync project.";
   }
 
-  private static File getCacheFile(Project project, BlazeImportSettings importSettings) {
-    return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), "cache.dat.gz");
+  private static File getCacheFile(
+      Project project, BlazeImportSettings importSettings, String fileName) {
+    return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), fileName);
   }
 }
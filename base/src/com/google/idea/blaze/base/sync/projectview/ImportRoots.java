@@ -15,6 +15,8 @@
  */
 package com.google.idea.blaze.base.sync.projectview;
 
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
@@ -35,8 +37,6 @@ import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
 import com.google.idea.blaze.base.util.WorkspacePathUtil;
 import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.project.Project;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Set;
 import javax.annotation.Nullable;
@@ -131,6 +131,8 @@ public final class ImportRoots {
   private final ImmutableCollection<WorkspacePath> rootDirectories;
   private final ImmutableSet<WorkspacePath> excludeDirectories;
   private final ProjectTargetsHelper projectTargets;
+  private final DirectorySet rootDirectorySet;
+  private final DirectorySet excludeDirectorySet;
 
   public static Builder builder(WorkspaceRoot workspaceRoot, BuildSystem buildSystem) {
     return new Builder(workspaceRoot, buildSystem);
@@ -143,6 +145,8 @@ public final class ImportRoots {
     this.rootDirectories = rootDirectories;
     this.excludeDirectories = excludeDirectories;
     this.projectTargets = projectTargets;
+    this.rootDirectorySet = new DirectorySet(rootDirectories);
+    this.excludeDirectorySet = new DirectorySet(excludeDirectories);
   }
 
   public Collection<WorkspacePath> rootDirectories() {
@@ -167,23 +171,43 @@ public final class ImportRoots {
   }
 
   public boolean containsWorkspacePath(WorkspacePath workspacePath) {
-    boolean included = false;
-    boolean excluded = false;
-    for (WorkspacePath rootDirectory : rootDirectories()) {
-      included = included || isSubdirectory(rootDirectory, workspacePath);
-    }
-    for (WorkspacePath excludeDirectory : excludeDirectories()) {
-      excluded = excluded || isSubdirectory(excludeDirectory, workspacePath);
-    }
-    return included && !excluded;
+    return rootDirectorySet.containsAncestorOf(workspacePath)
+        && !excludeDirectorySet.containsAncestorOf(workspacePath);
   }
 
-  private static boolean isSubdirectory(WorkspacePath ancestor, WorkspacePath descendant) {
-    if (ancestor.isWorkspaceRoot()) {
-      return true;
+  /**
+   * A set of directories, answering whether a path is inside any of them in time proportional to
+   * the path depth rather than the number of directories.
+   */
+  private static final class DirectorySet {
+    private final ImmutableSet<String> directories;
+    private final boolean containsWorkspaceRoot;
+
+    DirectorySet(Collection<WorkspacePath> directories) {
+      this.directories =
+          directories.stream().map(WorkspacePath::relativePath).collect(toImmutableSet());
+      this.containsWorkspaceRoot = directories.stream().anyMatch(WorkspacePath::isWorkspaceRoot);
+    }
+
+    /** Returns true if the given path or any of its parent directories is in this set. */
+    boolean containsAncestorOf(WorkspacePath workspacePath) {
+      if (containsWorkspaceRoot) {
+        return true;
+      }
+      if (directories.isEmpty() || workspacePath.isWorkspaceRoot()) {
+        return false;
+      }
+      String path = workspacePath.relativePath();
+      while (true) {
+        if (directories.contains(path)) {
+          return true;
+        }
+        int lastSeparatorIndex = path.lastIndexOf('/');
+        if (lastSeparatorIndex < 0) {
+          return false;
+        }
+        path = path.substring(0, lastSeparatorIndex);
+      }
     }
-    Path ancestorPath = FileSystems.getDefault().getPath(ancestor.relativePath());
-    Path descendantPath = FileSystems.getDefault().getPath(descendant.relativePath());
-    return descendantPath.startsWith(ancestorPath);
   }
 }
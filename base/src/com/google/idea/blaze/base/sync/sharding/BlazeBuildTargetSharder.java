@@ -38,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /** Utility methods for sharding blaze build invocations. */
 public class BlazeBuildTargetSharder {
@@ -49,6 +50,11 @@ public class BlazeBuildTargetSharder {
   // number of packages per blaze query shard
   static final int PACKAGE_SHARD_SIZE = 500;
 
+  // when sizing shards from build history, bounds on the number of targets per shard relative to
+  // the configured shard size, to limit invocation overhead and blaze memory use respectively
+  private static final int MIN_ADAPTIVE_SHARD_SIZE_DIVISOR = 10;
+  private static final int MAX_ADAPTIVE_SHARD_SIZE_MULTIPLIER = 2;
+
   /** Result of expanding then sharding wildcard target patterns */
   public static class ShardedTargetsResult {
     public final ShardedTargetList shardedTargets;
@@ -85,6 +91,22 @@ public class BlazeBuildTargetSharder {
       ProjectViewSet projectViewSet,
       WorkspacePathResolver pathResolver,
       List<TargetExpression> targets) {
+    return expandAndShardTargets(
+        project, context, workspaceRoot, projectViewSet, pathResolver, targets, null);
+  }
+
+  /**
+   * Expand wildcard target patterns and partition the resulting target list, using the build cost
+   * observed during previous syncs (if any) to balance the shards.
+   */
+  public static ShardedTargetsResult expandAndShardTargets(
+      Project project,
+      BlazeContext context,
+      WorkspaceRoot workspaceRoot,
+      ProjectViewSet projectViewSet,
+      WorkspacePathResolver pathResolver,
+      List<TargetExpression> targets,
+      @Nullable TargetShardingHistory shardingHistory) {
     if (!shardingEnabled(projectViewSet)) {
       return new ShardedTargetsResult(
           new ShardedTargetList(ImmutableList.of(targets)), BuildResult.SUCCESS);
@@ -103,7 +125,8 @@ public class BlazeBuildTargetSharder {
           new ShardedTargetList(ImmutableList.of()), expandedTargets.buildResult);
     }
     return new ShardedTargetsResult(
-        shardTargets(expandedTargets.singleTargets, getTargetShardSize(projectViewSet)),
+        shardTargets(
+            expandedTargets.singleTargets, getTargetShardSize(projectViewSet), shardingHistory),
         expandedTargets.buildResult);
   }
 
@@ -166,10 +189,64 @@ public class BlazeBuildTargetSharder {
     if (targets.size() <= shardSize) {
       return new ShardedTargetList(ImmutableList.of(targets));
     }
+    List<Integer> shardEnds = new ArrayList<>();
+    for (int index = shardSize; index < targets.size(); index += shardSize) {
+      shardEnds.add(index);
+    }
+    shardEnds.add(targets.size());
+    return partition(targets, shardEnds);
+  }
+
+  /**
+   * Partition targets list so each shard has roughly the same estimated build cost as a shard of
+   * 'shardSize' average targets. Expensive packages (including those which previously ran blaze
+   * out of memory) therefore end up in smaller shards, and cheap ones in larger shards. Falls back
+   * to fixed-size shards if there's no build history.
+   */
+  static ShardedTargetList shardTargets(
+      List<TargetExpression> targets,
+      int shardSize,
+      @Nullable TargetShardingHistory shardingHistory) {
+    if (shardingHistory == null || shardingHistory.isEmpty()) {
+      return shardTargets(targets, shardSize);
+    }
+    double shardBudget = shardSize * shardingHistory.getAverageCost();
+    int minShardSize = Math.max(1, shardSize / MIN_ADAPTIVE_SHARD_SIZE_DIVISOR);
+    int maxShardSize = shardSize * MAX_ADAPTIVE_SHARD_SIZE_MULTIPLIER;
+
+    List<Integer> shardEnds = new ArrayList<>();
+    double shardCost = 0;
+    int shardTargetCount = 0;
+    for (int i = 0; i < targets.size(); i++) {
+      TargetExpression target = targets.get(i);
+      if (target.isExcluded()) {
+        continue;
+      }
+      double cost = shardingHistory.estimateCost(target);
+      if (shardTargetCount >= minShardSize
+          && (shardTargetCount >= maxShardSize || shardCost + cost > shardBudget)) {
+        shardEnds.add(i);
+        shardCost = 0;
+        shardTargetCount = 0;
+      }
+      shardCost += cost;
+      shardTargetCount++;
+    }
+    shardEnds.add(targets.size());
+    return partition(targets, shardEnds);
+  }
+
+  /**
+   * Splits the targets at the given (ascending) end indices. Because order is important with
+   * respect to excluded targets, each shard has all subsequent excluded targets appended to it.
+   */
+  private static ShardedTargetList partition(
+      List<TargetExpression> targets, List<Integer> shardEnds) {
     List<List<TargetExpression>> output = new ArrayList<>();
-    for (int index = 0; index < targets.size(); index += shardSize) {
-      int endIndex = Math.min(targets.size(), index + shardSize);
+    int index = 0;
+    for (int endIndex : shardEnds) {
       List<TargetExpression> shard = new ArrayList<>(targets.subList(index, endIndex));
+      index = endIndex;
       if (shard.stream().filter(TargetExpression::isExcluded).count() == shard.size()) {
         continue;
       }
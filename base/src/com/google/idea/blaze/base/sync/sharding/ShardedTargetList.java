@@ -15,23 +15,47 @@
  */
 package com.google.idea.blaze.base.sync.sharding;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.StatusOutput;
+import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import com.google.idea.blaze.base.scope.scopes.TimingScopeListener;
 import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.sync.aspects.BuildResult;
 import com.intellij.openapi.project.Project;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import javax.annotation.concurrent.GuardedBy;
 
 /** Partitioned list of blaze targets. */
 public class ShardedTargetList {
 
   public final List<List<TargetExpression>> shardedTargets;
 
+  // blaze process wall time per shard, summed across all sharded commands
+  @GuardedBy("this")
+  private final long[] shardBuildTimeMillis;
+
+  @GuardedBy("this")
+  private final boolean[] shardOutOfMemory;
+
   public ShardedTargetList(List<List<TargetExpression>> shardedTargets) {
     this.shardedTargets = shardedTargets;
+    this.shardBuildTimeMillis = new long[shardedTargets.size()];
+    this.shardOutOfMemory = new boolean[shardedTargets.size()];
+  }
+
+  /**
+   * A blaze invocation on a single shard. The invocation adds {@code blazeTimer} to the {@link
+   * com.google.idea.blaze.base.scope.scopes.TimingScope} around each blaze process it runs, so the
+   * shard's build cost doesn't include processing the build output.
+   */
+  @FunctionalInterface
+  public interface ShardInvocation {
+    BuildResult run(List<TargetExpression> targets, TimingScopeListener blazeTimer);
   }
 
   public boolean isEmpty() {
@@ -47,23 +71,23 @@ public class ShardedTargetList {
       Project project,
       BlazeContext context,
       Function<Integer, String> progressMessage,
-      Function<List<TargetExpression>, BuildResult> invocation) {
+      ShardInvocation invocation) {
     if (isEmpty()) {
       return BuildResult.SUCCESS;
     }
     if (shardedTargets.size() == 1) {
-      return invocation.apply(shardedTargets.get(0));
+      return runShard(0, invocation);
     }
     int progress = 0;
     BuildResult output = null;
     for (int i = 0; i < shardedTargets.size(); i++, progress++) {
       context.output(new StatusOutput(progressMessage.apply(i + 1)));
-      BuildResult result = invocation.apply(shardedTargets.get(i));
+      BuildResult result = runShard(i, invocation);
       if (result.outOfMemory() && progress > 0) {
         // re-try now that blaze server has restarted
         progress = 0;
         IssueOutput.warn(retryOnOomMessage(project, i)).submit(context);
-        result = invocation.apply(shardedTargets.get(i));
+        result = runShard(i, invocation);
       }
       output = output == null ? result : BuildResult.combine(output, result);
       if (output.status == BuildResult.Status.FATAL_ERROR) {
@@ -73,6 +97,40 @@ public class ShardedTargetList {
     return output;
   }
 
+  private BuildResult runShard(int shardIndex, ShardInvocation invocation) {
+    AtomicLong blazeTimeMillis = new AtomicLong();
+    TimingScopeListener blazeTimer =
+        new TimingScopeListener() {
+          @Override
+          public void onScopeBegin(String name, EventType eventType) {}
+
+          @Override
+          public void onScopeEnd(TimedEvent event) {
+            blazeTimeMillis.addAndGet(event.durationMillis);
+          }
+        };
+    BuildResult result = invocation.run(shardedTargets.get(shardIndex), blazeTimer);
+    recordBuildCost(shardIndex, blazeTimeMillis.get(), result.outOfMemory());
+    return result;
+  }
+
+  @VisibleForTesting
+  synchronized void recordBuildCost(
+      int shardIndex, long buildTimeMillis, boolean outOfMemory) {
+    shardBuildTimeMillis[shardIndex] += buildTimeMillis;
+    shardOutOfMemory[shardIndex] |= outOfMemory;
+  }
+
+  /** The total blaze process wall time spent on the given shard, across all sharded commands. */
+  synchronized long getBuildTimeMillis(int shardIndex) {
+    return shardBuildTimeMillis[shardIndex];
+  }
+
+  /** Whether any blaze invocation on the given shard ran out of memory. */
+  synchronized boolean ranOutOfMemory(int shardIndex) {
+    return shardOutOfMemory[shardIndex];
+  }
+
   private String retryOnOomMessage(Project project, int shardIndex) {
     String buildSystem = Blaze.buildSystemName(project);
     return String.format(
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.ideinfo.ProtoWrapper;
+import com.google.idea.blaze.base.model.SyncData;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.sync.projectview.ImportRoots;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * The observed blaze build cost of each package built during previous syncs, used to size and
+ * group build shards in subsequent syncs.
+ */
+public final class TargetShardingHistory implements SyncData<ProjectData.TargetShardingHistory> {
+
+  // weight given to the latest sync when combining it with the previous history
+  private static final double LATEST_SYNC_WEIGHT = 0.5;
+  // packages in shards which ran blaze out of memory are treated as this much more expensive
+  private static final double OUT_OF_MEMORY_COST_MULTIPLIER = 2;
+
+  /** The observed build cost of a single package. */
+  static final class PackageBuildCost
+      implements ProtoWrapper<ProjectData.TargetShardingHistory.PackageBuildCost> {
+    final double millisPerTarget;
+    final int targetCount;
+    final boolean outOfMemory;
+
+    PackageBuildCost(double millisPerTarget, int targetCount, boolean outOfMemory) {
+      this.millisPerTarget = millisPerTarget;
+      this.targetCount = targetCount;
+      this.outOfMemory = outOfMemory;
+    }
+
+    static PackageBuildCost fromProto(ProjectData.TargetShardingHistory.PackageBuildCost proto) {
+      return new PackageBuildCost(
+          proto.getMillisPerTarget(), proto.getTargetCount(), proto.getOutOfMemory());
+    }
+
+    @Override
+    public ProjectData.TargetShardingHistory.PackageBuildCost toProto() {
+      return ProjectData.TargetShardingHistory.PackageBuildCost.newBuilder()
+          .setMillisPerTarget(millisPerTarget)
+          .setTargetCount(targetCount)
+          .setOutOfMemory(outOfMemory)
+          .build();
+    }
+
+    /** The estimated cost of building a single target in this package. */
+    double estimatedCost() {
+      return outOfMemory ? millisPerTarget * OUT_OF_MEMORY_COST_MULTIPLIER : millisPerTarget;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof PackageBuildCost)) {
+        return false;
+      }
+      PackageBuildCost that = (PackageBuildCost) o;
+      return millisPerTarget == that.millisPerTarget
+          && targetCount == that.targetCount
+          && outOfMemory == that.outOfMemory;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(millisPerTarget, targetCount, outOfMemory);
+    }
+  }
+
+  private final ImmutableMap<String, PackageBuildCost> packageBuildCost;
+  private final double averageCost;
+
+  TargetShardingHistory(ImmutableMap<String, PackageBuildCost> packageBuildCost) {
+    this.packageBuildCost = packageBuildCost;
+    this.averageCost = averageCostPerTarget(packageBuildCost.values());
+  }
+
+  /**
+   * Averages the estimated cost over every target built, rather than over packages, so a few small
+   * expensive packages don't skew the cost of targets in unknown packages.
+   */
+  private static double averageCostPerTarget(Collection<PackageBuildCost> costs) {
+    double totalCost = 0;
+    long totalTargets = 0;
+    for (PackageBuildCost cost : costs) {
+      // histories from before target counts were recorded count each package once
+      int targetCount = Math.max(cost.targetCount, 1);
+      totalCost += cost.estimatedCost() * targetCount;
+      totalTargets += targetCount;
+    }
+    return totalTargets > 0 ? totalCost / totalTargets : 0;
+  }
+
+  private static TargetShardingHistory fromProto(ProjectData.TargetShardingHistory proto) {
+    return new TargetShardingHistory(
+        ProtoWrapper.map(
+            proto.getPackageBuildCostMap(), Functions.identity(), PackageBuildCost::fromProto));
+  }
+
+  @Override
+  public ProjectData.TargetShardingHistory toProto() {
+    return ProjectData.TargetShardingHistory.newBuilder()
+        .putAllPackageBuildCost(
+            ProtoWrapper.map(packageBuildCost, Functions.identity(), PackageBuildCost::toProto))
+        .build();
+  }
+
+  @Override
+  public void insert(ProjectData.SyncState.Builder builder) {
+    builder.setTargetShardingHistory(toProto());
+  }
+
+  boolean isEmpty() {
+    return averageCost <= 0;
+  }
+
+  /** The average estimated cost of building a single target, across all targets built so far. */
+  double getAverageCost() {
+    return averageCost;
+  }
+
+  /**
+   * The estimated cost of building the given target. Falls back to the average cost for targets in
+   * packages not yet built.
+   */
+  double estimateCost(TargetExpression target) {
+    if (!(target instanceof Label)) {
+      return averageCost;
+    }
+    PackageBuildCost cost = packageBuildCost.get(packageKey((Label) target));
+    return cost != null ? cost.estimatedCost() : averageCost;
+  }
+
+  /**
+   * Combines the build cost observed for each shard in the latest sync with the previous history.
+   * Packages outside the project's import roots are dropped unless built in the latest sync, so
+   * the history doesn't grow with every package ever synced. Returns null if nothing is known about
+   * any package.
+   */
+  @Nullable
+  public static TargetShardingHistory update(
+      @Nullable TargetShardingHistory previous,
+      ShardedTargetList shards,
+      ImportRoots importRoots) {
+    Map<String, PackageBuildCost> observed = observeBuildCost(shards);
+    Map<String, PackageBuildCost> combined = new HashMap<>();
+    if (previous != null) {
+      previous.packageBuildCost.forEach(
+          (pkg, cost) -> {
+            WorkspacePath path = WorkspacePath.createIfValid(pkg);
+            if (path != null && importRoots.containsWorkspacePath(path)) {
+              combined.put(pkg, cost);
+            }
+          });
+    }
+    observed.forEach(
+        (pkg, cost) -> {
+          PackageBuildCost old = combined.get(pkg);
+          combined.put(
+              pkg,
+              old == null
+                  ? cost
+                  : new PackageBuildCost(
+                      LATEST_SYNC_WEIGHT * cost.millisPerTarget
+                          + (1 - LATEST_SYNC_WEIGHT) * old.millisPerTarget,
+                      cost.targetCount,
+                      cost.outOfMemory));
+        });
+    return combined.isEmpty() ? null : new TargetShardingHistory(ImmutableMap.copyOf(combined));
+  }
+
+  /**
+   * Attributes each shard's build time evenly to the targets in that shard, then averages it per
+   * package.
+   */
+  private static Map<String, PackageBuildCost> observeBuildCost(ShardedTargetList shards) {
+    Map<String, Double> packageMillis = new HashMap<>();
+    Map<String, Integer> packageTargets = new HashMap<>();
+    Map<String, Boolean> packageOutOfMemory = new HashMap<>();
+    for (int i = 0; i < shards.shardedTargets.size(); i++) {
+      long buildTimeMillis = shards.getBuildTimeMillis(i);
+      if (buildTimeMillis <= 0) {
+        // this shard wasn't built
+        continue;
+      }
+      List<TargetExpression> shard = shards.shardedTargets.get(i);
+      long targetCount = shard.stream().filter(t -> !t.isExcluded()).count();
+      if (targetCount == 0) {
+        continue;
+      }
+      double millisPerTarget = (double) buildTimeMillis / targetCount;
+      boolean outOfMemory = shards.ranOutOfMemory(i);
+      for (TargetExpression target : shard) {
+        if (target.isExcluded() || !(target instanceof Label)) {
+          continue;
+        }
+        String pkg = packageKey((Label) target);
+        packageMillis.merge(pkg, millisPerTarget, Double::sum);
+        packageTargets.merge(pkg, 1, Integer::sum);
+        packageOutOfMemory.merge(pkg, outOfMemory, Boolean::logicalOr);
+      }
+    }
+    Map<String, PackageBuildCost> observed = new HashMap<>();
+    packageMillis.forEach(
+        (pkg, millis) ->
+            observed.put(
+                pkg,
+                new PackageBuildCost(
+                    millis / packageTargets.get(pkg),
+                    packageTargets.get(pkg),
+                    packageOutOfMemory.get(pkg))));
+    return observed;
+  }
+
+  private static String packageKey(Label label) {
+    return label.blazePackage().relativePath();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof TargetShardingHistory)) {
+      return false;
+    }
+    return packageBuildCost.equals(((TargetShardingHistory) o).packageBuildCost);
+  }
+
+  @Override
+  public int hashCode() {
+    return packageBuildCost.hashCode();
+  }
+
+  static class Extractor implements SyncData.Extractor<TargetShardingHistory> {
+    @Nullable
+    @Override
+    public TargetShardingHistory extract(ProjectData.SyncState syncState) {
+      return syncState.hasTargetShardingHistory()
+          ? TargetShardingHistory.fromProto(syncState.getTargetShardingHistory())
+          : null;
+    }
+  }
+}
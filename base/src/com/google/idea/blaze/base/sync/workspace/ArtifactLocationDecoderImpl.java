@@ -15,6 +15,9 @@
  */
 package com.google.idea.blaze.base.sync.workspace;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.idea.blaze.base.command.info.BlazeInfo;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.intellij.openapi.util.io.FileUtil;
@@ -26,12 +29,26 @@ import java.util.Objects;
 public final class ArtifactLocationDecoderImpl implements ArtifactLocationDecoder {
   private static final long serialVersionUID = 1L;
 
+  // the decoder lives as long as the project data, and also decodes artifacts outside the target
+  // map (e.g. build outputs), so the memo is bounded
+  private static final int MAX_DECODED_FILES = 100_000;
+
   private final BlazeInfo blazeInfo;
   private final WorkspacePathResolver pathResolver;
+  // execution root artifacts are decoded once per sync, since building their canonical paths is
+  // relatively expensive. Workspace paths can depend on the state of the package roots.
+  private final Cache<ArtifactLocation, File> decodedFiles;
 
   public ArtifactLocationDecoderImpl(BlazeInfo blazeInfo, WorkspacePathResolver pathResolver) {
+    this(blazeInfo, pathResolver, MAX_DECODED_FILES);
+  }
+
+  @VisibleForTesting
+  ArtifactLocationDecoderImpl(
+      BlazeInfo blazeInfo, WorkspacePathResolver pathResolver, int maxDecodedFiles) {
     this.blazeInfo = blazeInfo;
     this.pathResolver = pathResolver;
+    this.decodedFiles = CacheBuilder.newBuilder().maximumSize(maxDecodedFiles).build();
   }
 
   @Override
@@ -39,13 +56,18 @@ public final class ArtifactLocationDecoderImpl implements ArtifactLocationDecode
     if (artifactLocation.isMainWorkspaceSourceArtifact()) {
       return pathResolver.resolveToFile(artifactLocation.getRelativePath());
     }
-    String path =
-        Paths.get(
-                blazeInfo.getExecutionRoot().getPath(),
-                artifactLocation.getExecutionRootRelativePath())
-            .toString();
-    // doesn't require file-system operations -- no attempt to resolve symlinks.
-    return new File(FileUtil.toCanonicalPath(path));
+    File file = decodedFiles.getIfPresent(artifactLocation);
+    if (file == null) {
+      String path =
+          Paths.get(
+                  blazeInfo.getExecutionRoot().getPath(),
+                  artifactLocation.getExecutionRootRelativePath())
+              .toString();
+      // doesn't require file-system operations -- no attempt to resolve symlinks.
+      file = new File(FileUtil.toCanonicalPath(path));
+      decodedFiles.put(artifactLocation, file);
+    }
+    return file;
   }
 
   @Override
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.ideinfo.Dependency;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dependency graph of a {@link TargetMap}, condensed into its strongly connected components.
+ *
+ * <p>Targets are referred to by int ids, and the transitive closure of a component is a bitset
+ * over component ids. Closures are computed on demand and the most recently used ones are kept.
+ *
+ * <p>As in {@link TransitiveDependencyMap#getTransitiveDependenciesStream}, dependencies are
+ * followed via their plain target keys, and a target is only its own transitive dependency if it
+ * is part of a dependency cycle.
+ */
+final class CondensedDependencyGraph {
+
+  // computing a closure is cheap relative to a graph walk over TargetKeys, but retaining every
+  // closure would take space quadratic in the number of targets
+  private static final int MAX_CACHED_CLOSURES = 1024;
+
+  final TargetMap targetMap;
+  private final Map<TargetKey, Integer> ids;
+  private final TargetKey[] keys;
+  private final int[] componentOf;
+  // the targets in each component
+  private final int[][] members;
+  // the distinct components each component directly depends on, excluding itself
+  private final int[][] componentDeps;
+  // whether each target in the component is a transitive dependency of itself
+  private final BitSet cyclic;
+  private final LoadingCache<Integer, BitSet> closures =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_CLOSURES)
+          .build(CacheLoader.from(this::computeClosure));
+
+  private CondensedDependencyGraph(
+      TargetMap targetMap,
+      Map<TargetKey, Integer> ids,
+      TargetKey[] keys,
+      int[] componentOf,
+      int[][] members,
+      int[][] componentDeps,
+      BitSet cyclic) {
+    this.targetMap = targetMap;
+    this.ids = ids;
+    this.keys = keys;
+    this.componentOf = componentOf;
+    this.members = members;
+    this.componentDeps = componentDeps;
+    this.cyclic = cyclic;
+  }
+
+  static CondensedDependencyGraph create(TargetMap targetMap) {
+    Map<TargetKey, Integer> ids = new HashMap<>();
+    List<TargetKey> keys = new ArrayList<>();
+    for (TargetKey key : targetMap.map().keySet()) {
+      ids.put(key, keys.size());
+      keys.add(key);
+    }
+    int[][] edges = new int[keys.size()][];
+    int targetCount = keys.size();
+    for (int i = 0; i < targetCount; i++) {
+      TargetIdeInfo target = targetMap.get(keys.get(i));
+      edges[i] =
+          target.getDependencies().stream()
+              .map(Dependency::getTargetKey)
+              .map(key -> TargetKey.forPlainTarget(key.getLabel()))
+              .mapToInt(
+                  key ->
+                      ids.computeIfAbsent(
+                          key,
+                          k -> {
+                            keys.add(k);
+                            return keys.size() - 1;
+                          }))
+              .distinct()
+              .toArray();
+    }
+    // dependencies which aren't in the target map have no dependencies of their own
+    edges = Arrays.copyOf(edges, keys.size());
+    for (int i = targetCount; i < edges.length; i++) {
+      edges[i] = new int[0];
+    }
+
+    int[] componentOf = findComponents(edges);
+    int componentCount = Arrays.stream(componentOf).max().orElse(-1) + 1;
+    List<List<Integer>> memberLists = new ArrayList<>(componentCount);
+    List<BitSet> depSets = new ArrayList<>(componentCount);
+    for (int c = 0; c < componentCount; c++) {
+      memberLists.add(new ArrayList<>());
+      depSets.add(new BitSet());
+    }
+    BitSet cyclic = new BitSet(componentCount);
+    for (int node = 0; node < edges.length; node++) {
+      int component = componentOf[node];
+      memberLists.get(component).add(node);
+      for (int dep : edges[node]) {
+        if (componentOf[dep] == component) {
+          cyclic.set(component);
+        } else {
+          depSets.get(component).set(componentOf[dep]);
+        }
+      }
+    }
+    int[][] members = new int[componentCount][];
+    int[][] componentDeps = new int[componentCount][];
+    for (int c = 0; c < componentCount; c++) {
+      members[c] = memberLists.get(c).stream().mapToInt(Integer::intValue).toArray();
+      componentDeps[c] = depSets.get(c).stream().toArray();
+    }
+    return new CondensedDependencyGraph(
+        targetMap,
+        ids,
+        keys.toArray(new TargetKey[0]),
+        componentOf,
+        members,
+        componentDeps,
+        cyclic);
+  }
+
+  /**
+   * Assigns each node to a strongly connected component, using an iterative version of Tarjan's
+   * algorithm to avoid overflowing the stack on deep dependency chains.
+   */
+  private static int[] findComponents(int[][] edges) {
+    int nodeCount = edges.length;
+    int[] index = new int[nodeCount];
+    int[] lowLink = new int[nodeCount];
+    int[] componentOf = new int[nodeCount];
+    int[] nextEdge = new int[nodeCount];
+    boolean[] onStack = new boolean[nodeCount];
+    int[] stack = new int[nodeCount];
+    int[] callStack = new int[nodeCount];
+    Arrays.fill(index, -1);
+    int nextIndex = 0;
+    int nextComponent = 0;
+    int stackSize = 0;
+    for (int root = 0; root < nodeCount; root++) {
+      if (index[root] != -1) {
+        continue;
+      }
+      int callDepth = 0;
+      callStack[callDepth++] = root;
+      index[root] = lowLink[root] = nextIndex++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+      while (callDepth > 0) {
+        int node = callStack[callDepth - 1];
+        if (nextEdge[node] < edges[node].length) {
+          int dep = edges[node][nextEdge[node]++];
+          if (index[dep] == -1) {
+            index[dep] = lowLink[dep] = nextIndex++;
+            stack[stackSize++] = dep;
+            onStack[dep] = true;
+            callStack[callDepth++] = dep;
+          } else if (onStack[dep]) {
+            lowLink[node] = Math.min(lowLink[node], index[dep]);
+          }
+          continue;
+        }
+        callDepth--;
+        if (lowLink[node] == index[node]) {
+          int member;
+          do {
+            member = stack[--stackSize];
+            onStack[member] = false;
+            componentOf[member] = nextComponent;
+          } while (member != node);
+          nextComponent++;
+        }
+        if (callDepth > 0) {
+          int parent = callStack[callDepth - 1];
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+        }
+      }
+    }
+    return componentOf;
+  }
+
+  /** The components reachable from the given component via one or more dependency edges. */
+  private BitSet computeClosure(int component) {
+    BitSet closure = new BitSet(members.length);
+    int[] toVisit = new int[members.length];
+    int toVisitCount = 0;
+    for (int dep : componentDeps[component]) {
+      closure.set(dep);
+      toVisit[toVisitCount++] = dep;
+    }
+    while (toVisitCount > 0) {
+      for (int dep : componentDeps[toVisit[--toVisitCount]]) {
+        if (!closure.get(dep)) {
+          closure.set(dep);
+          toVisit[toVisitCount++] = dep;
+        }
+      }
+    }
+    if (cyclic.get(component)) {
+      closure.set(component);
+    }
+    return closure;
+  }
+
+  boolean hasTransitiveDependency(TargetKey dependent, TargetKey dependency) {
+    Integer dependentId = ids.get(dependent);
+    Integer dependencyId = ids.get(dependency);
+    if (dependentId == null || dependencyId == null) {
+      return false;
+    }
+    return closures.getUnchecked(componentOf[dependentId]).get(componentOf[dependencyId]);
+  }
+
+  ImmutableSet<TargetKey> getTransitiveDependencies(TargetKey key) {
+    Integer id = ids.get(key);
+    if (id == null) {
+      return ImmutableSet.of();
+    }
+    BitSet closure = closures.getUnchecked(componentOf[id]);
+    ImmutableSet.Builder<TargetKey> builder = ImmutableSet.builder();
+    for (int c = closure.nextSetBit(0); c >= 0; c = closure.nextSetBit(c + 1)) {
+      for (int member : members[c]) {
+        builder.add(keys[member]);
+      }
+    }
+    return builder.build();
+  }
+}
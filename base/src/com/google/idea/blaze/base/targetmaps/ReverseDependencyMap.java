@@ -50,4 +50,12 @@ public class ReverseDependencyMap {
     }
     return builder.build();
   }
+
+  /** Warms up the reverse dependency map after sync. */
+  static class Precomputer implements SyncCache.Precomputer {
+    @Override
+    public void precompute(Project project) {
+      get(project);
+    }
+  }
 }
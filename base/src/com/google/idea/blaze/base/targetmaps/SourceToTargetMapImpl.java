@@ -19,24 +19,38 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.Label;
-import com.google.idea.blaze.base.sync.SyncCache;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
 import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import javax.annotation.Nullable;
 
-/** Maps source files to their respective targets */
+/**
+ * Maps source files to their respective targets.
+ *
+ * <p>The map is kept across syncs. When the project data changes, only the sources of added,
+ * removed and updated targets are decoded again.
+ */
 public class SourceToTargetMapImpl implements SourceToTargetMap {
   private final Project project;
 
+  // replaced under the lock, and read without it
+  @Nullable private volatile Snapshot snapshot;
+
   public SourceToTargetMapImpl(Project project) {
     this.project = project;
   }
@@ -61,30 +75,115 @@ public class SourceToTargetMapImpl implements SourceToTargetMap {
 
   @Override
   public ImmutableCollection<TargetKey> getRulesForSourceFile(File sourceFile) {
-    ImmutableMultimap<File, TargetKey> sourceToTargetMap = getSourceToTargetMap();
-    if (sourceToTargetMap == null) {
+    BlazeProjectData blazeProjectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    if (blazeProjectData == null) {
       return ImmutableList.of();
     }
-    return sourceToTargetMap.get(sourceFile);
+    return getSnapshot(blazeProjectData).sourceToTargetMap.get(sourceFile);
   }
 
-  @Nullable
-  private synchronized ImmutableMultimap<File, TargetKey> getSourceToTargetMap() {
-    return SyncCache.getInstance(project)
-        .get(SourceToTargetMapImpl.class, SourceToTargetMapImpl::computeSourceToTargetMap);
+  private Snapshot getSnapshot(BlazeProjectData blazeProjectData) {
+    TargetMap targetMap = blazeProjectData.getTargetMap();
+    ArtifactLocationDecoder decoder = blazeProjectData.getArtifactLocationDecoder();
+    Snapshot snapshot = this.snapshot;
+    if (snapshot != null && snapshot.isFor(targetMap, decoder)) {
+      return snapshot;
+    }
+    synchronized (this) {
+      snapshot = this.snapshot;
+      if (snapshot == null || !snapshot.isFor(targetMap, decoder)) {
+        snapshot =
+            snapshot != null && snapshot.decoder.equals(decoder)
+                ? snapshot.update(targetMap)
+                : Snapshot.create(targetMap, decoder);
+        this.snapshot = snapshot;
+      }
+      return snapshot;
+    }
   }
 
-  @SuppressWarnings("unused")
-  private static ImmutableMultimap<File, TargetKey> computeSourceToTargetMap(
-      Project project, BlazeProjectData blazeProjectData) {
-    ArtifactLocationDecoder artifactLocationDecoder = blazeProjectData.getArtifactLocationDecoder();
-    ImmutableMultimap.Builder<File, TargetKey> sourceToTargetMap = ImmutableMultimap.builder();
-    for (TargetIdeInfo target : blazeProjectData.getTargetMap().targets()) {
-      TargetKey key = target.getKey();
-      for (ArtifactLocation sourceArtifact : target.getSources()) {
-        sourceToTargetMap.put(artifactLocationDecoder.decode(sourceArtifact), key);
+  /** An immutable source to target map, built from a single target map. */
+  private static final class Snapshot {
+    // only used to recognize the target map, which shouldn't be kept reachable after a sync
+    final WeakReference<TargetMap> targetMap;
+    final ArtifactLocationDecoder decoder;
+    // the sources the map was built from for each target, to find the targets which changed
+    final ImmutableMap<TargetKey, ImmutableSet<ArtifactLocation>> targetSources;
+    final ImmutableListMultimap<File, TargetKey> sourceToTargetMap;
+
+    private Snapshot(
+        TargetMap targetMap,
+        ArtifactLocationDecoder decoder,
+        ImmutableMap<TargetKey, ImmutableSet<ArtifactLocation>> targetSources,
+        ImmutableListMultimap<File, TargetKey> sourceToTargetMap) {
+      this.targetMap = new WeakReference<>(targetMap);
+      this.decoder = decoder;
+      this.targetSources = targetSources;
+      this.sourceToTargetMap = sourceToTargetMap;
+    }
+
+    boolean isFor(TargetMap targetMap, ArtifactLocationDecoder decoder) {
+      return this.targetMap.get() == targetMap && this.decoder.equals(decoder);
+    }
+
+    static Snapshot create(TargetMap targetMap, ArtifactLocationDecoder decoder) {
+      ImmutableMap.Builder<TargetKey, ImmutableSet<ArtifactLocation>> targetSources =
+          ImmutableMap.builder();
+      ImmutableListMultimap.Builder<File, TargetKey> sourceToTargetMap =
+          ImmutableListMultimap.builder();
+      for (TargetIdeInfo target : targetMap.targets()) {
+        targetSources.put(target.getKey(), target.getSources());
+        addSources(sourceToTargetMap, decoder, target.getKey(), target.getSources());
+      }
+      return new Snapshot(targetMap, decoder, targetSources.build(), sourceToTargetMap.build());
+    }
+
+    /** Returns a snapshot for the given target map, decoding only the changed targets' sources. */
+    Snapshot update(TargetMap newTargetMap) {
+      ImmutableMap.Builder<TargetKey, ImmutableSet<ArtifactLocation>> newTargetSources =
+          ImmutableMap.builder();
+      Set<TargetKey> changedTargets = new HashSet<>();
+      for (TargetIdeInfo target : newTargetMap.targets()) {
+        // unchanged targets are shared between target maps, so this is usually an identity check
+        if (!target.getSources().equals(targetSources.get(target.getKey()))) {
+          changedTargets.add(target.getKey());
+        }
+        newTargetSources.put(target.getKey(), target.getSources());
+      }
+      for (TargetKey key : targetSources.keySet()) {
+        if (!newTargetMap.contains(key)) {
+          changedTargets.add(key);
+        }
+      }
+      if (changedTargets.isEmpty()) {
+        return new Snapshot(newTargetMap, decoder, targetSources, sourceToTargetMap);
+      }
+      ImmutableListMultimap.Builder<File, TargetKey> newSourceToTargetMap =
+          ImmutableListMultimap.builder();
+      for (Map.Entry<File, TargetKey> entry : sourceToTargetMap.entries()) {
+        if (!changedTargets.contains(entry.getValue())) {
+          newSourceToTargetMap.put(entry);
+        }
+      }
+      for (TargetKey key : changedTargets) {
+        TargetIdeInfo target = newTargetMap.get(key);
+        if (target != null) {
+          addSources(newSourceToTargetMap, decoder, key, target.getSources());
+        }
+      }
+      return new Snapshot(
+          newTargetMap, decoder, newTargetSources.build(), newSourceToTargetMap.build());
+    }
+
+    private static void addSources(
+        ImmutableListMultimap.Builder<File, TargetKey> sourceToTargetMap,
+        ArtifactLocationDecoder decoder,
+        TargetKey key,
+        ImmutableSet<ArtifactLocation> sources) {
+      for (ArtifactLocation sourceArtifact : sources) {
+        sourceToTargetMap.put(decoder.decode(sourceArtifact), key);
       }
     }
-    return sourceToTargetMap.build();
   }
 }
@@ -34,10 +34,13 @@ import java.util.LinkedHashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 
 /** Handy class to find all transitive dependencies of a given target */
 public class TransitiveDependencyMap {
   private final Project project;
+  // the condensed dependency graph of the latest target map
+  @Nullable private volatile CondensedDependencyGraph dependencyGraph;
 
   public static TransitiveDependencyMap getInstance(Project project) {
     return ServiceManager.getService(project, TransitiveDependencyMap.class);
@@ -54,24 +57,29 @@ public class TransitiveDependencyMap {
   public boolean hasTransitiveDependency(
       TargetKey possibleDependent, TargetKey possibleDependency) {
 
-    BlazeProjectData blazeProjectData =
-        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-    if (blazeProjectData == null) {
-      return false;
-    }
-
-    return getTransitiveDependenciesStream(possibleDependent, blazeProjectData.getTargetMap())
-        .anyMatch(possibleDependency::equals);
+    CondensedDependencyGraph graph = getDependencyGraph();
+    return graph != null && graph.hasTransitiveDependency(possibleDependent, possibleDependency);
   }
 
   public ImmutableCollection<TargetKey> getTransitiveDependencies(TargetKey targetKey) {
+    CondensedDependencyGraph graph = getDependencyGraph();
+    return graph != null ? graph.getTransitiveDependencies(targetKey) : ImmutableSet.of();
+  }
+
+  @Nullable
+  private CondensedDependencyGraph getDependencyGraph() {
     BlazeProjectData blazeProjectData =
         BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
     if (blazeProjectData == null) {
-      return ImmutableSet.of();
+      return null;
+    }
+    TargetMap targetMap = blazeProjectData.getTargetMap();
+    CondensedDependencyGraph graph = dependencyGraph;
+    if (graph == null || graph.targetMap != targetMap) {
+      graph = CondensedDependencyGraph.create(targetMap);
+      dependencyGraph = graph;
     }
-    // TODO: see if we need caching.
-    return getTransitiveDependencies(targetKey, blazeProjectData.getTargetMap());
+    return graph;
   }
 
   public static ImmutableCollection<TargetKey> getTransitiveDependencies(
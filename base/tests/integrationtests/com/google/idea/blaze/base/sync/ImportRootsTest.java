@@ -232,4 +232,16 @@ public class ImportRootsTest extends BlazeIntegrationTestCase {
 
     assertThat(importRoots.containsWorkspacePath(new WorkspacePath("root/a/b"))).isFalse();
   }
+
+  @Test
+  public void testContainsWorkspacePath_siblingsWithSharedPrefixAreHandled() throws Exception {
+    ImportRoots importRoots =
+        ImportRoots.builder(workspaceRoot, BuildSystem.Blaze)
+            .add(DirectoryEntry.include(new WorkspacePath("root")))
+            .add(DirectoryEntry.exclude(new WorkspacePath("root/a")))
+            .build();
+
+    assertThat(importRoots.containsWorkspacePath(new WorkspacePath("root/ab/c"))).isTrue();
+    assertThat(importRoots.containsWorkspacePath(new WorkspacePath("root/a"))).isFalse();
+  }
 }
@@ -19,14 +19,17 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId.NamedSetOfFilesId;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId.TargetCompletedId;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId.TargetConfiguredId;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId.TestResultId;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.NamedSetOfFiles;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.OutputGroup;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TargetComplete;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TargetConfigured;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TestResult;
@@ -40,11 +43,16 @@ import com.google.idea.blaze.base.run.testlogs.BlazeTestResult.TestStatus;
 import com.google.idea.blaze.base.run.testlogs.BlazeTestResults;
 import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
 import com.intellij.openapi.vfs.LocalFileSystem;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
@@ -407,6 +415,161 @@ public class BuildEventProtocolOutputReaderTest extends BlazeTestCase {
         .containsExactly(new File("/usr/local/tmp/_cache/second_result.xml"));
   }
 
+  @Test
+  public void streamAllOutputFilenames_multipleFileEvents_reportsEachNewBatchOnce()
+      throws IOException {
+    ImmutableList<String> fileSet1 =
+        ImmutableList.of("/usr/local/lib/Provider.java", "/google/code/script.sh");
+    ImmutableList<String> fileSet2 =
+        ImmutableList.of("/google/code/script.sh", "/usr/genfiles/BUILD.bazel");
+    List<BuildEvent.Builder> events =
+        ImmutableList.of(
+            BuildEvent.newBuilder().setNamedSetOfFiles(setOfFiles(fileSet1)),
+            BuildEvent.newBuilder()
+                .setProgress(BuildEventStreamProtos.Progress.getDefaultInstance()),
+            BuildEvent.newBuilder().setNamedSetOfFiles(setOfFiles(fileSet2)));
+
+    List<ImmutableList<File>> batches = new ArrayList<>();
+    BuildEventProtocolOutputReader.streamAllOutputFilenames(
+        asInputStream(events), path -> true, batches::add);
+
+    assertThat(batches)
+        .containsExactly(
+            ImmutableList.of(
+                new File("/usr/local/lib/Provider.java"), new File("/google/code/script.sh")),
+            ImmutableList.of(new File("/usr/genfiles/BUILD.bazel")))
+        .inOrder();
+  }
+
+  @Test
+  public void streamAllOutputFilenames_fileStillBeingWritten_readsEventsAppendedLater()
+      throws Exception {
+    File bepFile = new File(tmpFolder.getRoot(), "bep_output");
+    TailingFileInputStream tailingStream = new TailingFileInputStream(bepFile);
+    List<File> parsedFiles = new ArrayList<>();
+    Thread reader =
+        new Thread(
+            () -> {
+              try (InputStream inputStream = new BufferedInputStream(tailingStream)) {
+                BuildEventProtocolOutputReader.streamAllOutputFilenames(
+                    inputStream, path -> true, parsedFiles::addAll);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+    reader.start();
+
+    try (OutputStream output = new FileOutputStream(bepFile)) {
+      BuildEvent.newBuilder()
+          .setNamedSetOfFiles(setOfFiles(ImmutableList.of("/usr/local/lib/File.py")))
+          .build()
+          .writeDelimitedTo(output);
+      output.flush();
+      Thread.sleep(200);
+      BuildEvent.newBuilder()
+          .setNamedSetOfFiles(setOfFiles(ImmutableList.of("/usr/local/home/script.sh")))
+          .build()
+          .writeDelimitedTo(output);
+    }
+    tailingStream.markWriterFinished();
+    reader.join();
+
+    assertThat(parsedFiles)
+        .containsExactly(new File("/usr/local/lib/File.py"), new File("/usr/local/home/script.sh"))
+        .inOrder();
+  }
+
+  @Test
+  public void parseOutputGroupFilenames_multipleOutputGroups_returnsFilesByOutputGroup()
+      throws IOException {
+    List<BuildEvent.Builder> events =
+        ImmutableList.of(
+            namedSetEvent("info-set", ImmutableList.of("/tmp/foo.intellij-info.txt")),
+            namedSetEvent("resolve-set", ImmutableList.of("/tmp/Foo.java", "/tmp/foo.jar")),
+            namedSetEvent("other-set", ImmutableList.of("/tmp/foo.apk")),
+            BuildEvent.newBuilder()
+                .setId(
+                    BuildEventId.newBuilder()
+                        .setTargetCompleted(TargetCompletedId.newBuilder().setLabel("//foo:foo")))
+                .setCompleted(
+                    TargetComplete.newBuilder()
+                        .addOutputGroup(outputGroup("intellij-info-java", "info-set"))
+                        .addOutputGroup(outputGroup("intellij-resolve-java", "resolve-set"))
+                        .addOutputGroup(outputGroup("default", "other-set"))));
+
+    ImmutableListMultimap<String, File> files =
+        BuildEventProtocolOutputReader.parseOutputGroupFilenames(
+            asInputStream(events),
+            ImmutableList.of("intellij-info-java", "intellij-resolve-java"),
+            path -> true);
+
+    assertThat(files.keySet()).containsExactly("intellij-info-java", "intellij-resolve-java");
+    assertThat(files.get("intellij-info-java"))
+        .containsExactly(new File("/tmp/foo.intellij-info.txt"));
+    assertThat(files.get("intellij-resolve-java"))
+        .containsExactly(new File("/tmp/Foo.java"), new File("/tmp/foo.jar"));
+  }
+
+  @Test
+  public void parseFailedTargetsMissingOutputGroups_ignoresSuccessesAndReportedOutputGroups()
+      throws IOException {
+    List<BuildEvent.Builder> events =
+        ImmutableList.of(
+            namedSetEvent("info-set", ImmutableList.of("/tmp/foo.intellij-info.txt")),
+            aspectCompletedEvent("//foo:succeeded", true),
+            aspectCompletedEvent("//foo:failed_with_info", false)
+                .setCompleted(
+                    TargetComplete.newBuilder()
+                        .setSuccess(false)
+                        .addOutputGroup(outputGroup("intellij-info-java", "info-set"))),
+            aspectCompletedEvent("//foo:failed", false));
+
+    ImmutableSet<Label> labels =
+        BuildEventProtocolOutputReader.parseFailedTargetsMissingOutputGroups(
+            asInputStream(events), ImmutableList.of("intellij-info-java"));
+
+    assertThat(labels).containsExactly(Label.create("//foo:failed"));
+  }
+
+  @Test
+  public void parseFailedTargetsMissingOutputGroups_ignoresTargetCompletedEvents()
+      throws IOException {
+    List<BuildEvent.Builder> events =
+        ImmutableList.of(
+            namedSetEvent("info-set", ImmutableList.of("/tmp/foo.intellij-info.txt")),
+            targetCompletedEvent("//foo:failed_target", false),
+            aspectCompletedEvent("//foo:failed_target", true)
+                .setCompleted(
+                    TargetComplete.newBuilder()
+                        .setSuccess(true)
+                        .addOutputGroup(outputGroup("intellij-info-java", "info-set"))));
+
+    ImmutableSet<Label> labels =
+        BuildEventProtocolOutputReader.parseFailedTargetsMissingOutputGroups(
+            asInputStream(events), ImmutableList.of("intellij-info-java"));
+
+    assertThat(labels).isEmpty();
+  }
+
+  private static BuildEvent.Builder targetCompletedEvent(String label, boolean success) {
+    return BuildEvent.newBuilder()
+        .setId(
+            BuildEventId.newBuilder()
+                .setTargetCompleted(TargetCompletedId.newBuilder().setLabel(label)))
+        .setCompleted(TargetComplete.newBuilder().setSuccess(success));
+  }
+
+  private static BuildEvent.Builder aspectCompletedEvent(String label, boolean success) {
+    return BuildEvent.newBuilder()
+        .setId(
+            BuildEventId.newBuilder()
+                .setTargetCompleted(
+                    TargetCompletedId.newBuilder()
+                        .setLabel(label)
+                        .setAspect("//aspect:intellij_info_bundled.bzl%intellij_info_aspect")))
+        .setCompleted(TargetComplete.newBuilder().setSuccess(success));
+  }
+
   private static InputStream asInputStream(BuildEvent.Builder... events) throws IOException {
     return asInputStream(Arrays.asList(events));
   }
@@ -446,6 +609,19 @@ public class BuildEventProtocolOutputReaderTest extends BlazeTestCase {
                     filePaths.stream().map(this::toEventFile).collect(toImmutableList())));
   }
 
+  private BuildEvent.Builder namedSetEvent(String id, List<String> filePaths) {
+    return BuildEvent.newBuilder()
+        .setId(BuildEventId.newBuilder().setNamedSet(NamedSetOfFilesId.newBuilder().setId(id)))
+        .setNamedSetOfFiles(setOfFiles(filePaths));
+  }
+
+  private static OutputGroup outputGroup(String name, String fileSetId) {
+    return OutputGroup.newBuilder()
+        .setName(name)
+        .addFileSets(NamedSetOfFilesId.newBuilder().setId(fileSetId))
+        .build();
+  }
+
   private NamedSetOfFiles setOfFiles(List<String> filePaths) {
     return NamedSetOfFiles.newBuilder()
         .addAllFiles(filePaths.stream().map(this::toEventFile).collect(toImmutableList()))
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.io;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.async.executor.MockBlazeExecutor;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ModifiedTimeScanner}. */
+@RunWith(JUnit4.class)
+public class ModifiedTimeScannerTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  // returns a fixed modified time when set
+  private final FakeFileOperationProvider fileOperationProvider = new FakeFileOperationProvider();
+
+  private static class FakeFileOperationProvider extends FileOperationProvider {
+    @Nullable Long fakeModifiedTime;
+
+    @Override
+    public long getFileModifiedTime(File file) {
+      return fakeModifiedTime != null ? fakeModifiedTime : super.getFileModifiedTime(file);
+    }
+  }
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    applicationServices.register(BlazeExecutor.class, new MockBlazeExecutor());
+    applicationServices.register(FileOperationProvider.class, fileOperationProvider);
+  }
+
+  @Test
+  public void readTimestamps_manyFilesInDirectory_readsAllExistingFiles() throws Exception {
+    File directory = tmpFolder.newFolder("dir");
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      File file = new File(directory, "file" + i);
+      if (i % 10 != 0) {
+        assertThat(file.createNewFile()).isTrue();
+        assertThat(file.setLastModified(i * 1000L)).isTrue();
+      }
+      files.add(file);
+    }
+
+    ImmutableMap<File, Long> timestamps = ModifiedTimeScanner.readTimestamps(files);
+
+    assertThat(timestamps).hasSize(90);
+    for (int i = 1; i < 10; i++) {
+      assertThat(timestamps).containsEntry(files.get(i), i * 1000L);
+    }
+    assertThat(timestamps).doesNotContainKey(files.get(10));
+  }
+
+  @Test
+  public void readTimestamps_manyFilesInDirectory_readsEachFileThroughProvider() throws Exception {
+    File directory = tmpFolder.newFolder("dir");
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      File file = new File(directory, "file" + i);
+      assertThat(file.createNewFile()).isTrue();
+      files.add(file);
+    }
+    fileOperationProvider.fakeModifiedTime = 42L;
+
+    ImmutableMap<File, Long> timestamps = ModifiedTimeScanner.readTimestamps(files);
+
+    assertThat(timestamps.values()).containsExactlyElementsIn(Collections.nCopies(100, 42L));
+  }
+
+  @Test
+  public void readTimestamps_filesInSeveralDirectories_retainsInputOrder() throws Exception {
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      files.add(tmpFolder.newFile("file" + i));
+    }
+    files.add(tmpFolder.newFolder("c").toPath().resolve("single").toFile());
+    assertThat(files.get(40).createNewFile()).isTrue();
+
+    ImmutableMap<File, Long> timestamps = ModifiedTimeScanner.readTimestamps(files);
+
+    assertThat(timestamps.keySet()).containsExactlyElementsIn(files).inOrder();
+  }
+}
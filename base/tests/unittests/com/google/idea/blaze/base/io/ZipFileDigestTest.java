@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.io;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ZipFileDigest}. */
+@RunWith(JUnit4.class)
+public class ZipFileDigestTest {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void digest_identicalZips_returnsSameDigest() throws IOException {
+    File first = writeZip("first.jar", "contents");
+    File second = writeZip("second.jar", "contents");
+
+    assertThat(ZipFileDigest.digest(first)).isEqualTo(ZipFileDigest.digest(second));
+  }
+
+  @Test
+  public void digest_differentContents_returnsDifferentDigests() throws IOException {
+    File first = writeZip("first.jar", "contents");
+    File second = writeZip("second.jar", "other contents");
+
+    assertThat(ZipFileDigest.digest(first)).isNotEqualTo(ZipFileDigest.digest(second));
+  }
+
+  @Test
+  public void digest_notAZip_returnsDigestOfFullContents() throws IOException {
+    File file = tmpFolder.newFile("lib.jar");
+    Files.write(file.toPath(), "not a zip file".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(ZipFileDigest.digest(file)).isEqualTo(fullDigest(file));
+  }
+
+  @Test
+  public void digest_zip64CentralDirectory_returnsDigestOfFullContents() throws IOException {
+    // zip64 files mark the central directory size and offset as 0xffffffff in the end of central
+    // directory record, and store the real values in a separate record
+    ByteBuffer endOfCentralDirectory = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+    endOfCentralDirectory.putInt(0x06054b50);
+    endOfCentralDirectory.putShort((short) 0xffff); // disk number
+    endOfCentralDirectory.putShort((short) 0xffff); // disk with the central directory
+    endOfCentralDirectory.putShort((short) 0xffff); // entries on this disk
+    endOfCentralDirectory.putShort((short) 0xffff); // total entries
+    endOfCentralDirectory.putInt(0xffffffff); // central directory size
+    endOfCentralDirectory.putInt(0xffffffff); // central directory offset
+    endOfCentralDirectory.putShort((short) 0); // comment length
+    File file = tmpFolder.newFile("lib.jar");
+    Files.write(file.toPath(), endOfCentralDirectory.array());
+
+    assertThat(ZipFileDigest.digest(file)).isEqualTo(fullDigest(file));
+  }
+
+  private File writeZip(String name, String contents) throws IOException {
+    File zip = tmpFolder.newFile(name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      ZipEntry entry = new ZipEntry("Foo.class");
+      // the default is the current time, which may differ between the two zips
+      entry.setTime(0);
+      out.putNextEntry(entry);
+      out.write(contents.getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    return zip;
+  }
+
+  private static HashCode fullDigest(File file) throws IOException {
+    return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256());
+  }
+}
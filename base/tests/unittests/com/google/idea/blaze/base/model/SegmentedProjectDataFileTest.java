@@ -0,0 +1,350 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.settings.BuildSystem;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SegmentedProjectDataFile}. */
+@RunWith(JUnit4.class)
+public class SegmentedProjectDataFileTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private int corruptTargetCount = 0;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> kindProvider =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    kindProvider.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+    registerExtensionPoint(SyncData.Extractor.EP_NAME, SyncData.Extractor.class);
+  }
+
+  @Test
+  public void saveAndLoad_multipleTargets_roundTripsTargetMap() throws IOException {
+    BlazeProjectData projectData =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(twoTargetMap()).build();
+    File file = tmpFolder.newFile("cache.dat");
+
+    projectData.saveToDiskSegmented(file);
+    BlazeProjectData loaded = load(file);
+
+    assertThat(loaded.getSyncTime()).isEqualTo(projectData.getSyncTime());
+    assertThat(loaded.getTargetMap().map()).isEqualTo(projectData.getTargetMap().map());
+  }
+
+  @Test
+  public void get_loadedTargetMap_returnsDecodedTarget() throws IOException {
+    TargetMap targetMap = twoTargetMap();
+    File file = tmpFolder.newFile("cache.dat");
+    MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build().saveToDiskSegmented(file);
+
+    TargetMap loaded = load(file).getTargetMap();
+    TargetKey key = TargetKey.forPlainTarget(Label.create("//l:l1"));
+
+    assertThat(loaded.get(key)).isEqualTo(targetMap.get(key));
+    assertThat(loaded.contains(TargetKey.forPlainTarget(Label.create("//l:missing")))).isFalse();
+  }
+
+  @Test
+  public void save_fewTargetsChanged_appendsDeltaWithoutRewritingFile() throws IOException {
+    BlazeProjectData original =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(manyTargetMap()).build();
+    File file = tmpFolder.newFile("cache.dat");
+    original.saveToDiskSegmented(file);
+    byte[] originalContents = Files.readAllBytes(file.toPath());
+
+    Map<TargetKey, TargetIdeInfo> targets = new LinkedHashMap<>(original.getTargetMap().map());
+    TargetKey changed = TargetKey.forPlainTarget(Label.create("//l:target0"));
+    TargetKey removed = TargetKey.forPlainTarget(Label.create("//l:target1"));
+    targets.put(changed, target("//l:target0").addDependency("//l:target2").build());
+    targets.remove(removed);
+    BlazeProjectData updated =
+        MockBlazeProjectDataBuilder.builder()
+            .setTargetMap(new TargetMap(ImmutableMap.copyOf(targets)))
+            .build();
+    updated.saveToDiskSegmented(file, original);
+
+    assertThat(Files.readAllBytes(file.toPath())).isEqualTo(originalContents);
+    assertThat(new File(file.getPath() + ".delta").exists()).isTrue();
+    TargetMap loaded = load(file).getTargetMap();
+    assertThat(loaded.get(changed)).isEqualTo(targets.get(changed));
+    assertThat(loaded.contains(removed)).isFalse();
+    assertThat(loaded.map()).isEqualTo(updated.getTargetMap().map());
+  }
+
+  @Test
+  public void save_afterIncompleteDeltaLogRecord_appendsAfterLastCompleteRecord()
+      throws IOException {
+    BlazeProjectData original =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(manyTargetMap()).build();
+    File file = tmpFolder.newFile("cache.dat");
+    original.saveToDiskSegmented(file);
+    BlazeProjectData first = withTarget(original, target("//l:target0").addDependency("//l:a"));
+    first.saveToDiskSegmented(file, original);
+    File deltaLog = new File(file.getPath() + ".delta");
+    long completeLength = deltaLog.length();
+    // a record claiming 80 bytes, of which only two were written
+    try (FileOutputStream out = new FileOutputStream(deltaLog, true)) {
+      out.write(new byte[] {80, 1, 2});
+    }
+
+    BlazeProjectData loaded = load(file);
+    assertThat(loaded.getTargetMap()).isEqualTo(first.getTargetMap());
+    assertThat(deltaLog.length()).isEqualTo(completeLength);
+
+    BlazeProjectData second = withTarget(loaded, target("//l:target1").addDependency("//l:b"));
+    second.saveToDiskSegmented(file, loaded);
+
+    assertThat(load(file).getTargetMap()).isEqualTo(second.getTargetMap());
+  }
+
+  @Test
+  public void load_corruptDeltaLogRecordBeforeLast_throwsIOException() throws IOException {
+    BlazeProjectData original =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(manyTargetMap()).build();
+    File file = tmpFolder.newFile("cache.dat");
+    original.saveToDiskSegmented(file);
+    BlazeProjectData first = withTarget(original, target("//l:target0").addDependency("//l:a"));
+    first.saveToDiskSegmented(file, original);
+    BlazeProjectData second = withTarget(first, target("//l:target1").addDependency("//l:b"));
+    second.saveToDiskSegmented(file, first);
+    File deltaLog = new File(file.getPath() + ".delta");
+    long length = deltaLog.length();
+    // replace the first record's first tag with an invalid one (field number zero)
+    try (RandomAccessFile raf = new RandomAccessFile(deltaLog, "rw")) {
+      int lengthSize = (raf.read() & 0x80) == 0 ? 1 : 2;
+      raf.seek(lengthSize);
+      raf.write(0x07);
+    }
+
+    try {
+      load(file);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // the log isn't truncated, as the corruption isn't from an interrupted save
+      assertThat(deltaLog.length()).isEqualTo(length);
+    }
+  }
+
+  @Test
+  public void save_oneTargetChanged_deltaRecordOmitsUnchangedSyncState() throws IOException {
+    SyncState syncState =
+        new SyncState(ImmutableMap.of(FakeSyncData.class, new FakeSyncData(1000)));
+    BlazeProjectData original =
+        MockBlazeProjectDataBuilder.builder()
+            .setTargetMap(manyTargetMap())
+            .setSyncState(syncState)
+            .build();
+    File file = tmpFolder.newFile("cache.dat");
+    original.saveToDiskSegmented(file);
+    TargetIdeInfo changed = target("//l:target0").addDependency("//l:target2").build();
+    BlazeProjectData updated =
+        MockBlazeProjectDataBuilder.builder()
+            .setTargetMap(withTarget(original, changed).getTargetMap())
+            .setSyncState(syncState)
+            .build();
+
+    updated.saveToDiskSegmented(file, original);
+
+    long syncStateSize = syncState.toProto().getSerializedSize();
+    long deltaLogSize = new File(file.getPath() + ".delta").length();
+    assertThat(syncStateSize).isGreaterThan(10000L);
+    // the target, plus the base ID and record framing
+    assertThat(deltaLogSize).isLessThan(changed.toProto().getSerializedSize() + 32L);
+  }
+
+  @Test
+  public void save_withoutPreviousData_rewritesFileAndDiscardsDeltaLog() throws IOException {
+    BlazeProjectData original =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(manyTargetMap()).build();
+    File file = tmpFolder.newFile("cache.dat");
+    original.saveToDiskSegmented(file);
+    Map<TargetKey, TargetIdeInfo> targets = new LinkedHashMap<>(original.getTargetMap().map());
+    targets.remove(TargetKey.forPlainTarget(Label.create("//l:target0")));
+    BlazeProjectData updated =
+        MockBlazeProjectDataBuilder.builder()
+            .setTargetMap(new TargetMap(ImmutableMap.copyOf(targets)))
+            .build();
+    updated.saveToDiskSegmented(file, original);
+    File deltaLog = new File(file.getPath() + ".delta");
+    assertThat(deltaLog.exists()).isTrue();
+
+    updated.saveToDiskSegmented(file);
+
+    assertThat(deltaLog.exists()).isFalse();
+    assertThat(load(file).getTargetMap()).isEqualTo(updated.getTargetMap());
+  }
+
+  @Test(expected = IOException.class)
+  public void load_truncatedFile_throwsIOException() throws IOException {
+    File file = tmpFolder.newFile("cache.dat");
+    MockBlazeProjectDataBuilder.builder()
+        .setTargetMap(twoTargetMap())
+        .build()
+        .saveToDiskSegmented(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 10);
+    }
+
+    load(file);
+  }
+
+  @Test
+  public void get_corruptTarget_returnsNullAndReportsCorruption() throws IOException {
+    TargetMap targetMap = twoTargetMap();
+    File file = tmpFolder.newFile("cache.dat");
+    MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build().saveToDiskSegmented(file);
+    // skip the magic number, version, file ID, header and index, then flip a bit in the first
+    // target
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(20);
+      raf.seek(raf.getFilePointer() + raf.readInt());
+      raf.seek(raf.getFilePointer() + raf.readInt());
+      long position = raf.getFilePointer();
+      int firstByte = raf.read();
+      raf.seek(position);
+      raf.write(firstByte ^ 0x08);
+    }
+
+    TargetMap loaded = load(file).getTargetMap();
+    // targets aren't decoded until they're first accessed
+    assertThat(corruptTargetCount).isEqualTo(0);
+    TargetKey corrupt = TargetKey.forPlainTarget(Label.create("//l:l1"));
+    TargetKey intact = TargetKey.forPlainTarget(Label.create("//l:l2"));
+
+    assertThat(loaded.get(corrupt)).isNull();
+    assertThat(corruptTargetCount).isEqualTo(1);
+    assertThat(loaded.get(intact)).isEqualTo(targetMap.get(intact));
+    assertThat(loaded.map().keySet()).containsExactly(intact);
+  }
+
+  @Test(expected = IOException.class)
+  public void load_unrecognizedFormat_throwsIOException() throws IOException {
+    File file = tmpFolder.newFile("cache.dat");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+    }
+
+    load(file);
+  }
+
+  private BlazeProjectData load(File file) throws IOException {
+    return BlazeProjectData.loadFromDiskSegmented(
+        BuildSystem.Blaze, file, () -> corruptTargetCount++);
+  }
+
+  private static BlazeProjectData withTarget(
+      BlazeProjectData projectData, TargetIdeInfo.Builder target) {
+    return withTarget(projectData, target.build());
+  }
+
+  private static BlazeProjectData withTarget(BlazeProjectData projectData, TargetIdeInfo target) {
+    Map<TargetKey, TargetIdeInfo> targets = new LinkedHashMap<>(projectData.getTargetMap().map());
+    targets.put(target.getKey(), target);
+    return MockBlazeProjectDataBuilder.builder()
+        .setTargetMap(new TargetMap(ImmutableMap.copyOf(targets)))
+        .build();
+  }
+
+  private static TargetMap manyTargetMap() {
+    TargetMapBuilder builder = TargetMapBuilder.builder();
+    for (int i = 0; i < 100; i++) {
+      builder.addTarget(target("//l:target" + i));
+    }
+    return builder.build();
+  }
+
+  private static TargetIdeInfo.Builder target(String label) {
+    return TargetIdeInfo.builder()
+        .setBuildFile(ArtifactLocation.builder().setRelativePath("l/BUILD").build())
+        .setLabel(label)
+        .setKind("proto_library");
+  }
+
+  private static TargetMap twoTargetMap() {
+    return TargetMapBuilder.builder()
+        .addTarget(
+            TargetIdeInfo.builder()
+                .setBuildFile(ArtifactLocation.builder().setRelativePath("l/BUILD").build())
+                .setLabel("//l:l1")
+                .setKind("proto_library")
+                .addDependency("//l:l2"))
+        .addTarget(
+            TargetIdeInfo.builder()
+                .setBuildFile(ArtifactLocation.builder().setRelativePath("l/BUILD").build())
+                .setLabel("//l:l2")
+                .setKind("proto_library"))
+        .build();
+  }
+
+  /** Sync data with many entries, which is unchanged between saves. */
+  private static class FakeSyncData implements SyncData<ProjectData.TargetShardingHistory> {
+    private final int size;
+
+    FakeSyncData(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public ProjectData.TargetShardingHistory toProto() {
+      ProjectData.TargetShardingHistory.Builder builder =
+          ProjectData.TargetShardingHistory.newBuilder();
+      for (int i = 0; i < size; i++) {
+        builder.putPackageBuildCost(
+            "//package" + i,
+            ProjectData.TargetShardingHistory.PackageBuildCost.newBuilder()
+                .setMillisPerTarget(i)
+                .build());
+      }
+      return builder.build();
+    }
+
+    @Override
+    public void insert(ProjectData.SyncState.Builder builder) {
+      builder.setTargetShardingHistory(toProto());
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.targetfinder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.dependencies.TargetInfo;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.sync.SyncCache;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ProjectTargetFinder}. */
+@RunWith(JUnit4.class)
+public class ProjectTargetFinderTest extends BlazeTestCase {
+
+  private final MockBlazeProjectDataManager projectDataManager = new MockBlazeProjectDataManager();
+  private final ProjectTargetFinder targetFinder = new ProjectTargetFinder();
+  private SyncCache syncCache;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    syncCache = new SyncCache(project);
+    projectServices.register(BlazeProjectDataManager.class, projectDataManager);
+    projectServices.register(SyncCache.class, syncCache);
+
+    ExtensionPointImpl<Kind.Provider> kindProvider =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    kindProvider.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+  }
+
+  @Test
+  public void findTarget_plainTarget_doesNotBuildLabelIndex() throws Exception {
+    projectDataManager.targetMap =
+        new TargetMap(ImmutableMap.of(plainKey("//foo:lib"), target("//foo:lib", "sh_library")));
+
+    TargetInfo target = targetFinder.findTarget(project, Label.create("//foo:lib")).get();
+
+    assertThat(target.label).isEqualTo(Label.create("//foo:lib"));
+    assertThat(cachedLabelIndex()).isNull();
+  }
+
+  @Test
+  public void findTarget_onlyAspectTarget_isFoundThroughLabelIndex() throws Exception {
+    projectDataManager.targetMap =
+        new TargetMap(ImmutableMap.of(aspectKey("//foo:lib"), target("//foo:lib", "sh_library")));
+
+    TargetInfo target = targetFinder.findTarget(project, Label.create("//foo:lib")).get();
+
+    assertThat(target.label).isEqualTo(Label.create("//foo:lib"));
+    assertThat(cachedLabelIndex())
+        .containsExactly(Label.create("//foo:lib"), aspectKey("//foo:lib"));
+  }
+
+  @Test
+  public void findTarget_repeatedLookups_reuseLabelIndex() throws Exception {
+    projectDataManager.targetMap =
+        new TargetMap(
+            ImmutableMap.of(
+                aspectKey("//foo:lib"), target("//foo:lib", "sh_library"),
+                aspectKey("//foo:bin"), target("//foo:bin", "sh_binary")));
+
+    targetFinder.findTarget(project, Label.create("//foo:lib")).get();
+    ImmutableMap<Label, TargetKey> labelIndex = cachedLabelIndex();
+    TargetInfo target = targetFinder.findTarget(project, Label.create("//foo:bin")).get();
+
+    assertThat(target.label).isEqualTo(Label.create("//foo:bin"));
+    assertThat(cachedLabelIndex()).isSameAs(labelIndex);
+  }
+
+  @Test
+  public void findTarget_missingLabel_returnsNull() throws Exception {
+    projectDataManager.targetMap =
+        new TargetMap(ImmutableMap.of(aspectKey("//foo:lib"), target("//foo:lib", "sh_library")));
+
+    assertThat(targetFinder.findTarget(project, Label.create("//foo:other")).get()).isNull();
+  }
+
+  @Test
+  public void findTarget_newTargetMapAfterSync_rebuildsLabelIndex() throws Exception {
+    projectDataManager.targetMap =
+        new TargetMap(ImmutableMap.of(aspectKey("//foo:lib"), target("//foo:lib", "sh_library")));
+    targetFinder.findTarget(project, Label.create("//foo:lib")).get();
+
+    // a sync replaces the target map, and clears the sync cache holding the label index
+    projectDataManager.targetMap =
+        new TargetMap(ImmutableMap.of(aspectKey("//foo:bin"), target("//foo:bin", "sh_binary")));
+    syncCache.clear();
+
+    assertThat(targetFinder.findTarget(project, Label.create("//foo:lib")).get()).isNull();
+    TargetInfo target = targetFinder.findTarget(project, Label.create("//foo:bin")).get();
+    assertThat(target.label).isEqualTo(Label.create("//foo:bin"));
+    assertThat(cachedLabelIndex())
+        .containsExactly(Label.create("//foo:bin"), aspectKey("//foo:bin"));
+  }
+
+  @Nullable
+  private ImmutableMap<Label, TargetKey> cachedLabelIndex() {
+    // returns null rather than building the index if it isn't already cached
+    return syncCache.get(ProjectTargetFinder.class, (p, projectData) -> null);
+  }
+
+  private static TargetIdeInfo target(String label, String kind) {
+    return TargetIdeInfo.builder()
+        .setBuildFile(
+            ArtifactLocation.builder().setRelativePath("foo/BUILD").setIsSource(true).build())
+        .setLabel(label)
+        .setKind(kind)
+        .build();
+  }
+
+  private static TargetKey plainKey(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+
+  private static TargetKey aspectKey(String label) {
+    return TargetKey.forGeneralTarget(Label.create(label), ImmutableList.of("//some:aspect"));
+  }
+
+  private static class MockBlazeProjectDataManager implements BlazeProjectDataManager {
+
+    private TargetMap targetMap = new TargetMap(ImmutableMap.of());
+
+    @Nullable
+    @Override
+    public BlazeProjectData getBlazeProjectData() {
+      return MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.run.testmap;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.sync.SyncCache;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for the memoized reachable targets in {@link FilteredTargetMap}. */
+@RunWith(JUnit4.class)
+public class FilteredTargetMapTest extends BlazeTestCase {
+
+  private final MockBlazeProjectDataManager projectDataManager = new MockBlazeProjectDataManager();
+  private SyncCache syncCache;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    syncCache = new SyncCache(project);
+    projectServices.register(BlazeProjectDataManager.class, projectDataManager);
+    projectServices.register(SyncCache.class, syncCache);
+
+    ExtensionPointImpl<Kind.Provider> kindProvider =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    kindProvider.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+  }
+
+  @Test
+  public void targetsForSourceFile_repeatedQuery_returnsMemoizedTargets() {
+    projectDataManager.targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(library("//test:lib", "test/Lib.java"))
+            .addTarget(test("//test:test", "//test:lib"))
+            .build();
+    FilteredTargetMap filteredTargetMap = createFilteredTargetMap(10);
+
+    ImmutableSet<TargetIdeInfo> first =
+        filteredTargetMap.targetsForSourceFile(file("test/Lib.java"));
+    ImmutableSet<TargetIdeInfo> second =
+        filteredTargetMap.targetsForSourceFile(file("test/Lib.java"));
+
+    assertThat(labels(first)).containsExactly("//test:lib", "//test:test");
+    assertThat(second).isSameAs(first);
+    assertThat(filteredTargetMap.isCached(key("//test:lib"))).isTrue();
+  }
+
+  @Test
+  public void targetsForSourceFile_newTargetMap_findsNewDependents() {
+    projectDataManager.targetMap =
+        TargetMapBuilder.builder().addTarget(library("//test:lib", "test/Lib.java")).build();
+    FilteredTargetMap filteredTargetMap = createFilteredTargetMap(10);
+    assertThat(labels(filteredTargetMap.targetsForSourceFile(file("test/Lib.java"))))
+        .containsExactly("//test:lib");
+
+    // a sync replaces the target map, and clears the sync cache holding the filtered target map
+    projectDataManager.targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(library("//test:lib", "test/Lib.java"))
+            .addTarget(test("//test:test", "//test:lib"))
+            .build();
+    syncCache.clear();
+    filteredTargetMap = createFilteredTargetMap(10);
+
+    assertThat(filteredTargetMap.isCached(key("//test:lib"))).isFalse();
+    assertThat(labels(filteredTargetMap.targetsForSourceFile(file("test/Lib.java"))))
+        .containsExactly("//test:lib", "//test:test");
+  }
+
+  @Test
+  public void targetsForSourceFile_moreSourceTargetsThanMaxCached_evictsLeastRecentlyUsed() {
+    projectDataManager.targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(library("//test:a", "test/A.java"))
+            .addTarget(library("//test:b", "test/B.java"))
+            .addTarget(library("//test:c", "test/C.java"))
+            .build();
+    FilteredTargetMap filteredTargetMap = createFilteredTargetMap(2);
+
+    filteredTargetMap.targetsForSourceFile(file("test/A.java"));
+    filteredTargetMap.targetsForSourceFile(file("test/B.java"));
+    filteredTargetMap.targetsForSourceFile(file("test/A.java"));
+    ImmutableSet<TargetIdeInfo> targets =
+        filteredTargetMap.targetsForSourceFile(file("test/C.java"));
+
+    assertThat(labels(targets)).containsExactly("//test:c");
+    assertThat(filteredTargetMap.isCached(key("//test:a"))).isTrue();
+    assertThat(filteredTargetMap.isCached(key("//test:b"))).isFalse();
+    assertThat(filteredTargetMap.isCached(key("//test:c"))).isTrue();
+  }
+
+  @Test
+  public void targetsForSourceFiles_severalSourceTargets_memoizesEach() {
+    projectDataManager.targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(library("//test:a", "test/A.java"))
+            .addTarget(library("//test:b", "test/B.java"))
+            .addTarget(test("//test:test", "//test:a", "//test:b"))
+            .build();
+    FilteredTargetMap filteredTargetMap = createFilteredTargetMap(10);
+
+    ImmutableSet<TargetIdeInfo> targets =
+        filteredTargetMap.targetsForSourceFiles(
+            ImmutableList.of(file("test/A.java"), file("test/B.java")));
+
+    assertThat(labels(targets)).containsExactly("//test:a", "//test:b", "//test:test");
+    assertThat(filteredTargetMap.isCached(key("//test:a"))).isTrue();
+    assertThat(filteredTargetMap.isCached(key("//test:b"))).isTrue();
+  }
+
+  private FilteredTargetMap createFilteredTargetMap(int maxCachedSourceTargets) {
+    BlazeProjectData projectData = projectDataManager.getBlazeProjectData();
+    return new FilteredTargetMap(
+        project,
+        projectData.getArtifactLocationDecoder(),
+        projectData.getTargetMap(),
+        t -> true,
+        maxCachedSourceTargets);
+  }
+
+  private static TargetIdeInfo.Builder library(String label, String source) {
+    return TargetIdeInfo.builder()
+        .setBuildFile(sourceRoot("test/BUILD"))
+        .setLabel(label)
+        .setKind("sh_library")
+        .addSource(sourceRoot(source));
+  }
+
+  private static TargetIdeInfo.Builder test(String label, String... deps) {
+    TargetIdeInfo.Builder builder =
+        TargetIdeInfo.builder()
+            .setBuildFile(sourceRoot("test/BUILD"))
+            .setLabel(label)
+            .setKind("sh_test");
+    for (String dep : deps) {
+      builder.addDependency(dep);
+    }
+    return builder;
+  }
+
+  private static ArtifactLocation sourceRoot(String relativePath) {
+    return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(true).build();
+  }
+
+  private static File file(String relativePath) {
+    return new File("/" + relativePath);
+  }
+
+  private static TargetKey key(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+
+  private static ImmutableList<String> labels(ImmutableSet<TargetIdeInfo> targets) {
+    return targets.stream().map(t -> t.getKey().getLabel().toString()).collect(toImmutableList());
+  }
+
+  private static class MockBlazeProjectDataManager implements BlazeProjectDataManager {
+
+    private TargetMap targetMap = new TargetMap(ImmutableMap.of());
+
+    @Nullable
+    @Override
+    public BlazeProjectData getBlazeProjectData() {
+      return MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SyncCache}. */
+@RunWith(JUnit4.class)
+public class SyncCacheTest extends BlazeTestCase {
+
+  private final MockBlazeProjectDataManager projectDataManager = new MockBlazeProjectDataManager();
+  private SyncCache syncCache;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    syncCache = new SyncCache(project);
+    projectServices.register(BlazeProjectDataManager.class, projectDataManager);
+    projectServices.register(SyncCache.class, syncCache);
+  }
+
+  @Test
+  public void get_repeatedReads_computesOnce() {
+    AtomicInteger computations = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      String value = syncCache.get("key", (p, data) -> "value" + computations.incrementAndGet());
+      assertThat(value).isEqualTo("value1");
+    }
+    assertThat(computations.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_afterClear_computesAgain() {
+    AtomicInteger computations = new AtomicInteger();
+
+    syncCache.get("key", (p, data) -> computations.incrementAndGet());
+    syncCache.clear();
+    Integer value = syncCache.get("key", (p, data) -> computations.incrementAndGet());
+
+    assertThat(value).isEqualTo(2);
+  }
+
+  @Test
+  public void get_noProjectData_isComputedOnceThereIsProjectData() {
+    projectDataManager.projectData = null;
+    assertThat(syncCache.get("key", (p, data) -> "value")).isNull();
+
+    projectDataManager.projectData = MockBlazeProjectDataBuilder.builder().build();
+    assertThat(syncCache.get("key", (p, data) -> "value")).isEqualTo("value");
+  }
+
+  @Test
+  public void get_failedComputation_isComputedAgainOnNextRead() {
+    try {
+      syncCache.get(
+          "key",
+          (p, data) -> {
+            throw new IllegalArgumentException();
+          });
+      fail("Expected the computation's exception to propagate");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+
+    assertThat(syncCache.get("key", (p, data) -> "value")).isEqualTo("value");
+  }
+
+  @Test
+  public void get_computableReadsOtherEntry_returnsValue() {
+    String value =
+        syncCache.get(
+            "outer", (p, data) -> syncCache.get("inner", (p2, data2) -> "inner") + " outer");
+
+    assertThat(value).isEqualTo("inner outer");
+    assertThat(syncCache.get("inner", (p, data) -> "recomputed")).isEqualTo("inner");
+  }
+
+  @Test
+  public void get_computableReadsItsOwnEntry_throwsIllegalStateException() {
+    try {
+      syncCache.get("key", (p, data) -> syncCache.get("key", (p2, data2) -> "value"));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void get_computableReadsItsOwnEntryIndirectly_throwsIllegalStateException() {
+    SyncCache.SyncCacheComputable<String> computeA =
+        (p, data) -> syncCache.get("b", (p2, data2) -> syncCache.get("a", (p3, data3) -> "a"));
+    try {
+      syncCache.get("a", computeA);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    // neither entry was cached
+    assertThat(syncCache.get("b", (p, data) -> "b")).isEqualTo("b");
+  }
+
+  @Test
+  public void get_concurrentReaders_waitForSingleComputation() throws Exception {
+    CountDownLatch computing = new CountDownLatch(1);
+    CountDownLatch finishComputing = new CountDownLatch(1);
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> computable =
+        (p, data) -> {
+          computing.countDown();
+          try {
+            finishComputing.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return computations.incrementAndGet();
+        };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Integer> first = executor.submit(() -> syncCache.get("key", computable));
+      computing.await();
+      Future<Integer> second = executor.submit(() -> syncCache.get("key", computable));
+      // another entry can be read while the first one is being computed
+      assertThat(syncCache.get("other", (p, data) -> "other")).isEqualTo("other");
+      finishComputing.countDown();
+
+      assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+      assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+      assertThat(computations.get()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static class MockBlazeProjectDataManager implements BlazeProjectDataManager {
+
+    @Nullable
+    private BlazeProjectData projectData = MockBlazeProjectDataBuilder.builder().build();
+
+    @Nullable
+    @Override
+    public BlazeProjectData getBlazeProjectData() {
+      return projectData;
+    }
+  }
+}
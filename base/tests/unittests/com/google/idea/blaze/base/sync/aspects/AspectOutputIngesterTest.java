@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.async.executor.BlazeExecutor;
+import com.google.idea.blaze.base.async.executor.MockBlazeExecutor;
+import com.google.idea.blaze.base.io.FileOperationProvider;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.model.primitives.WorkspaceType;
+import com.google.idea.blaze.base.prefetch.PrefetchService;
+import com.google.idea.blaze.base.projectview.ProjectViewSet;
+import com.google.idea.blaze.base.settings.BuildSystem;
+import com.google.idea.blaze.base.sync.aspects.AspectOutputIngester.IngestedOutput;
+import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy;
+import com.google.idea.blaze.base.sync.projectview.ImportRoots;
+import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
+import com.google.idea.common.experiments.ExperimentService;
+import com.google.idea.common.experiments.MockExperimentService;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AspectOutputIngester}. */
+@RunWith(JUnit4.class)
+public class AspectOutputIngesterTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final RecordingPrefetchService prefetchService = new RecordingPrefetchService();
+  private long currentTime = 0;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    applicationServices.register(ExperimentService.class, new MockExperimentService());
+    applicationServices.register(BlazeExecutor.class, new MockBlazeExecutor());
+    applicationServices.register(FileOperationProvider.class, new FileOperationProvider());
+    applicationServices.register(PrefetchService.class, prefetchService);
+    ExtensionPointImpl<Kind.Provider> kindProvider =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    kindProvider.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+  }
+
+  @Test
+  public void finish_severalShards_returnsTargetsFromEveryShard() throws Exception {
+    File a = writeAspectFile("a");
+    File b = writeAspectFile("b");
+    File c = writeAspectFile("c");
+    AspectOutputIngester ingester = createIngester(null, 1);
+
+    ingester.ingestShard(ImmutableList.of(a, b));
+    ingester.ingestShard(ImmutableList.of(c));
+    IngestedOutput output = ingester.finish().get();
+
+    assertThat(output.fileState.keySet()).containsExactly(a, b, c);
+    assertThat(output.updatedFiles).containsExactly(a, b, c);
+    assertThat(output.removedFiles).isEmpty();
+    assertThat(labels(output)).containsExactly("//foo:a", "//foo:b", "//foo:c");
+  }
+
+  @Test
+  public void finish_fileInSeveralShards_isIngestedOnce() throws Exception {
+    File a = writeAspectFile("a");
+    File shared = writeAspectFile("shared");
+    File b = writeAspectFile("b");
+    AspectOutputIngester ingester = createIngester(null, 1);
+
+    ingester.ingestShard(ImmutableList.of(a, shared));
+    ingester.ingestShard(ImmutableList.of(shared, b));
+    IngestedOutput output = ingester.finish().get();
+
+    assertThat(output.updatedFiles).containsExactly(a, shared, b);
+    assertThat(labels(output)).containsExactly("//foo:a", "//foo:shared", "//foo:b");
+    assertThat(prefetchService.batches)
+        .containsExactly(ImmutableSet.of(a, shared), ImmutableSet.of(b))
+        .inOrder();
+  }
+
+  @Test
+  public void finish_previousFileState_returnsOnlyUpdatedAndRemovedFiles() throws Exception {
+    File unchanged = writeAspectFile("unchanged");
+    File added = writeAspectFile("added");
+    File removed = new File(tmpFolder.getRoot(), "removed.intellij-info.txt");
+    ImmutableMap<File, Long> prevFileState =
+        ImmutableMap.of(unchanged, unchanged.lastModified(), removed, 1L);
+    AspectOutputIngester ingester = createIngester(prevFileState, 1);
+
+    ingester.ingestShard(ImmutableList.of(unchanged, added));
+    IngestedOutput output = ingester.finish().get();
+
+    assertThat(output.fileState.keySet()).containsExactly(unchanged, added);
+    assertThat(output.updatedFiles).containsExactly(added);
+    assertThat(output.removedFiles).containsExactly(removed);
+    assertThat(labels(output)).containsExactly("//foo:added");
+  }
+
+  @Test
+  public void ingestShard_smallBatches_areCoalesced() throws Exception {
+    File a = writeAspectFile("a");
+    File b = writeAspectFile("b");
+    File c = writeAspectFile("c");
+    File d = writeAspectFile("d");
+    AspectOutputIngester ingester = createIngester(null, 3);
+
+    for (File file : ImmutableList.of(a, b, c, d)) {
+      ingester.ingestShard(ImmutableList.of(file));
+    }
+    IngestedOutput output = ingester.finish().get();
+
+    assertThat(prefetchService.batches)
+        .containsExactly(ImmutableSet.of(a, b, c), ImmutableSet.of(d))
+        .inOrder();
+    assertThat(output.updatedFiles).containsExactly(a, b, c, d);
+  }
+
+  @Test
+  public void ingestShard_batchWaitedTooLong_isQueued() throws Exception {
+    File a = writeAspectFile("a");
+    File b = writeAspectFile("b");
+    File c = writeAspectFile("c");
+    AspectOutputIngester ingester = createIngester(null, 1000);
+
+    ingester.ingestShard(ImmutableList.of(a));
+    currentTime += 5000;
+    ingester.ingestShard(ImmutableList.of(b));
+    ingester.ingestShard(ImmutableList.of(c));
+    ingester.finish().get();
+
+    assertThat(prefetchService.batches)
+        .containsExactly(ImmutableSet.of(a, b), ImmutableSet.of(c))
+        .inOrder();
+  }
+
+  @Test
+  public void cancel_duringIngestion_cancelsResult() throws Exception {
+    File a = writeAspectFile("a");
+    prefetchService.result = SettableFuture.create();
+    AspectOutputIngester ingester = createIngester(null, 1);
+
+    ingester.ingestShard(ImmutableList.of(a));
+    ingester.cancel();
+
+    assertThat(ingester.finish().isCancelled()).isTrue();
+  }
+
+  @Test
+  public void cancel_pendingFiles_areNotIngested() throws Exception {
+    File a = writeAspectFile("a");
+    AspectOutputIngester ingester = createIngester(null, 1000);
+
+    ingester.ingestShard(ImmutableList.of(a));
+    ingester.cancel();
+    IngestedOutput output = ingester.finish().get();
+
+    assertThat(output.fileState).isEmpty();
+    assertThat(prefetchService.batches).isEmpty();
+  }
+
+  private AspectOutputIngester createIngester(
+      @Nullable ImmutableMap<File, Long> prevFileState, int minBatchSize) {
+    return new AspectOutputIngester(
+        prevFileState,
+        new WorkspaceLanguageSettings(
+            WorkspaceType.JAVA, ImmutableSet.of(LanguageClass.GENERIC, LanguageClass.JAVA)),
+        ImportRoots.builder(new WorkspaceRoot(tmpFolder.getRoot()), BuildSystem.Bazel).build(),
+        new MockAspectStrategy(),
+        minBatchSize,
+        () -> currentTime);
+  }
+
+  private File writeAspectFile(String name) throws IOException {
+    File file = tmpFolder.newFile(name + ".intellij-info.txt");
+    String contents =
+        String.format("kind_string: \"sh_library\"\nkey {\n  label: \"//foo:%s\"\n}\n", name);
+    Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static ImmutableList<String> labels(IngestedOutput output) {
+    return output.updatedTargets.stream()
+        .map(pair -> pair.target.getKey().getLabel().toString())
+        .collect(toImmutableList());
+  }
+
+  private static class RecordingPrefetchService implements PrefetchService {
+    // the files in each batch aren't prefetched in any particular order
+    final List<ImmutableSet<File>> batches = new ArrayList<>();
+    ListenableFuture<?> result = Futures.immediateFuture(null);
+
+    @Override
+    public synchronized ListenableFuture<?> prefetchFiles(
+        Collection<File> files, boolean refetchCachedFiles, boolean fetchFileTypes) {
+      batches.add(ImmutableSet.copyOf(files));
+      return result;
+    }
+
+    @Override
+    public ListenableFuture<?> prefetchProjectFiles(
+        Project project,
+        ProjectViewSet projectViewSet,
+        @Nullable BlazeProjectData blazeProjectData) {
+      return Futures.immediateFuture(null);
+    }
+  }
+
+  private static class MockAspectStrategy extends AspectStrategy {
+    @Override
+    public String getName() {
+      return "MockAspectStrategy";
+    }
+
+    @Override
+    protected List<String> getAspectFlags() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public ImmutableSet<BuildSystem> getSupportedBuildSystems() {
+      return ImmutableSet.copyOf(BuildSystem.values());
+    }
+  }
+}
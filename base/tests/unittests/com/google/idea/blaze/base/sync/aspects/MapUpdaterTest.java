@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MapUpdater} and {@link BiMapUpdater}. */
+@RunWith(JUnit4.class)
+public class MapUpdaterTest {
+
+  @Test
+  public void build_noChanges_returnsOriginalMap() {
+    ImmutableMap<String, Integer> base = ImmutableMap.of("a", 1, "b", 2);
+    MapUpdater<String, Integer> updater = new MapUpdater<>(base);
+    updater.putIfAbsent("a", 3);
+
+    assertThat(updater.hasChanges()).isFalse();
+    assertThat(updater.build()).isSameAs(base);
+  }
+
+  @Test
+  public void build_withUpdates_retainsOrderAndAppendsNewEntries() {
+    MapUpdater<String, Integer> updater =
+        new MapUpdater<>(ImmutableMap.of("a", 1, "b", 2, "c", 3));
+    updater.put("b", 4);
+    updater.remove("a");
+    updater.put("d", 5);
+    updater.remove("d");
+    updater.put("e", 6);
+
+    assertThat(updater.size()).isEqualTo(3);
+    assertThat(updater.get("a")).isNull();
+    assertThat(updater.build()).containsExactly("b", 4, "c", 3, "e", 6).inOrder();
+  }
+
+  @Test
+  public void forcePut_existingValue_removesPreviousKey() {
+    BiMapUpdater<String, Integer> updater = new BiMapUpdater<>(ImmutableBiMap.of("a", 1, "b", 2));
+    updater.forcePut("c", 1);
+    updater.forcePut("d", 1);
+    updater.forcePut("b", 3);
+
+    assertThat(updater.getKey(1)).isEqualTo("d");
+    assertThat(updater.getKey(2)).isNull();
+    assertThat(updater.build()).containsExactly("b", 3, "d", 1);
+  }
+}
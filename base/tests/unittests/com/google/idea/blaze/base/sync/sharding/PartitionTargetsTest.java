@@ -18,10 +18,22 @@ package com.google.idea.blaze.base.sync.sharding;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.idea.blaze.base.BlazeTestCase;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.projectview.section.sections.DirectoryEntry;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import com.google.idea.blaze.base.scope.scopes.TimingScopeListener.TimedEvent;
+import com.google.idea.blaze.base.settings.BuildSystem;
+import com.google.idea.blaze.base.sync.aspects.BuildResult;
+import com.google.idea.blaze.base.sync.projectview.ImportRoots;
+import com.google.idea.blaze.base.sync.sharding.TargetShardingHistory.PackageBuildCost;
 import com.google.idea.common.experiments.ExperimentService;
 import com.google.idea.common.experiments.MockExperimentService;
+import java.io.File;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -117,4 +129,120 @@ public class PartitionTargetsTest extends BlazeTestCase {
     assertThat(shards.shardedTargets).hasSize(1);
     assertThat(shards.shardedTargets.get(0)).hasSize(6);
   }
+
+  @Test
+  public void testShardingHistoryBalancesShardsByBuildCost() {
+    TargetShardingHistory history =
+        new TargetShardingHistory(
+            ImmutableMap.of(
+                "java/com/google/heavy",
+                new PackageBuildCost(90, 1, false),
+                "java/com/google/light",
+                new PackageBuildCost(10, 1, false)));
+    List<TargetExpression> targets =
+        ImmutableList.of(
+            TargetExpression.fromStringSafe("//java/com/google/heavy:one"),
+            TargetExpression.fromStringSafe("//java/com/google/heavy:two"),
+            TargetExpression.fromStringSafe("//java/com/google/light:one"),
+            TargetExpression.fromStringSafe("//java/com/google/light:two"),
+            TargetExpression.fromStringSafe("//java/com/google/light:three"),
+            TargetExpression.fromStringSafe("//java/com/google/light:four"),
+            TargetExpression.fromStringSafe("//java/com/google/light:five"),
+            TargetExpression.fromStringSafe("//java/com/google/light:six"));
+
+    // each shard's budget is two average targets; cheap shards are capped at twice the shard size
+    ShardedTargetList shards = BlazeBuildTargetSharder.shardTargets(targets, 2, history);
+
+    assertThat(shards.shardedTargets).hasSize(4);
+    assertThat(shards.shardedTargets.get(0)).containsExactly(targets.get(0));
+    assertThat(shards.shardedTargets.get(1))
+        .containsExactly(targets.get(1), targets.get(2))
+        .inOrder();
+    assertThat(shards.shardedTargets.get(2)).containsExactlyElementsIn(targets.subList(3, 7));
+    assertThat(shards.shardedTargets.get(3)).containsExactly(targets.get(7));
+  }
+
+  @Test
+  public void testShardingHistoryOutOfMemoryPackageTreatedAsMoreExpensive() {
+    List<TargetExpression> targets =
+        ImmutableList.of(
+            TargetExpression.fromStringSafe("//java/com/google/a:one"),
+            TargetExpression.fromStringSafe("//java/com/google/a:two"),
+            TargetExpression.fromStringSafe("//java/com/google/a:three"));
+
+    ShardedTargetList shards =
+        BlazeBuildTargetSharder.shardTargets(targets, 3, historyWithPackageA(false));
+    assertThat(shards.shardedTargets).hasSize(1);
+
+    shards = BlazeBuildTargetSharder.shardTargets(targets, 3, historyWithPackageA(true));
+    assertThat(shards.shardedTargets).hasSize(3);
+  }
+
+  @Test
+  public void testShardingHistoryUpdateDropsPackagesOutsideImportRoots() {
+    TargetShardingHistory previous =
+        new TargetShardingHistory(
+            ImmutableMap.of(
+                "java/com/google/a", new PackageBuildCost(20, 1, false),
+                "javatests/com/google/removed", new PackageBuildCost(20, 1, false)));
+    ShardedTargetList shards =
+        new ShardedTargetList(
+            ImmutableList.of(
+                ImmutableList.of(TargetExpression.fromStringSafe("//third_party/built:one"))));
+    shards.recordBuildCost(0, 100, false);
+    ImportRoots importRoots =
+        ImportRoots.builder(new WorkspaceRoot(new File("/root")), BuildSystem.Blaze)
+            .add(DirectoryEntry.include(new WorkspacePath("java/com/google")))
+            .build();
+
+    TargetShardingHistory updated = TargetShardingHistory.update(previous, shards, importRoots);
+
+    assertThat(updated)
+        .isEqualTo(
+            new TargetShardingHistory(
+                ImmutableMap.of(
+                    "java/com/google/a", new PackageBuildCost(20, 1, false),
+                    "third_party/built", new PackageBuildCost(100, 1, false))));
+  }
+
+  @Test
+  public void testShardingHistoryAveragesCostPerTarget() {
+    TargetShardingHistory history =
+        new TargetShardingHistory(
+            ImmutableMap.of(
+                "java/com/google/big", new PackageBuildCost(10, 9, false),
+                "java/com/google/small", new PackageBuildCost(100, 1, false)));
+
+    assertThat(history.getAverageCost()).isWithin(1e-9).of(19);
+  }
+
+  @Test
+  public void testShardBuildCostOnlyCountsBlazeProcessTime() {
+    ShardedTargetList shards =
+        new ShardedTargetList(
+            ImmutableList.of(ImmutableList.of(TargetExpression.fromStringSafe("//java/a:one"))));
+
+    shards.runShardedCommand(
+        getProject(),
+        new BlazeContext(),
+        count -> "",
+        (targets, blazeTimer) -> {
+          blazeTimer.onScopeBegin("ExecuteBlazeCommand", EventType.BlazeInvocation);
+          blazeTimer.onScopeEnd(
+              new TimedEvent("ExecuteBlazeCommand", EventType.BlazeInvocation, 100, true));
+          return BuildResult.SUCCESS;
+        });
+
+    assertThat(shards.getBuildTimeMillis(0)).isEqualTo(100);
+  }
+
+  private static TargetShardingHistory historyWithPackageA(boolean outOfMemory) {
+    return new TargetShardingHistory(
+        ImmutableMap.of(
+            "java/com/google/a", new PackageBuildCost(20, 1, outOfMemory),
+            "java/com/google/b", new PackageBuildCost(20, 1, false),
+            "java/com/google/c", new PackageBuildCost(20, 1, false),
+            "java/com/google/d", new PackageBuildCost(20, 1, false),
+            "java/com/google/e", new PackageBuildCost(20, 1, false)));
+  }
 }
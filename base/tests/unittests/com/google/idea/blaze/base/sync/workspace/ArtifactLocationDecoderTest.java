@@ -21,6 +21,7 @@ import com.google.devtools.intellij.aspect.Common;
 import com.google.idea.blaze.base.BlazeTestCase;
 import com.google.idea.blaze.base.command.info.BlazeInfo;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import java.io.File;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -171,4 +172,55 @@ public class ArtifactLocationDecoderTest extends BlazeTestCase {
     assertThat(decoder.decode(artifactLocation).getPath())
         .isEqualTo(OUTPUT_BASE + "/execroot/repo_name/blaze-out/crosstool/bin/com/google/Bla.java");
   }
+
+  @Test
+  public void testDecodedArtifactIsMemoized() {
+    ArtifactLocationDecoder decoder = new ArtifactLocationDecoderImpl(mockBlazeInfo(), null);
+
+    assertThat(decoder.decode(generatedArtifact("com/google/Bla.java")))
+        .isSameAs(decoder.decode(generatedArtifact("com/google/Bla.java")));
+  }
+
+  @Test
+  public void testNewDecoderDoesNotShareMemo() {
+    File file =
+        new ArtifactLocationDecoderImpl(mockBlazeInfo(), null)
+            .decode(generatedArtifact("com/google/Bla.java"));
+    File newFile =
+        new ArtifactLocationDecoderImpl(mockBlazeInfo(), null)
+            .decode(generatedArtifact("com/google/Bla.java"));
+
+    assertThat(newFile).isEqualTo(file);
+    assertThat(newFile).isNotSameAs(file);
+  }
+
+  @Test
+  public void testMemoIsBounded() {
+    ArtifactLocationDecoder decoder = new ArtifactLocationDecoderImpl(mockBlazeInfo(), null, 1);
+
+    File first = decoder.decode(generatedArtifact("com/google/Foo.java"));
+    File second = decoder.decode(generatedArtifact("com/google/Bar.java"));
+
+    assertThat(decoder.decode(generatedArtifact("com/google/Bar.java"))).isSameAs(second);
+    File decodedAgain = decoder.decode(generatedArtifact("com/google/Foo.java"));
+    assertThat(decodedAgain).isEqualTo(first);
+    assertThat(decodedAgain).isNotSameAs(first);
+  }
+
+  private static ArtifactLocation generatedArtifact(String relativePath) {
+    return ArtifactLocation.builder()
+        .setRootExecutionPathFragment("/blaze-out/bin")
+        .setRelativePath(relativePath)
+        .setIsSource(false)
+        .build();
+  }
+
+  private static BlazeInfo mockBlazeInfo() {
+    return BlazeInfo.createMockBlazeInfo(
+        OUTPUT_BASE,
+        EXECUTION_ROOT,
+        EXECUTION_ROOT + "/blaze-out/crosstool/bin",
+        EXECUTION_ROOT + "/blaze-out/crosstool/genfiles",
+        EXECUTION_ROOT + "/blaze-out/crosstool/testlogs");
+  }
 }
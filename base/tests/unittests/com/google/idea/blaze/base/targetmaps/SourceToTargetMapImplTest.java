@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SourceToTargetMapImpl}. */
+@RunWith(JUnit4.class)
+public class SourceToTargetMapImplTest extends BlazeTestCase {
+  private static final WorkspaceRoot WORKSPACE_ROOT = new WorkspaceRoot(new File("/root"));
+
+  private static final TargetKey A = TargetKey.forPlainTarget(Label.create("//foo:a"));
+  private static final TargetKey B = TargetKey.forPlainTarget(Label.create("//foo:b"));
+
+  private BlazeProjectData projectData;
+  private SourceToTargetMapImpl sourceToTargetMap;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> ep =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    ep.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+
+    projectServices.register(BlazeProjectDataManager.class, () -> projectData);
+    sourceToTargetMap = new SourceToTargetMapImpl(project);
+  }
+
+  @Test
+  public void testChangedTargetSourcesAreUpdated() {
+    TargetIdeInfo targetB = target("//foo:b", "foo/B.java");
+    setTargets(target("//foo:a", "foo/A.java"), targetB);
+    assertThat(getRules("/root/foo/A.java")).containsExactly(A);
+
+    setTargets(target("//foo:a", "foo/A2.java"), targetB);
+
+    assertThat(getRules("/root/foo/A.java")).isEmpty();
+    assertThat(getRules("/root/foo/A2.java")).containsExactly(A);
+    assertThat(getRules("/root/foo/B.java")).containsExactly(B);
+  }
+
+  @Test
+  public void testRemovedTargetSourcesAreRemoved() {
+    TargetIdeInfo targetA = target("//foo:a", "foo/Shared.java");
+    setTargets(targetA, target("//foo:b", "foo/Shared.java"));
+    assertThat(getRules("/root/foo/Shared.java")).containsExactly(A, B);
+
+    setTargets(targetA);
+
+    assertThat(getRules("/root/foo/Shared.java")).containsExactly(A);
+  }
+
+  @Test
+  public void testChangedDecoderRebuildsMap() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder().addTarget(target("//foo:a", "foo/A.java")).build();
+    projectData =
+        MockBlazeProjectDataBuilder.builder(WORKSPACE_ROOT).setTargetMap(targetMap).build();
+    assertThat(getRules("/root/foo/A.java")).containsExactly(A);
+
+    projectData =
+        MockBlazeProjectDataBuilder.builder(new WorkspaceRoot(new File("/other")))
+            .setTargetMap(targetMap)
+            .build();
+
+    assertThat(getRules("/root/foo/A.java")).isEmpty();
+    assertThat(getRules("/other/foo/A.java")).containsExactly(A);
+  }
+
+  @Test
+  public void testOnlyChangedTargetSourcesAreDecodedAgain() {
+    List<ArtifactLocation> decoded = new ArrayList<>();
+    ArtifactLocationDecoder decoder =
+        location -> {
+          decoded.add(location);
+          return new File(WORKSPACE_ROOT.directory(), location.getRelativePath());
+        };
+    TargetIdeInfo targetB = target("//foo:b", "foo/B.java");
+    setTargets(decoder, target("//foo:a", "foo/A.java"), targetB);
+    assertThat(getRules("/root/foo/A.java")).containsExactly(A);
+    decoded.clear();
+
+    setTargets(decoder, target("//foo:a", "foo/A2.java"), targetB);
+
+    assertThat(getRules("/root/foo/A2.java")).containsExactly(A);
+    assertThat(getRules("/root/foo/B.java")).containsExactly(B);
+    assertThat(decoded).containsExactly(sourceArtifact("foo/A2.java"));
+  }
+
+  @Test
+  public void testPreviousResultsAreUnaffectedByUpdates() {
+    setTargets(target("//foo:a", "foo/Shared.java"), target("//foo:b", "foo/Shared.java"));
+    Iterable<TargetKey> rules = getRules("/root/foo/Shared.java");
+
+    setTargets(target("//foo:a", "foo/Shared.java"));
+
+    assertThat(getRules("/root/foo/Shared.java")).containsExactly(A);
+    assertThat(rules).containsExactly(A, B);
+  }
+
+  private void setTargets(TargetIdeInfo... targets) {
+    TargetMapBuilder builder = TargetMapBuilder.builder();
+    for (TargetIdeInfo target : targets) {
+      builder.addTarget(target);
+    }
+    projectData =
+        MockBlazeProjectDataBuilder.builder(WORKSPACE_ROOT).setTargetMap(builder.build()).build();
+  }
+
+  private void setTargets(ArtifactLocationDecoder decoder, TargetIdeInfo... targets) {
+    TargetMapBuilder builder = TargetMapBuilder.builder();
+    for (TargetIdeInfo target : targets) {
+      builder.addTarget(target);
+    }
+    projectData =
+        MockBlazeProjectDataBuilder.builder(WORKSPACE_ROOT)
+            .setArtifactLocationDecoder(decoder)
+            .setTargetMap(builder.build())
+            .build();
+  }
+
+  private Iterable<TargetKey> getRules(String path) {
+    return sourceToTargetMap.getRulesForSourceFile(new File(path));
+  }
+
+  private static TargetIdeInfo target(String label, String source) {
+    return TargetIdeInfo.builder()
+        .setLabel(label)
+        .setKind("proto_library")
+        .addSource(sourceArtifact(source))
+        .build();
+  }
+
+  private static ArtifactLocation sourceArtifact(String relativePath) {
+    return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(true).build();
+  }
+}
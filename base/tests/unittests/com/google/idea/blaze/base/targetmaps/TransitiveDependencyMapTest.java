@@ -148,6 +148,20 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
     assertThat(transitiveDependencyMap.getTransitiveDependencies(diamondCCC)).isEmpty();
   }
 
+  @Test
+  public void testGetCyclicDependencies() {
+    TargetKey cycleA = TargetKey.forPlainTarget(Label.create("//com/google/example/cycle:a"));
+    TargetKey cycleB = TargetKey.forPlainTarget(Label.create("//com/google/example/cycle:b"));
+    TargetKey cycleC = TargetKey.forPlainTarget(Label.create("//com/google/example/cycle:c"));
+
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleA))
+        .containsExactly(cycleA, cycleB, cycleC);
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleB))
+        .containsExactly(cycleA, cycleB, cycleC);
+    assertThat(transitiveDependencyMap.getTransitiveDependencies(cycleC)).isEmpty();
+    assertThat(transitiveDependencyMap.hasTransitiveDependency(cycleC, cycleA)).isFalse();
+  }
+
   @Test
   public void testGetDependencyForNonExistentTarget() {
     TargetKey bogus = TargetKey.forPlainTarget(Label.create("//com/google/fake:target"));
@@ -168,6 +182,9 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
     Label diamondC = Label.create("//com/google/example/diamond:c");
     Label diamondCC = Label.create("//com/google/example/diamond:cc");
     Label diamondCCC = Label.create("//com/google/example/diamond:ccc");
+    Label cycleA = Label.create("//com/google/example/cycle:a");
+    Label cycleB = Label.create("//com/google/example/cycle:b");
+    Label cycleC = Label.create("//com/google/example/cycle:c");
     return TargetMapBuilder.builder()
         .addTarget(mockTargetIdeInfoBuilder().setLabel(simpleA).addDependency(simpleB))
         .addTarget(mockTargetIdeInfoBuilder().setLabel(simpleB))
@@ -197,6 +214,13 @@ public class TransitiveDependencyMapTest extends BlazeTestCase {
         .addTarget(mockTargetIdeInfoBuilder().setLabel(diamondC))
         .addTarget(mockTargetIdeInfoBuilder().setLabel(diamondCC))
         .addTarget(mockTargetIdeInfoBuilder().setLabel(diamondCCC))
+        .addTarget(mockTargetIdeInfoBuilder().setLabel(cycleA).addDependency(cycleB))
+        .addTarget(
+            mockTargetIdeInfoBuilder()
+                .setLabel(cycleB)
+                .addDependency(cycleA)
+                .addDependency(cycleC))
+        .addTarget(mockTargetIdeInfoBuilder().setLabel(cycleC))
         .build();
   }
 
@@ -261,7 +261,8 @@ public abstract class BlazeSyncIntegrationTestCase extends BlazeIntegrationTestC
         SyncState.Builder syncStateBuilder,
         @Nullable SyncState previousSyncState,
         boolean mergeWithOldState,
-        @Nullable TargetMap oldTargetMap) {
+        @Nullable TargetMap oldTargetMap,
+        boolean resolveIdeArtifacts) {
       return new IdeResult(targetMap, BuildResult.SUCCESS);
     }
 
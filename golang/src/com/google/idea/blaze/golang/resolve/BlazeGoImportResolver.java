@@ -27,6 +27,7 @@ import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.lang.buildfile.psi.BuildFile;
 import com.google.idea.blaze.base.lang.buildfile.psi.FuncallExpression;
 import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.model.primitives.LanguageClass;
 import com.google.idea.blaze.base.sync.SyncCache;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.codeInsight.navigation.CtrlMouseHandler;
@@ -226,4 +227,19 @@ class BlazeGoImportResolver implements GoImportResolver {
       return null;
     }
   }
+
+  /** Builds the go target maps in the background after sync. */
+  static class Precomputer implements SyncCache.Precomputer {
+    @Override
+    public void precompute(Project project) {
+      BlazeProjectData projectData =
+          BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+      if (projectData == null
+          || !projectData.getWorkspaceLanguageSettings().isLanguageActive(LanguageClass.GO)) {
+        return;
+      }
+      getGoTargetMap(project);
+      BlazeGoPackageFactory.getFileToImportPathMap(project);
+    }
+  }
 }
@@ -15,25 +15,22 @@
  */
 package com.google.idea.blaze.java.libraries;
 
-import com.google.common.base.Preconditions;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.base.filecache.FileCache;
-import com.google.idea.blaze.base.filecache.FileCacheSynchronizer;
-import com.google.idea.blaze.base.filecache.FileCacheSynchronizerTraits;
+import com.google.idea.blaze.base.filecache.FileDiffer;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
-import com.google.idea.blaze.base.io.FileSizeScanner;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.prefetch.FetchExecutor;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
+import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
 import com.google.idea.blaze.base.settings.BlazeImportSettingsManager;
 import com.google.idea.blaze.base.sync.SyncMode;
@@ -46,29 +43,68 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.startup.StartupActivity;
 import com.intellij.openapi.util.io.FileUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.stream.Collectors;
-import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Local cache of the jars referenced by the project. */
+/**
+ * Local cache of the jars referenced by the project.
+ *
+ * <p>The jars are kept in a {@link JarStore} shared between all projects, so identical jars in
+ * several projects are only stored once, and are kept across full syncs. The entry used for each
+ * jar is saved in the project data directory, so it's kept across restarts too.
+ *
+ * <p>Libraries don't refer to store entries directly, since a rebuilt jar gets a new entry.
+ * Instead, each jar has a file at a stable path in the project's cache directory, which is a hard
+ * link to its current entry, replaced atomically when the jar changes.
+ */
 public class JarCache {
   private static final Logger logger = Logger.getInstance(JarCache.class);
 
+  private static final String STATE_FILE_NAME = "jar_cache.dat";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
   private final File cacheDir;
+  private final File stateFile;
 
   private boolean enabled;
-  @Nullable private JarCacheSynchronizerTraits traits;
+  // the jars referenced by the project, and the name of each one's file in the cache directory
+  private volatile ImmutableMap<File, String> sourceFileToCacheKey = ImmutableMap.of();
+  private final Map<File, StoredJar> storedJars = new ConcurrentHashMap<>();
+
+  /** A jar's entry in the store, and the modified time of the jar when it was added. */
+  private static class StoredJar {
+    final File entry;
+    final long modifiedTime;
+
+    StoredJar(File entry, long modifiedTime) {
+      this.entry = entry;
+      this.modifiedTime = modifiedTime;
+    }
+  }
 
   public static JarCache getInstance(Project project) {
     return ServiceManager.getService(project, JarCache.class);
@@ -78,6 +114,7 @@ public class JarCache {
     BlazeImportSettings importSettings =
         BlazeImportSettingsManager.getInstance(project).getImportSettings();
     this.cacheDir = getCacheDir(importSettings);
+    this.stateFile = new File(BlazeDataStorage.getProjectDataDir(importSettings), STATE_FILE_NAME);
   }
 
   void onSync(
@@ -85,41 +122,35 @@ public class JarCache {
       ProjectViewSet projectViewSet,
       BlazeProjectData projectData,
       SyncMode syncMode) {
-    Collection<BlazeLibrary> libraries =
-        BlazeLibraryCollector.getLibraries(projectViewSet, projectData);
-    boolean fullRefresh = syncMode == SyncMode.FULL;
-    boolean removeMissingFiles = syncMode == SyncMode.INCREMENTAL;
-    boolean enabled = updateEnabled();
-
-    if (!enabled || fullRefresh) {
-      clearCache();
-    }
-    if (!enabled) {
+    if (!updateEnabled()) {
+      sourceFileToCacheKey = ImmutableMap.of();
+      storedJars.clear();
+      saveState();
+      clearCacheDir();
       return;
     }
 
-    List<BlazeJarLibrary> jarLibraries =
-        libraries
-            .stream()
-            .filter(library -> library instanceof BlazeJarLibrary)
-            .map(library -> (BlazeJarLibrary) library)
-            .collect(Collectors.toList());
-
+    Collection<BlazeLibrary> libraries =
+        BlazeLibraryCollector.getLibraries(projectViewSet, projectData);
     ArtifactLocationDecoder artifactLocationDecoder = projectData.getArtifactLocationDecoder();
-    BiMap<File, String> sourceFileToCacheKey = HashBiMap.create(jarLibraries.size());
-    for (BlazeJarLibrary library : jarLibraries) {
-      File jarFile =
-          artifactLocationDecoder.decode(library.libraryArtifact.jarForIntellijLibrary());
-      sourceFileToCacheKey.put(jarFile, cacheKeyForJar(jarFile));
-
-      for (ArtifactLocation sourceJar : library.libraryArtifact.getSourceJars()) {
-        File srcJarFile = artifactLocationDecoder.decode(sourceJar);
-        sourceFileToCacheKey.put(srcJarFile, cacheKeyForSourceJar(srcJarFile));
+    Map<File, String> sourceFileToCacheKey = new HashMap<>();
+    for (BlazeLibrary library : libraries) {
+      if (!(library instanceof BlazeJarLibrary)) {
+        continue;
+      }
+      BlazeJarLibrary jarLibrary = (BlazeJarLibrary) library;
+      File jar =
+          artifactLocationDecoder.decode(jarLibrary.libraryArtifact.jarForIntellijLibrary());
+      sourceFileToCacheKey.put(jar, cacheKeyForJar(jar));
+      for (ArtifactLocation sourceJar : jarLibrary.libraryArtifact.getSourceJars()) {
+        File srcJar = artifactLocationDecoder.decode(sourceJar);
+        sourceFileToCacheKey.put(srcJar, cacheKeyForSourceJar(srcJar));
       }
     }
-
-    this.traits = new JarCacheSynchronizerTraits(cacheDir, sourceFileToCacheKey);
-    refresh(context, removeMissingFiles);
+    this.sourceFileToCacheKey = ImmutableMap.copyOf(sourceFileToCacheKey);
+    storedJars.keySet().retainAll(this.sourceFileToCacheKey.keySet());
+    refresh(context);
+    removeUnusedCacheFiles();
   }
 
   public boolean isEnabled() {
@@ -133,26 +164,18 @@ public class JarCache {
     return enabled;
   }
 
-  /** Refreshes any updated files in the cache. Does not add or removes any files */
+  /**
+   * Adds any new or updated jars to the store, and points their cache files at the new entries.
+   * Jars which no longer exist keep their existing entry, if any.
+   */
   private void refresh(BlazeContext context) {
-    refresh(context, false);
-  }
-
-  private void refresh(BlazeContext context, boolean removeMissingFiles) {
-    if (!enabled || traits == null) {
+    ImmutableMap<File, String> sourceFileToCacheKey = this.sourceFileToCacheKey;
+    if (!enabled || sourceFileToCacheKey.isEmpty()) {
       return;
     }
-
-    // Ensure the cache dir exists
-    if (!cacheDir.exists()) {
-      if (!cacheDir.mkdirs()) {
-        logger.error("Could not create jar cache directory");
-        return;
-      }
-    }
-    FileCacheSynchronizer synchronizer = new FileCacheSynchronizer(traits);
+    ImmutableMap<File, Long> sourceFileTimestamps;
     try {
-      synchronizer.synchronize(context, removeMissingFiles);
+      sourceFileTimestamps = FileDiffer.readFileState(sourceFileToCacheKey.keySet());
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       context.setCancelled();
@@ -162,57 +185,172 @@ public class JarCache {
       IssueOutput.warn("Jar Cache synchronization didn't complete").submit(context);
       return;
     }
+
+    JarStore store = JarStore.getInstance();
+    AtomicInteger addedFiles = new AtomicInteger();
+    List<ListenableFuture<?>> futures = new ArrayList<>();
+    for (Map.Entry<File, Long> entry : sourceFileTimestamps.entrySet()) {
+      File sourceFile = entry.getKey();
+      long modifiedTime = entry.getValue();
+      File cacheFile = new File(cacheDir, sourceFileToCacheKey.get(sourceFile));
+      StoredJar stored = storedJars.get(sourceFile);
+      if (stored != null && stored.modifiedTime == modifiedTime && cacheFile.exists()) {
+        continue;
+      }
+      futures.add(
+          FetchExecutor.EXECUTOR.submit(
+              () -> {
+                try {
+                  File storeEntry = store.add(sourceFile);
+                  if (stored == null || !stored.entry.equals(storeEntry) || !cacheFile.exists()) {
+                    linkCacheFile(storeEntry, cacheFile);
+                  }
+                  storedJars.put(sourceFile, new StoredJar(storeEntry, modifiedTime));
+                  addedFiles.incrementAndGet();
+                } catch (IOException e) {
+                  logger.warn(e);
+                }
+              }));
+    }
     try {
-      Collection<File> finalCacheFiles = traits.enumerateCacheFiles();
-      ImmutableMap<File, Long> cacheFileSizes = FileSizeScanner.readFilesizes(finalCacheFiles);
-      long total = cacheFileSizes.values().stream().mapToLong(x -> x).sum();
-      context.output(
-          PrintOutput.log(
-              String.format(
-                  "Total Jar Cache size: %d kB (%d files)", total / 1024, finalCacheFiles.size())));
+      Futures.allAsList(futures).get();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       context.setCancelled();
+      return;
     } catch (ExecutionException e) {
-      logger.warn("Could not determine cache size", e);
+      logger.warn("Jar Cache synchronization didn't complete", e);
+      IssueOutput.warn("Jar Cache synchronization didn't complete").submit(context);
+      return;
+    }
+    if (addedFiles.get() > 0) {
+      context.output(PrintOutput.log(String.format("Stored %d jars", addedFiles.get())));
     }
+    saveState();
+
+    ImmutableSet<File> entries = getStoredEntries();
+    @SuppressWarnings("unused") // go/futurereturn-lsc
+    Future<?> possiblyIgnoredError =
+        FetchExecutor.EXECUTOR.submit(
+            () -> {
+              store.markUsed(entries);
+              store.evict(getEntriesInUse());
+            });
   }
 
-  private void clearCache() {
-    if (cacheDir.exists()) {
-      File[] cacheFiles = cacheDir.listFiles();
-      if (cacheFiles != null) {
-        @SuppressWarnings("unused") // go/futurereturn-lsc
-        Future<?> possiblyIgnoredError = FileUtil.asyncDelete(Lists.newArrayList(cacheFiles));
+  private ImmutableSet<File> getStoredEntries() {
+    return storedJars.values().stream()
+        .map(jar -> jar.entry)
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** Returns the store entries used by the jar caches of all open projects. */
+  private static ImmutableSet<File> getEntriesInUse() {
+    ImmutableSet.Builder<File> entries = ImmutableSet.builder();
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      if (!project.isDisposed() && Blaze.isBlazeProject(project)) {
+        entries.addAll(getInstance(project).getStoredEntries());
       }
     }
-    traits = null;
+    return entries.build();
   }
 
-  /** Gets the cached file for a jar. If it doesn't exist, we return the file from the library. */
-  public File getCachedJar(ArtifactLocationDecoder decoder, BlazeJarLibrary library) {
-    File file = decoder.decode(library.libraryArtifact.jarForIntellijLibrary());
-    if (!enabled || traits == null) {
-      return file;
+  /**
+   * Loads the entries stored for this project before it was last closed, and records that they're
+   * still in use.
+   */
+  private void loadState() {
+    if (!stateFile.exists()) {
+      return;
     }
-    String cacheKey = traits.sourceFileToCacheKey(file);
-    if (cacheKey == null) {
-      return file;
+    ProjectData.JarCacheState proto;
+    try (InputStream stream = new BufferedInputStream(new FileInputStream(stateFile))) {
+      proto = ProjectData.JarCacheState.parseFrom(stream);
+    } catch (IOException e) {
+      logger.warn("Couldn't load jar cache state from " + stateFile, e);
+      return;
+    }
+    // entries added by a sync which started in the meantime take precedence
+    proto
+        .getStoredJarsMap()
+        .forEach(
+            (path, jar) ->
+                storedJars.putIfAbsent(
+                    new File(path),
+                    new StoredJar(new File(jar.getEntry()), jar.getModifiedTime())));
+    JarStore.getInstance().markUsed(getStoredEntries());
+  }
+
+  private void saveState() {
+    ProjectData.JarCacheState.Builder proto = ProjectData.JarCacheState.newBuilder();
+    storedJars.forEach(
+        (file, jar) ->
+            proto.putStoredJars(
+                file.getPath(),
+                ProjectData.JarCacheState.StoredJar.newBuilder()
+                    .setEntry(jar.entry.getPath())
+                    .setModifiedTime(jar.modifiedTime)
+                    .build()));
+    FileUtil.createParentDirs(stateFile);
+    try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(stateFile))) {
+      proto.build().writeTo(stream);
+    } catch (IOException e) {
+      logger.warn("Couldn't save jar cache state to " + stateFile, e);
+    }
+  }
+
+  /** Replaces the cache file with a hard link to the store entry, or a copy if that fails. */
+  private static void linkCacheFile(File entry, File cacheFile) throws IOException {
+    FileUtil.ensureExists(cacheFile.getParentFile());
+    Path temp =
+        new File(cacheFile.getParentFile(), UUID.randomUUID() + TEMP_FILE_SUFFIX).toPath();
+    try {
+      try {
+        Files.createLink(temp, entry.toPath());
+      } catch (IOException | UnsupportedOperationException e) {
+        // hard links aren't supported, or the store is on a different filesystem
+        Files.copy(entry.toPath(), temp, StandardCopyOption.COPY_ATTRIBUTES);
+      }
+      // the library keeps pointing at the same path, and never sees a partially replaced jar
+      Files.move(temp, cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Deletes cache files for jars no longer referenced by the project. */
+  private void removeUnusedCacheFiles() {
+    ImmutableSet<String> cacheKeys = ImmutableSet.copyOf(sourceFileToCacheKey.values());
+    File[] cacheFiles = cacheDir.listFiles((dir, name) -> !cacheKeys.contains(name));
+    if (cacheFiles != null && cacheFiles.length > 0) {
+      @SuppressWarnings("unused") // go/futurereturn-lsc
+      Future<?> possiblyIgnoredError = FileUtil.asyncDelete(Arrays.asList(cacheFiles));
+    }
+  }
+
+  private void clearCacheDir() {
+    if (cacheDir.exists()) {
+      @SuppressWarnings("unused") // go/futurereturn-lsc
+      Future<?> possiblyIgnoredError = FileUtil.asyncDelete(cacheDir);
     }
-    return traits.cacheFileForKey(cacheKey);
+  }
+
+  /** Gets the cached file for a jar. If it doesn't exist, we return the file from the library. */
+  public File getCachedJar(ArtifactLocationDecoder decoder, BlazeJarLibrary library) {
+    return getCachedFile(decoder.decode(library.libraryArtifact.jarForIntellijLibrary()));
   }
 
   /** Gets the cached file for a source jar. */
   public File getCachedSourceJar(ArtifactLocationDecoder decoder, ArtifactLocation sourceJar) {
-    File file = decoder.decode(sourceJar);
-    if (!enabled || traits == null) {
-      return file;
-    }
-    String cacheKey = traits.sourceFileToCacheKey(file);
-    if (cacheKey == null) {
+    return getCachedFile(decoder.decode(sourceJar));
+  }
+
+  private File getCachedFile(File file) {
+    if (!enabled || !storedJars.containsKey(file)) {
       return file;
     }
-    return traits.cacheFileForKey(cacheKey);
+    String cacheKey = sourceFileToCacheKey.get(file);
+    return cacheKey != null ? new File(cacheDir, cacheKey) : file;
   }
 
   private static String cacheKeyInternal(File jar) {
@@ -232,6 +370,17 @@ public class JarCache {
     return new File(BlazeDataStorage.getProjectDataDir(importSettings), "libraries");
   }
 
+  /** Loads each project's stored jars when it's opened, so they aren't evicted from the store. */
+  static class StoredJarLoader implements StartupActivity {
+    @Override
+    public void runActivity(Project project) {
+      if (Blaze.isBlazeProject(project)) {
+        ApplicationManager.getApplication()
+            .executeOnPooledThread(() -> getInstance(project).loadState());
+      }
+    }
+  }
+
   static class FileCacheAdapter implements FileCache {
     @Override
     public String getName() {
@@ -253,102 +402,4 @@ public class JarCache {
       getInstance(project).refresh(context);
     }
   }
-
-  /** Traits to synchronize local cache of the jars referenced by the project. */
-  private static final class JarCacheSynchronizerTraits implements FileCacheSynchronizerTraits {
-    private final File cacheDir;
-    private final BiMap<File, String> sourceFileToCacheKey;
-
-    JarCacheSynchronizerTraits(File cacheDir, BiMap<File, String> sourceFileToCacheKey) {
-      this.cacheDir = cacheDir;
-      this.sourceFileToCacheKey = sourceFileToCacheKey;
-    }
-
-    @Override
-    public Collection<File> sourceFiles() {
-      return sourceFileToCacheKey.keySet();
-    }
-
-    @Override
-    public String sourceFileToCacheKey(File sourceFile) {
-      return sourceFileToCacheKey.get(sourceFile);
-    }
-
-    @Override
-    public Collection<File> enumerateCacheFiles() {
-      File[] cacheFiles =
-          cacheDir.listFiles((dir, name) -> new File(dir, name).isFile() && name.endsWith(".jar"));
-      Preconditions.checkNotNull(cacheFiles);
-      return ImmutableList.copyOf(cacheFiles);
-    }
-
-    @Override
-    public String cacheFileToCacheKey(File cacheFile) {
-      // Cache key == file name
-      return cacheFile.getName();
-    }
-
-    @Override
-    public File cacheFileForKey(String key) {
-      return new File(cacheDir, key);
-    }
-
-    @Override
-    public Collection<ListenableFuture<?>> updateFiles(
-        Collection<String> cacheKeys, ListeningExecutorService executor) {
-      List<ListenableFuture<?>> futures = new ArrayList<>();
-      Map<String, File> cacheKeyToSourceFile = sourceFileToCacheKey.inverse();
-      for (String cacheKey : cacheKeys) {
-        File sourceFile = cacheKeyToSourceFile.get(cacheKey);
-        File cacheFile = cacheFileForKey(cacheKey);
-        futures.add(
-            executor.submit(
-                () -> {
-                  try {
-                    Files.copy(
-                        Paths.get(sourceFile.getPath()),
-                        Paths.get(cacheFile.getPath()),
-                        StandardCopyOption.REPLACE_EXISTING,
-                        StandardCopyOption.COPY_ATTRIBUTES);
-                  } catch (IOException e) {
-                    logger.warn(e);
-                  }
-                }));
-      }
-      return futures;
-    }
-
-    @Override
-    public Collection<ListenableFuture<?>> removeFiles(
-        Collection<String> cacheKeys, ListeningExecutorService executor) {
-      List<ListenableFuture<?>> futures = new ArrayList<>();
-      for (String cacheKey : cacheKeys) {
-        File cacheFile = cacheFileForKey(cacheKey);
-        futures.add(
-            executor.submit(
-                () -> {
-                  try {
-                    Files.deleteIfExists(Paths.get(cacheFile.getPath()));
-                  } catch (IOException e) {
-                    logger.warn(e);
-                  }
-                }));
-      }
-      return futures;
-    }
-
-    @Override
-    public void logStats(
-        BlazeContext context,
-        int numUpdatedFiles,
-        int numRemovedFiles,
-        boolean removeMissingFiles) {
-      if (numUpdatedFiles > 0) {
-        context.output(PrintOutput.log(String.format("Copied %d jars", numUpdatedFiles)));
-      }
-      if (numRemovedFiles > 0 && removeMissingFiles) {
-        context.output(PrintOutput.log(String.format("Removed %d jars", numRemovedFiles)));
-      }
-    }
-  }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.libraries;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.idea.blaze.base.io.ZipFileDigest;
+import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
+import com.google.idea.common.experiments.IntExperiment;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A content addressed store of jars, shared between all projects.
+ *
+ * <p>Jars are keyed by their {@link ZipFileDigest}, so identical jars from different checkouts
+ * share a single entry, without having to read the whole jar. Entries are hard links to the
+ * original jar where the filesystem allows it, and copies otherwise.
+ *
+ * <p>Once the store grows past its configured size, the least recently used entries are evicted.
+ * Entries which are hard linked elsewhere don't count towards that size, as deleting them wouldn't
+ * free any space.
+ */
+final class JarStore {
+  private static final Logger logger = Logger.getInstance(JarStore.class);
+
+  @VisibleForTesting
+  static final IntExperiment maxSizeMb =
+      new IntExperiment("blaze.jar.store.max.size.mb", 10240);
+
+  // entries used more recently than this are never evicted, as projects which aren't open may
+  // still use them
+  private static final long MIN_EVICTION_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static class Holder {
+    static final JarStore INSTANCE =
+        new JarStore(
+            new File(BlazeDataStorage.getSharedCacheDir(), "jars"), System::currentTimeMillis);
+  }
+
+  static JarStore getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private final File directory;
+  // an empty file per entry, with the time the entry was last used as its modified time
+  private final File usageDirectory;
+  private final LongSupplier clock;
+
+  @VisibleForTesting
+  JarStore(File directory, LongSupplier clock) {
+    this.directory = directory;
+    this.usageDirectory = new File(directory, "usage");
+    this.clock = clock;
+  }
+
+  /** Adds the jar to the store if it isn't already present, and returns the stored entry. */
+  File add(File jar) throws IOException {
+    File entry = new File(directory, entryName(jar));
+    if (!entry.exists()) {
+      FileUtil.ensureExists(directory);
+      Path temp = new File(directory, UUID.randomUUID() + TEMP_FILE_SUFFIX).toPath();
+      try {
+        Files.createLink(temp, jar.toPath());
+      } catch (IOException | UnsupportedOperationException e) {
+        // hard links aren't supported, or the jar is on a different filesystem
+        Files.copy(jar.toPath(), temp, StandardCopyOption.COPY_ATTRIBUTES);
+      }
+      try {
+        Files.move(temp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.deleteIfExists(temp);
+        // another project may have added the same entry concurrently
+        if (!entry.exists()) {
+          throw e;
+        }
+      }
+    }
+    markUsed(entry);
+    return entry;
+  }
+
+  /** Records that the given entries are still in use. */
+  void markUsed(Collection<File> entries) {
+    for (File entry : entries) {
+      try {
+        markUsed(entry);
+      } catch (IOException e) {
+        logger.warn("Couldn't record usage of " + entry, e);
+      }
+    }
+  }
+
+  private void markUsed(File entry) throws IOException {
+    File marker = new File(usageDirectory, entry.getName());
+    long now = clock.getAsLong();
+    if (!marker.setLastModified(now)) {
+      FileUtil.ensureExists(usageDirectory);
+      marker.createNewFile();
+      marker.setLastModified(now);
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries until the store is within its size limit. Entries in
+   * use, or used recently, are kept even if that leaves the store over its limit.
+   */
+  void evict(Set<File> inUse) {
+    File[] files = directory.listFiles(File::isFile);
+    if (files == null) {
+      return;
+    }
+    long cutoff = clock.getAsLong() - MIN_EVICTION_AGE_MILLIS;
+    Map<File, Long> lastUsed = new HashMap<>();
+    long totalSize = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+        // left behind by an interrupted add
+        if (file.lastModified() < cutoff) {
+          FileUtil.delete(file);
+        }
+        continue;
+      }
+      lastUsed.put(file, new File(usageDirectory, file.getName()).lastModified());
+      totalSize += ownedSize(file);
+    }
+    long maxSize = maxSizeMb.getValue() * 1024L * 1024L;
+    if (totalSize <= maxSize) {
+      return;
+    }
+    File[] entries = lastUsed.keySet().toArray(new File[0]);
+    Arrays.sort(entries, Comparator.comparingLong(lastUsed::get));
+    for (File entry : entries) {
+      if (totalSize <= maxSize || lastUsed.get(entry) >= cutoff) {
+        break;
+      }
+      if (inUse.contains(entry)) {
+        continue;
+      }
+      long size = ownedSize(entry);
+      if (FileUtil.delete(entry)) {
+        FileUtil.delete(new File(usageDirectory, entry.getName()));
+        totalSize -= size;
+      }
+    }
+  }
+
+  /** Returns the space freed by deleting the file, which is none if it's hard linked elsewhere. */
+  private static long ownedSize(File file) {
+    try {
+      Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+      if (links instanceof Integer && (Integer) links > 1) {
+        return 0;
+      }
+    } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+      // the link count isn't available, so assume the entry is a copy
+    }
+    return file.length();
+  }
+
+  private static String entryName(File jar) throws IOException {
+    // 128 bits is plenty to avoid collisions, and keeps file names reasonably short
+    String digest = ZipFileDigest.digest(jar).toString().substring(0, 32);
+    return FileUtil.getNameWithoutExtension(jar) + "_" + digest + ".jar";
+  }
+}
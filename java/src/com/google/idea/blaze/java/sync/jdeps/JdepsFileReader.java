@@ -93,7 +93,7 @@ public class JdepsFileReader {
       return null;
     }
     syncStateBuilder.put(jdepsState);
-    return jdepsState.targetToJdeps::get;
+    return jdepsState::getDependencies;
   }
 
   @Nullable
@@ -103,11 +103,7 @@ public class JdepsFileReader {
       @Nullable JdepsState oldState,
       Iterable<TargetIdeInfo> targetsToLoad)
       throws InterruptedException, ExecutionException {
-    JdepsState.Builder state = JdepsState.builder();
-    if (oldState != null) {
-      state.targetToJdeps = Maps.newHashMap(oldState.targetToJdeps);
-      state.fileToTargetMap = Maps.newHashMap(oldState.fileToTargetMap);
-    }
+    JdepsState.Builder state = JdepsState.builder(oldState);
 
     Map<File, TargetKey> fileToTargetMap = Maps.newHashMap();
     for (TargetIdeInfo target : targetsToLoad) {
@@ -141,10 +137,7 @@ public class JdepsFileReader {
     }
 
     for (File removedFile : removedFiles) {
-      TargetKey targetKey = state.fileToTargetMap.remove(removedFile);
-      if (targetKey != null) {
-        state.targetToJdeps.remove(targetKey);
-      }
+      state.removeFile(removedFile);
     }
 
     AtomicLong totalSizeLoaded = new AtomicLong(0);
@@ -179,8 +172,7 @@ public class JdepsFileReader {
     }
       for (Result result : Futures.allAsList(futures).get()) {
         if (result != null) {
-          state.fileToTargetMap.put(result.file, result.targetKey);
-          state.targetToJdeps.put(result.targetKey, result.dependencies);
+          state.putFile(result.file, result.targetKey, result.dependencies);
         }
       }
       context.output(
@@ -15,63 +15,116 @@
  */
 package com.google.idea.blaze.java.sync.jdeps;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
-import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
 import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.base.ideinfo.ProtoWrapper;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.model.SyncData;
 import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
 import javax.annotation.Nullable;
 
+/**
+ * The jdeps dependencies of each target, and the jdeps file state they were read from.
+ *
+ * <p>The same few thousand dependency paths are shared between many targets, so each is stored
+ * once, and targets refer to them by index.
+ *
+ * <p>An updated state shares everything but the changed targets with the state it was built from,
+ * so a sync only does work proportional to the number of changed jdeps files.
+ */
 final class JdepsState implements SyncData<ProjectData.JdepsState> {
+  // the dependency path table is only compacted once it has this many paths
+  private static final int MIN_COMPACTION_SIZE = 1024;
+
   final ImmutableMap<File, Long> fileState;
-  final ImmutableMap<File, TargetKey> fileToTargetMap;
-  final ImmutableMap<TargetKey, List<String>> targetToJdeps;
+  private final ShardedMap<File, TargetKey> fileToTargetMap;
+  // may contain paths no longer referenced by any target. These are dropped when serialized, and
+  // when the table has doubled in size since it was last compacted.
+  private final PathTable dependencyPaths;
+  private final ShardedMap<String, Integer> dependencyIndices;
+  private final int compactedPathCount;
+  private final ShardedMap<TargetKey, int[]> targetToJdeps;
 
   private JdepsState(
-      Map<File, Long> fileState,
-      Map<File, TargetKey> fileToTargetMap,
-      Map<TargetKey, List<String>> targetToJdeps) {
-    this.fileState = ImmutableMap.copyOf(fileState);
-    this.fileToTargetMap = ImmutableMap.copyOf(fileToTargetMap);
-    this.targetToJdeps = ImmutableMap.copyOf(targetToJdeps);
+      ImmutableMap<File, Long> fileState,
+      ShardedMap<File, TargetKey> fileToTargetMap,
+      PathTable dependencyPaths,
+      ShardedMap<String, Integer> dependencyIndices,
+      int compactedPathCount,
+      ShardedMap<TargetKey, int[]> targetToJdeps) {
+    this.fileState = fileState;
+    this.fileToTargetMap = fileToTargetMap;
+    this.dependencyPaths = dependencyPaths;
+    this.dependencyIndices = dependencyIndices;
+    this.compactedPathCount = compactedPathCount;
+    this.targetToJdeps = targetToJdeps;
   }
 
-  private static JdepsState fromProto(ProjectData.JdepsState proto) {
-    ImmutableMap.Builder<TargetKey, List<String>> targetToJdepsBuilder = ImmutableMap.builder();
+  /** Returns the jdeps dependencies of the given target, or null if none were read. */
+  @Nullable
+  List<String> getDependencies(TargetKey targetKey) {
+    int[] dependencies = targetToJdeps.get(targetKey);
+    return dependencies != null ? new DependencyList(dependencyPaths, dependencies) : null;
+  }
+
+  @VisibleForTesting
+  int getDependencyPathCount() {
+    return dependencyPaths.size();
+  }
+
+  @VisibleForTesting
+  static JdepsState fromProto(ProjectData.JdepsState proto) {
+    Builder builder = new Builder(null);
+    builder.fileState = ProtoWrapper.map(proto.getFileStateMap(), File::new, Functions.identity());
+    ProtoWrapper.map(proto.getFileToTargetMap(), File::new, TargetKey::fromProto)
+        .forEach(builder.fileToTargetMap::put);
+    ImmutableList<String> paths = ProtoWrapper.internStrings(proto.getDependencyPathsList());
+    for (ProjectData.JdepsState.TargetJdeps entry : proto.getTargetJdepsList()) {
+      List<String> dependencies = new ArrayList<>(entry.getDependenciesCount());
+      for (int index : entry.getDependenciesList()) {
+        dependencies.add(paths.get(index));
+      }
+      builder.putDependencies(TargetKey.fromProto(entry.getKey()), dependencies);
+    }
     for (ProjectData.TargetToJdepsMap.Entry entry : proto.getTargetToJdeps().getEntriesList()) {
-      TargetKey key = TargetKey.fromProto(entry.getKey());
-      ImmutableList<String> value = ProtoWrapper.internStrings(entry.getValueList());
-      targetToJdepsBuilder.put(key, value);
-    }
-    return new JdepsState(
-        ProtoWrapper.map(proto.getFileStateMap(), File::new, Functions.identity()),
-        ProtoWrapper.map(proto.getFileToTargetMap(), File::new, TargetKey::fromProto),
-        targetToJdepsBuilder.build());
+      builder.putDependencies(
+          TargetKey.fromProto(entry.getKey()), ProtoWrapper.internStrings(entry.getValueList()));
+    }
+    return builder.build();
   }
 
   @Override
   public ProjectData.JdepsState toProto() {
-    ProjectData.TargetToJdepsMap.Builder targetToJdepsBuilder =
-        ProjectData.TargetToJdepsMap.newBuilder();
-    for (Map.Entry<TargetKey, List<String>> entry : targetToJdeps.entrySet()) {
-      IntellijIdeInfo.TargetKey key = entry.getKey().toProto();
-      List<String> value = entry.getValue();
-      targetToJdepsBuilder.addEntries(
-          ProjectData.TargetToJdepsMap.Entry.newBuilder().setKey(key).addAllValue(value));
-    }
-    return ProjectData.JdepsState.newBuilder()
-        .putAllFileState(ProtoWrapper.map(fileState, File::getPath, Functions.identity()))
-        .putAllFileToTarget(ProtoWrapper.map(fileToTargetMap, File::getPath, TargetKey::toProto))
-        .setTargetToJdeps(targetToJdepsBuilder.build())
-        .build();
+    ProjectData.JdepsState.Builder builder =
+        ProjectData.JdepsState.newBuilder()
+            .putAllFileState(ProtoWrapper.map(fileState, File::getPath, Functions.identity()));
+    fileToTargetMap.forEach((file, key) -> builder.putFileToTarget(file.getPath(), key.toProto()));
+    // re-index the dependency paths, dropping those no longer referenced
+    int[] newIndices = new int[dependencyPaths.size()];
+    Arrays.fill(newIndices, -1);
+    targetToJdeps.forEach(
+        (key, dependencies) -> {
+          ProjectData.JdepsState.TargetJdeps.Builder target =
+              ProjectData.JdepsState.TargetJdeps.newBuilder().setKey(key.toProto());
+          for (int index : dependencies) {
+            if (newIndices[index] < 0) {
+              newIndices[index] = builder.getDependencyPathsCount();
+              builder.addDependencyPaths(dependencyPaths.get(index));
+            }
+            target.addDependencies(newIndices[index]);
+          }
+          builder.addTargetJdeps(target);
+        });
+    return builder.build();
   }
 
   @Override
@@ -83,27 +136,201 @@ final class JdepsState implements SyncData<ProjectData.JdepsState> {
       return false;
     }
     JdepsState that = (JdepsState) o;
-    return Objects.equals(fileState, that.fileState)
-        && Objects.equals(fileToTargetMap, that.fileToTargetMap)
-        && Objects.equals(targetToJdeps, that.targetToJdeps);
+    if (!Objects.equals(fileState, that.fileState)
+        || !Objects.equals(fileToTargetMap, that.fileToTargetMap)
+        || targetToJdeps.size() != that.targetToJdeps.size()) {
+      return false;
+    }
+    // the two states may index their dependency paths differently
+    for (TargetKey key : targetToJdeps.keys()) {
+      if (!Objects.equals(getDependencies(key), that.getDependencies(key))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(fileState, fileToTargetMap, targetToJdeps);
+    int targetsHash = 0;
+    for (TargetKey key : targetToJdeps.keys()) {
+      targetsHash += key.hashCode();
+    }
+    return Objects.hash(fileState, fileToTargetMap, targetsHash);
   }
 
-  static Builder builder() {
-    return new Builder();
+  /** Returns a builder for a state updated from the given one, if any. */
+  static Builder builder(@Nullable JdepsState previous) {
+    return new Builder(previous);
   }
 
+  /**
+   * Builds an updated {@link JdepsState}, sharing all unchanged targets with the previous state.
+   * Dependency paths are only appended to the previous state's table, until it's compacted.
+   */
   static class Builder {
-    Map<File, Long> fileState = null;
-    Map<File, TargetKey> fileToTargetMap = Maps.newHashMap();
-    Map<TargetKey, List<String>> targetToJdeps = Maps.newHashMap();
+    ImmutableMap<File, Long> fileState = null;
+
+    private final boolean hasPrevious;
+    private final ShardedMap.Builder<File, TargetKey> fileToTargetMap;
+    private final ShardedMap.Builder<TargetKey, int[]> targetToJdeps;
+    private final PathTable.Builder dependencyPaths;
+    private final ShardedMap.Builder<String, Integer> dependencyIndices;
+    private final int compactedPathCount;
+
+    private Builder(@Nullable JdepsState previous) {
+      hasPrevious = previous != null;
+      fileToTargetMap =
+          (previous != null ? previous.fileToTargetMap : ShardedMap.<File, TargetKey>of())
+              .toBuilder();
+      targetToJdeps =
+          (previous != null ? previous.targetToJdeps : ShardedMap.<TargetKey, int[]>of())
+              .toBuilder();
+      dependencyPaths =
+          new PathTable.Builder(previous != null ? previous.dependencyPaths : PathTable.EMPTY);
+      dependencyIndices =
+          (previous != null ? previous.dependencyIndices : ShardedMap.<String, Integer>of())
+              .toBuilder();
+      compactedPathCount = previous != null ? previous.compactedPathCount : 0;
+    }
+
+    /** Removes the jdeps read from the given file, if any. */
+    void removeFile(File file) {
+      TargetKey targetKey = fileToTargetMap.remove(file);
+      if (targetKey != null) {
+        targetToJdeps.remove(targetKey);
+      }
+    }
+
+    /** Records the jdeps read from the given file. */
+    void putFile(File file, TargetKey targetKey, List<String> dependencies) {
+      fileToTargetMap.put(file, targetKey);
+      putDependencies(targetKey, dependencies);
+    }
+
+    private void putDependencies(TargetKey targetKey, List<String> dependencies) {
+      int[] indices = new int[dependencies.size()];
+      for (int i = 0; i < indices.length; i++) {
+        String path = dependencies.get(i);
+        Integer index = dependencyIndices.get(path);
+        if (index == null) {
+          index = dependencyPaths.add(path);
+          dependencyIndices.put(path, index);
+        }
+        indices[i] = index;
+      }
+      targetToJdeps.put(targetKey, indices);
+    }
 
     JdepsState build() {
-      return new JdepsState(fileState, fileToTargetMap, targetToJdeps);
+      PathTable paths = dependencyPaths.build();
+      JdepsState state =
+          new JdepsState(
+              fileState,
+              fileToTargetMap.build(),
+              paths,
+              dependencyIndices.build(),
+              // a fresh table only holds paths referenced when they were added
+              hasPrevious ? compactedPathCount : paths.size(),
+              targetToJdeps.build());
+      if (paths.size() > MIN_COMPACTION_SIZE && paths.size() > 2 * state.compactedPathCount) {
+        return compact(state);
+      }
+      return state;
+    }
+
+    /** Returns a copy of the given state, without the paths no longer referenced by any target. */
+    private static JdepsState compact(JdepsState state) {
+      Builder builder = new Builder(null);
+      for (TargetKey key : state.targetToJdeps.keys()) {
+        builder.putDependencies(key, state.getDependencies(key));
+      }
+      PathTable paths = builder.dependencyPaths.build();
+      return new JdepsState(
+          state.fileState,
+          state.fileToTargetMap,
+          paths,
+          builder.dependencyIndices.build(),
+          paths.size(),
+          builder.targetToJdeps.build());
+    }
+  }
+
+  /**
+   * An append-only list of paths, stored in fixed size chunks. A list appended to shares all its
+   * full chunks with the original.
+   */
+  private static final class PathTable {
+    private static final int CHUNK_SIZE = 1024;
+    static final PathTable EMPTY = new PathTable(ImmutableList.of(), 0);
+
+    private final ImmutableList<String[]> chunks;
+    private final int size;
+
+    private PathTable(ImmutableList<String[]> chunks, int size) {
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    String get(int index) {
+      return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE];
+    }
+
+    int size() {
+      return size;
+    }
+
+    static final class Builder {
+      private final List<String[]> chunks;
+      private int size;
+      // the last chunk may be shared with the original table until it's copied
+      private boolean ownsLastChunk = false;
+
+      Builder(PathTable original) {
+        this.chunks = new ArrayList<>(original.chunks);
+        this.size = original.size;
+      }
+
+      /** Appends the path, and returns its index. */
+      int add(String path) {
+        int offset = size % CHUNK_SIZE;
+        int last = chunks.size() - 1;
+        if (offset == 0) {
+          chunks.add(new String[CHUNK_SIZE]);
+          last++;
+          ownsLastChunk = true;
+        } else if (!ownsLastChunk) {
+          chunks.set(last, chunks.get(last).clone());
+          ownsLastChunk = true;
+        }
+        chunks.get(last)[offset] = path;
+        return size++;
+      }
+
+      PathTable build() {
+        return new PathTable(ImmutableList.copyOf(chunks), size);
+      }
+    }
+  }
+
+  /** A view of a target's dependencies, resolving each index to its path. */
+  private static final class DependencyList extends AbstractList<String> implements RandomAccess {
+    private final PathTable paths;
+    private final int[] indices;
+
+    DependencyList(PathTable paths, int[] indices) {
+      this.paths = paths;
+      this.indices = indices;
+    }
+
+    @Override
+    public String get(int index) {
+      return paths.get(indices[index]);
+    }
+
+    @Override
+    public int size() {
+      return indices.length;
     }
   }
 
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.jdeps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable map, split into a fixed number of shards by key hash.
+ *
+ * <p>A map updated from another only copies the shards containing changed keys, and shares the
+ * rest, so a sync which reads a few jdeps files doesn't copy the state of every target.
+ */
+final class ShardedMap<K, V> {
+  private static final int SHARD_COUNT = 128;
+
+  private static final ShardedMap<?, ?> EMPTY =
+      new ShardedMap<>(
+          ImmutableList.copyOf(Collections.nCopies(SHARD_COUNT, ImmutableMap.of())), 0);
+
+  private final List<ImmutableMap<K, V>> shards;
+  private final int size;
+
+  private ShardedMap(List<ImmutableMap<K, V>> shards, int size) {
+    this.shards = shards;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> ShardedMap<K, V> of() {
+    return (ShardedMap<K, V>) EMPTY;
+  }
+
+  static <K, V> ShardedMap<K, V> copyOf(Map<K, V> map) {
+    Builder<K, V> builder = ShardedMap.<K, V>of().toBuilder();
+    map.forEach(builder::put);
+    return builder.build();
+  }
+
+  @Nullable
+  V get(Object key) {
+    return shards.get(shardIndex(key)).get(key);
+  }
+
+  int size() {
+    return size;
+  }
+
+  Iterable<K> keys() {
+    return Iterables.concat(Lists.transform(shards, ImmutableMap::keySet));
+  }
+
+  void forEach(BiConsumer<? super K, ? super V> action) {
+    for (ImmutableMap<K, V> shard : shards) {
+      shard.forEach(action);
+    }
+  }
+
+  /** Returns a builder for a map updated from this one. */
+  Builder<K, V> toBuilder() {
+    return new Builder<>(this);
+  }
+
+  private static int shardIndex(Object key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & (SHARD_COUNT - 1);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ShardedMap)) {
+      return false;
+    }
+    // equal maps have equal keys in each shard
+    ShardedMap<?, ?> that = (ShardedMap<?, ?>) o;
+    return size == that.size && shards.equals(that.shards);
+  }
+
+  @Override
+  public int hashCode() {
+    return shards.hashCode();
+  }
+
+  /** Builds an updated {@link ShardedMap}, copying each shard of the original once it changes. */
+  static final class Builder<K, V> {
+    private final ShardedMap<K, V> original;
+    private final Map<Integer, Map<K, V>> changedShards = new HashMap<>();
+    private int size;
+
+    private Builder(ShardedMap<K, V> original) {
+      this.original = original;
+      this.size = original.size;
+    }
+
+    @Nullable
+    V get(Object key) {
+      int index = shardIndex(key);
+      Map<K, V> shard = changedShards.get(index);
+      return shard != null ? shard.get(key) : original.shards.get(index).get(key);
+    }
+
+    @Nullable
+    V put(K key, V value) {
+      V previous = changedShard(key).put(key, value);
+      if (previous == null) {
+        size++;
+      }
+      return previous;
+    }
+
+    @Nullable
+    V remove(Object key) {
+      if (get(key) == null) {
+        return null;
+      }
+      size--;
+      return changedShard(key).remove(key);
+    }
+
+    private Map<K, V> changedShard(Object key) {
+      return changedShards.computeIfAbsent(
+          shardIndex(key), index -> new HashMap<>(original.shards.get(index)));
+    }
+
+    ShardedMap<K, V> build() {
+      if (changedShards.isEmpty()) {
+        return original;
+      }
+      List<ImmutableMap<K, V>> shards = new ArrayList<>(original.shards);
+      changedShards.forEach((index, shard) -> shards.set(index, ImmutableMap.copyOf(shard)));
+      return new ShardedMap<>(ImmutableList.copyOf(shards), size);
+    }
+  }
+}
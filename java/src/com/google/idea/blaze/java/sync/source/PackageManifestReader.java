@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.java.sync.source;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -25,43 +26,82 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.devtools.intellij.aspect.Common;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.JavaSourcePackage;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.PackageManifest;
+import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.filecache.FileDiffer;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.io.InputStreamProvider;
+import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.prefetch.PrefetchService;
+import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.blaze.base.settings.BlazeImportSettingsManager;
+import com.google.idea.blaze.base.sync.SyncListener;
+import com.google.idea.blaze.base.sync.SyncMode;
+import com.google.idea.blaze.base.sync.SyncResult;
+import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
-/** Reads package manifests. */
+/**
+ * Reads package manifests, keeping the parsed manifests for each project.
+ *
+ * <p>The parsed manifests are persisted in the project's cache directory, so the first sync after
+ * restarting the IDE only re-reads manifests which have changed.
+ */
 public class PackageManifestReader {
   private static final Logger logger = Logger.getInstance(SourceDirectoryCalculator.class);
 
-  public static PackageManifestReader getInstance() {
-    return ServiceManager.getService(PackageManifestReader.class);
+  private static final String STATE_FILE_NAME = "package_manifests.dat";
+
+  public static PackageManifestReader getInstance(Project project) {
+    return ServiceManager.getService(project, PackageManifestReader.class);
   }
 
+  @GuardedBy("this")
   private ImmutableMap<File, Long> fileDiffState;
 
+  @GuardedBy("this")
   private Map<File, TargetKey> fileToLabelMap = Maps.newHashMap();
+
+  // concurrent, as it's updated from the manifest parsing threads while holding the lock
+  @GuardedBy("this")
   private final Map<TargetKey, Map<ArtifactLocation, String>> manifestMap = Maps.newConcurrentMap();
 
+  // the file the in-memory state was last loaded from or saved to
+  @GuardedBy("this")
+  @Nullable
+  private File stateFile;
+
+  // whether the in-memory state has changed since it was last loaded or saved
+  @GuardedBy("this")
+  private boolean stateModified;
+
   /** @return A map from java source absolute file path to declared package string. */
-  public Map<TargetKey, Map<ArtifactLocation, String>> readPackageManifestFiles(
+  public synchronized Map<TargetKey, Map<ArtifactLocation, String>> readPackageManifestFiles(
       BlazeContext context,
       ArtifactLocationDecoder decoder,
       Map<TargetKey, ArtifactLocation> javaPackageManifests,
@@ -86,6 +126,9 @@ public class PackageManifestReader {
       IssueOutput.error("Updating package manifest files failed: " + e);
       throw new AssertionError("Unhandled exception", e);
     }
+    if (!updatedFiles.isEmpty() || !removedFiles.isEmpty()) {
+      stateModified = true;
+    }
 
     ListenableFuture<?> fetchFuture =
         PrefetchService.getInstance().prefetchFiles(updatedFiles, true, false);
@@ -124,6 +167,119 @@ public class PackageManifestReader {
     return manifestMap;
   }
 
+  /**
+   * Replaces the in-memory state with that persisted in the given file, unless it was already
+   * loaded from or saved to that file.
+   */
+  @VisibleForTesting
+  synchronized void loadState(File file) {
+    if (file.equals(stateFile)) {
+      return;
+    }
+    stateFile = file;
+    stateModified = false;
+    fileDiffState = null;
+    fileToLabelMap = Maps.newHashMap();
+    manifestMap.clear();
+    if (!file.exists()) {
+      return;
+    }
+    ProjectData.PackageManifestState proto;
+    try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
+      proto = ProjectData.PackageManifestState.parseFrom(stream);
+    } catch (IOException e) {
+      logger.warn("Couldn't load package manifest state from " + file, e);
+      return;
+    }
+    ImmutableMap.Builder<File, Long> diffState = ImmutableMap.builder();
+    Map<File, TargetKey> fileToLabelMap = Maps.newHashMap();
+    proto
+        .getManifestsMap()
+        .forEach(
+            (path, manifest) -> {
+              File manifestFile = new File(path);
+              TargetKey key = TargetKey.fromProto(manifest.getTargetKey());
+              Map<ArtifactLocation, String> sources = Maps.newHashMap();
+              for (JavaSourcePackage source : manifest.getSourcesList()) {
+                sources.put(
+                    ArtifactLocation.fromProto(source.getArtifactLocation()),
+                    source.getPackageString());
+              }
+              diffState.put(manifestFile, manifest.getModifiedTime());
+              fileToLabelMap.put(manifestFile, key);
+              manifestMap.put(key, sources);
+            });
+    this.fileDiffState = diffState.build();
+    this.fileToLabelMap = fileToLabelMap;
+  }
+
+  /** Persists the in-memory state to the given file, if it has changed. */
+  @VisibleForTesting
+  synchronized void saveState(File file) {
+    if (fileDiffState == null || (!stateModified && file.equals(stateFile))) {
+      return;
+    }
+    ProjectData.PackageManifestState.Builder proto = ProjectData.PackageManifestState.newBuilder();
+    fileDiffState.forEach(
+        (manifestFile, modifiedTime) -> {
+          TargetKey key = fileToLabelMap.get(manifestFile);
+          Map<ArtifactLocation, String> sources = key != null ? manifestMap.get(key) : null;
+          if (sources == null) {
+            return;
+          }
+          ProjectData.PackageManifestState.Manifest.Builder manifest =
+              ProjectData.PackageManifestState.Manifest.newBuilder()
+                  .setModifiedTime(modifiedTime)
+                  .setTargetKey(key.toProto());
+          sources.forEach(
+              (location, packageString) ->
+                  manifest.addSources(
+                      JavaSourcePackage.newBuilder()
+                          // the locations are already fixed up, so shouldn't be again when loaded
+                          .setArtifactLocation(
+                              location.toProto().toBuilder().setIsNewExternalVersion(true))
+                          .setPackageString(packageString)));
+          proto.putManifests(manifestFile.getPath(), manifest.build());
+        });
+    FileUtil.createParentDirs(file);
+    try (OutputStream stream = new GZIPOutputStream(new FileOutputStream(file))) {
+      proto.build().writeTo(stream);
+    } catch (IOException e) {
+      logger.warn("Couldn't save package manifest state to " + file, e);
+      return;
+    }
+    stateFile = file;
+    stateModified = false;
+  }
+
+  private static File getStateFile(Project project, BlazeImportSettings importSettings) {
+    return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), STATE_FILE_NAME);
+  }
+
+  /** Loads the persisted package manifest state at the start of a sync, and saves it after. */
+  static class StatePersister implements SyncListener {
+    @Override
+    public void onSyncStart(Project project, BlazeContext context, SyncMode syncMode) {
+      BlazeImportSettings importSettings =
+          BlazeImportSettingsManager.getInstance(project).getImportSettings();
+      if (importSettings != null) {
+        getInstance(project).loadState(getStateFile(project, importSettings));
+      }
+    }
+
+    @Override
+    public void onSyncComplete(
+        Project project,
+        BlazeContext context,
+        BlazeImportSettings importSettings,
+        ProjectViewSet projectViewSet,
+        BlazeProjectData blazeProjectData,
+        SyncMode syncMode,
+        SyncResult syncResult) {
+      getInstance(project).saveState(getStateFile(project, importSettings));
+    }
+  }
+
   private static Map<ArtifactLocation, String> parseManifestFile(File packageManifest) {
     Map<ArtifactLocation, String> outputMap = Maps.newHashMap();
     InputStreamProvider inputStreamProvider = InputStreamProvider.getInstance();
@@ -94,7 +94,7 @@ public final class SourceDirectoryCalculator {
             (childContext) -> {
               childContext.push(new TimingScope("ReadPackageManifests", EventType.Other));
               Map<TargetKey, Map<ArtifactLocation, String>> manifestMap =
-                  PackageManifestReader.getInstance()
+                  PackageManifestReader.getInstance(project)
                       .readPackageManifestFiles(
                           childContext,
                           artifactLocationDecoder,
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.libraries;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.common.experiments.ExperimentService;
+import com.google.idea.common.experiments.MockExperimentService;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JarStore}. */
+@RunWith(JUnit4.class)
+public class JarStoreTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private MockExperimentService experimentService;
+  private long currentTime = TimeUnit.DAYS.toMillis(365);
+  private JarStore store;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    experimentService = new MockExperimentService();
+    applicationServices.register(ExperimentService.class, experimentService);
+    try {
+      store = new JarStore(tmpFolder.newFolder("store"), () -> currentTime);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void add_identicalJars_shareEntry() throws IOException {
+    File first = writeJar(tmpFolder.newFolder("first"), "lib.jar", "contents");
+    File second = writeJar(tmpFolder.newFolder("second"), "lib.jar", "contents");
+
+    assertThat(store.add(first)).isEqualTo(store.add(second));
+  }
+
+  @Test
+  public void add_changedJar_returnsNewEntry() throws IOException {
+    File directory = tmpFolder.newFolder("workspace");
+    File entry = store.add(writeJar(directory, "lib.jar", "contents"));
+
+    File changedEntry = store.add(writeJar(directory, "lib.jar", "changed contents"));
+
+    assertThat(changedEntry).isNotEqualTo(entry);
+    assertThat(entry.exists()).isTrue();
+    assertThat(changedEntry.exists()).isTrue();
+  }
+
+  @Test
+  public void evict_overMaxSize_evictsLeastRecentlyUsedEntriesNotInUse() throws IOException {
+    experimentService.setExperimentInt(JarStore.maxSizeMb, 1);
+    File directory = tmpFolder.newFolder("workspace");
+    File a = addJar(directory, "a.jar");
+    File b = addJar(directory, "b.jar");
+    File c = addJar(directory, "c.jar");
+    currentTime += TimeUnit.DAYS.toMillis(2);
+    File d = addJar(directory, "d.jar");
+
+    store.evict(ImmutableSet.of(a));
+
+    assertThat(a.exists()).isTrue();
+    assertThat(b.exists()).isFalse();
+    assertThat(c.exists()).isTrue();
+    assertThat(d.exists()).isTrue();
+  }
+
+  @Test
+  public void evict_underMaxSize_keepsAllEntries() throws IOException {
+    experimentService.setExperimentInt(JarStore.maxSizeMb, 10);
+    File directory = tmpFolder.newFolder("workspace");
+    File a = addJar(directory, "a.jar");
+    File b = addJar(directory, "b.jar");
+    currentTime += TimeUnit.DAYS.toMillis(2);
+
+    store.evict(ImmutableSet.of());
+
+    assertThat(a.exists()).isTrue();
+    assertThat(b.exists()).isTrue();
+  }
+
+  @Test
+  public void evict_entriesHardLinkedElsewhere_areNotCounted() throws IOException {
+    experimentService.setExperimentInt(JarStore.maxSizeMb, 1);
+    File directory = tmpFolder.newFolder("workspace");
+    File a = addJar(directory, "a.jar");
+    File b = addJar(directory, "b.jar");
+    File c = store.add(writeRandomJar(directory, "c.jar"));
+    File d = store.add(writeRandomJar(directory, "d.jar"));
+    currentTime += TimeUnit.DAYS.toMillis(2);
+
+    store.evict(ImmutableSet.of());
+
+    // c and d are hard links to the jars still in the workspace, so only a and b take up space
+    assertThat(a.exists()).isTrue();
+    assertThat(b.exists()).isTrue();
+    assertThat(c.exists()).isTrue();
+    assertThat(d.exists()).isTrue();
+  }
+
+  /**
+   * Adds a jar of about 300kB, used a second after the previously added one. The original jar is
+   * then deleted, as blaze does when it rebuilds it, so the entry alone takes up its space.
+   */
+  private File addJar(File directory, String name) throws IOException {
+    File jar = writeRandomJar(directory, name);
+    currentTime += TimeUnit.SECONDS.toMillis(1);
+    File entry = store.add(jar);
+    Files.delete(jar.toPath());
+    return entry;
+  }
+
+  private static File writeRandomJar(File directory, String name) throws IOException {
+    byte[] contents = new byte[300 * 1024];
+    new Random(name.hashCode()).nextBytes(contents);
+    File jar = new File(directory, name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new ZipEntry("data"));
+      out.write(contents);
+      out.closeEntry();
+    }
+    return jar;
+  }
+
+  private static File writeJar(File directory, String name, String contents) throws IOException {
+    File jar = new File(directory, name);
+    // replace rather than overwrite the jar, as blaze does, since entries may be hard links to it
+    Files.deleteIfExists(jar.toPath());
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      ZipEntry entry = new ZipEntry("Foo.class");
+      entry.setTime(0);
+      out.putNextEntry(entry);
+      out.write(contents.getBytes("UTF-8"));
+      out.closeEntry();
+    }
+    return jar;
+  }
+}
@@ -142,7 +142,7 @@ public class BlazeJavaWorkspaceImporterTest extends BlazeTestCase {
             return null;
           }
         });
-    applicationServices.register(PackageManifestReader.class, new PackageManifestReader());
+    projectServices.register(PackageManifestReader.class, new PackageManifestReader());
     applicationServices.register(PrefetchService.class, new MockPrefetchService());
 
     context = new BlazeContext();
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.jdeps;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.model.primitives.Label;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JdepsState}. */
+@RunWith(JUnit4.class)
+public class JdepsStateTest {
+  private static final TargetKey FOO = TargetKey.forPlainTarget(Label.create("//java:foo"));
+  private static final TargetKey BAR = TargetKey.forPlainTarget(Label.create("//java:bar"));
+  private static final File FOO_JDEPS = new File("/out/java/foo.jdeps");
+  private static final File BAR_JDEPS = new File("/out/java/bar.jdeps");
+
+  @Test
+  public void fromProto_savedState_roundTripsDependencies() {
+    JdepsState state =
+        build(
+            JdepsState.builder(null),
+            builder -> {
+              builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "b.jar"));
+              builder.putFile(BAR_JDEPS, BAR, ImmutableList.of("b.jar", "c.jar"));
+            });
+
+    JdepsState loaded = JdepsState.fromProto(state.toProto());
+
+    assertThat(loaded).isEqualTo(state);
+    assertThat(loaded.fileState).isEqualTo(state.fileState);
+    assertThat(loaded.getDependencies(FOO)).containsExactly("a.jar", "b.jar").inOrder();
+    assertThat(loaded.getDependencies(BAR)).containsExactly("b.jar", "c.jar").inOrder();
+  }
+
+  @Test
+  public void toProto_stalePaths_areDropped() {
+    JdepsState previous =
+        build(
+            JdepsState.builder(null),
+            builder -> builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "b.jar")));
+    JdepsState state =
+        build(
+            JdepsState.builder(previous),
+            builder -> builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("c.jar")));
+
+    assertThat(state.toProto().getDependencyPathsList()).containsExactly("c.jar");
+  }
+
+  @Test
+  public void fromProto_legacyTargetToJdeps_readsDependencies() {
+    ProjectData.JdepsState proto =
+        ProjectData.JdepsState.newBuilder()
+            .putFileState(FOO_JDEPS.getPath(), 1L)
+            .putFileToTarget(FOO_JDEPS.getPath(), FOO.toProto())
+            .setTargetToJdeps(
+                ProjectData.TargetToJdepsMap.newBuilder()
+                    .addEntries(
+                        ProjectData.TargetToJdepsMap.Entry.newBuilder()
+                            .setKey(FOO.toProto())
+                            .addValue("a.jar")
+                            .addValue("b.jar")))
+            .build();
+
+    JdepsState state = JdepsState.fromProto(proto);
+
+    assertThat(state.fileState).containsExactly(FOO_JDEPS, 1L);
+    assertThat(state.getDependencies(FOO)).containsExactly("a.jar", "b.jar").inOrder();
+    assertThat(state.getDependencies(BAR)).isNull();
+  }
+
+  @Test
+  public void equals_differentlyIndexedPaths_isEqual() {
+    JdepsState first =
+        build(
+            JdepsState.builder(null),
+            builder -> {
+              builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "b.jar"));
+              builder.putFile(BAR_JDEPS, BAR, ImmutableList.of("c.jar"));
+            });
+    JdepsState withStalePath =
+        build(
+            JdepsState.builder(null),
+            builder -> builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("stale.jar")));
+    JdepsState second =
+        build(
+            JdepsState.builder(withStalePath),
+            builder -> {
+              builder.putFile(BAR_JDEPS, BAR, ImmutableList.of("c.jar"));
+              builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "b.jar"));
+            });
+
+    assertThat(second).isEqualTo(first);
+    assertThat(second.hashCode()).isEqualTo(first.hashCode());
+  }
+
+  @Test
+  public void equals_differentDependencies_isNotEqual() {
+    JdepsState first =
+        build(
+            JdepsState.builder(null),
+            builder -> builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "b.jar")));
+    JdepsState second =
+        build(
+            JdepsState.builder(null),
+            builder -> builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("b.jar", "a.jar")));
+
+    assertThat(second).isNotEqualTo(first);
+  }
+
+  @Test
+  public void build_updatedState_leavesPreviousStateUnchanged() {
+    JdepsState previous =
+        build(
+            JdepsState.builder(null),
+            builder -> {
+              builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar"));
+              builder.putFile(BAR_JDEPS, BAR, ImmutableList.of("b.jar"));
+            });
+
+    JdepsState state =
+        build(
+            JdepsState.builder(previous),
+            builder -> {
+              builder.removeFile(BAR_JDEPS);
+              builder.putFile(FOO_JDEPS, FOO, ImmutableList.of("a.jar", "c.jar"));
+            });
+
+    assertThat(state.getDependencies(FOO)).containsExactly("a.jar", "c.jar").inOrder();
+    assertThat(state.getDependencies(BAR)).isNull();
+    assertThat(previous.getDependencies(FOO)).containsExactly("a.jar");
+    assertThat(previous.getDependencies(BAR)).containsExactly("b.jar");
+  }
+
+  @Test
+  public void build_mostPathsStale_compactsPathTable() {
+    JdepsState previous =
+        build(
+            JdepsState.builder(null),
+            builder -> builder.putFile(FOO_JDEPS, FOO, jars("a", 2000)));
+    JdepsState shrunk =
+        build(
+            JdepsState.builder(previous),
+            builder -> builder.putFile(FOO_JDEPS, FOO, jars("a", 1000)));
+    assertThat(shrunk.getDependencyPathCount()).isEqualTo(2000);
+
+    JdepsState state =
+        build(
+            JdepsState.builder(shrunk),
+            builder -> builder.putFile(FOO_JDEPS, FOO, jars("b", 2001)));
+
+    assertThat(state.getDependencyPathCount()).isEqualTo(2001);
+    assertThat(state.getDependencies(FOO)).isEqualTo(jars("b", 2001));
+  }
+
+  private static JdepsState build(
+      JdepsState.Builder builder, Consumer<JdepsState.Builder> update) {
+    builder.fileState = ImmutableMap.of(FOO_JDEPS, 1L, BAR_JDEPS, 1L);
+    update.accept(builder);
+    return builder.build();
+  }
+
+  private static List<String> jars(String prefix, int count) {
+    List<String> jars = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      jars.add(prefix + i + ".jar");
+    }
+    return jars;
+  }
+}
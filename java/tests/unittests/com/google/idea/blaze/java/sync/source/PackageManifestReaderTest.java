@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.intellij.aspect.Common;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.JavaSourcePackage;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo.PackageManifest;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.io.FileOperationProvider;
+import com.google.idea.blaze.base.io.InputStreamProvider;
+import com.google.idea.blaze.base.io.MockInputStreamProvider;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.prefetch.MockPrefetchService;
+import com.google.idea.blaze.base.prefetch.PrefetchService;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.google.idea.common.experiments.ExperimentService;
+import com.google.idea.common.experiments.MockExperimentService;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PackageManifestReader}. */
+@RunWith(JUnit4.class)
+public class PackageManifestReaderTest extends BlazeTestCase {
+
+  private static final TargetKey TARGET = TargetKey.forPlainTarget(Label.create("//java/foo:foo"));
+  private static final ArtifactLocation MANIFEST =
+      ArtifactLocation.builder().setRelativePath("java/foo/foo.manifest").build();
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final ArtifactLocationDecoder decoder =
+      artifactLocation -> new File("/root", artifactLocation.getRelativePath());
+  private final CountingInputStreamProvider inputStreamProvider =
+      new CountingInputStreamProvider();
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    applicationServices.register(InputStreamProvider.class, inputStreamProvider);
+    applicationServices.register(
+        FileOperationProvider.class, new SourceDirectoryCalculatorTest.MockFileOperationProvider());
+    applicationServices.register(ExperimentService.class, new MockExperimentService());
+    applicationServices.register(PrefetchService.class, new MockPrefetchService());
+  }
+
+  @Test
+  public void loadState_afterSaveState_restoresManifestsWithoutRereadingThem() {
+    PackageManifest manifest =
+        PackageManifest.newBuilder()
+            .addSources(
+                JavaSourcePackage.newBuilder()
+                    .setArtifactLocation(
+                        Common.ArtifactLocation.newBuilder()
+                            .setRelativePath("java/foo/Foo.java")
+                            .setIsSource(true))
+                    .setPackageString("com.google.foo"))
+            .build();
+    inputStreamProvider.addFile("/root/java/foo/foo.manifest", manifest.toByteArray());
+    File stateFile = new File(tmpFolder.getRoot(), "package_manifests.dat");
+
+    PackageManifestReader reader = new PackageManifestReader();
+    reader.loadState(stateFile);
+    Map<TargetKey, Map<ArtifactLocation, String>> manifests = read(reader);
+    reader.saveState(stateFile);
+
+    PackageManifestReader restored = new PackageManifestReader();
+    restored.loadState(stateFile);
+    int readCount = inputStreamProvider.readCount;
+    Map<TargetKey, Map<ArtifactLocation, String>> restoredManifests = read(restored);
+
+    ArtifactLocation source =
+        ArtifactLocation.builder().setRelativePath("java/foo/Foo.java").setIsSource(true).build();
+    assertThat(manifests.get(TARGET)).containsExactly(source, "com.google.foo");
+    assertThat(restoredManifests).isEqualTo(manifests);
+    assertThat(inputStreamProvider.readCount).isEqualTo(readCount);
+  }
+
+  private Map<TargetKey, Map<ArtifactLocation, String>> read(PackageManifestReader reader) {
+    return reader.readPackageManifestFiles(
+        new BlazeContext(),
+        decoder,
+        ImmutableMap.of(TARGET, MANIFEST),
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  private static class CountingInputStreamProvider extends MockInputStreamProvider {
+    int readCount;
+
+    @Override
+    public InputStream getFile(File path) throws FileNotFoundException {
+      readCount++;
+      return super.getFile(path);
+    }
+  }
+}
@@ -82,7 +82,7 @@ public class SourceDirectoryCalculatorTest extends BlazeTestCase {
     mockInputStreamProvider = new MockInputStreamProvider();
     applicationServices.register(InputStreamProvider.class, mockInputStreamProvider);
     applicationServices.register(JavaSourcePackageReader.class, new JavaSourcePackageReader());
-    applicationServices.register(PackageManifestReader.class, new PackageManifestReader());
+    projectServices.register(PackageManifestReader.class, new PackageManifestReader());
     applicationServices.register(FileOperationProvider.class, new MockFileOperationProvider());
 
     context.addOutputSink(IssueOutput.class, issues);
@@ -1218,7 +1218,7 @@ public class SourceDirectoryCalculatorTest extends BlazeTestCase {
 
   private Map<TargetKey, Map<ArtifactLocation, String>> readPackageManifestFiles(
       Map<TargetKey, ArtifactLocation> manifests, ArtifactLocationDecoder decoder) {
-    return PackageManifestReader.getInstance()
+    return PackageManifestReader.getInstance(project)
         .readPackageManifestFiles(
             context, decoder, manifests, MoreExecutors.newDirectExecutorService());
   }
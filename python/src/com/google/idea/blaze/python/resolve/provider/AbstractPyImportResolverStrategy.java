@@ -22,7 +22,10 @@ import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.settings.BuildSystem;
 import com.google.idea.blaze.base.sync.SyncCache;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.google.idea.blaze.python.resolve.BlazePyResolverUtils;
 import com.intellij.openapi.project.Project;
@@ -145,4 +148,24 @@ public abstract class AbstractPyImportResolverStrategy implements PyImportResolv
     relativePath = StringUtil.trimExtensions(relativePath);
     return QualifiedName.fromComponents(StringUtil.split(relativePath, File.separator));
   }
+
+  /** Builds the python sources indices in the background after sync. */
+  static class Precomputer implements SyncCache.Precomputer {
+    @Override
+    public void precompute(Project project) {
+      BlazeProjectData projectData =
+          BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+      if (projectData == null
+          || !projectData.getWorkspaceLanguageSettings().isLanguageActive(LanguageClass.PYTHON)) {
+        return;
+      }
+      BuildSystem buildSystem = Blaze.getBuildSystem(project);
+      for (PyImportResolverStrategy strategy : PyImportResolverStrategy.EP_NAME.getExtensions()) {
+        if (strategy instanceof AbstractPyImportResolverStrategy
+            && strategy.appliesToBuildSystem(buildSystem)) {
+          ((AbstractPyImportResolverStrategy) strategy).getSourcesIndex(project);
+        }
+      }
+    }
+  }
 }
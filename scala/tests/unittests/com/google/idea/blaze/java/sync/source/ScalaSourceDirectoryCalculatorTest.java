@@ -66,7 +66,7 @@ public class ScalaSourceDirectoryCalculatorTest extends BlazeTestCase {
     mockInputStreamProvider = new MockInputStreamProvider();
     applicationServices.register(InputStreamProvider.class, mockInputStreamProvider);
     applicationServices.register(JavaSourcePackageReader.class, new JavaSourcePackageReader());
-    applicationServices.register(PackageManifestReader.class, new PackageManifestReader());
+    projectServices.register(PackageManifestReader.class, new PackageManifestReader());
     applicationServices.register(PrefetchService.class, new MockPrefetchService());
 
 
@@ -106,7 +106,7 @@ public class BlazeScalaWorkspaceImporterTest extends BlazeTestCase {
     projectServices.register(BlazeImportSettingsManager.class, importSettingsManager);
 
     applicationServices.register(PrefetchService.class, new MockPrefetchService());
-    applicationServices.register(PackageManifestReader.class, new PackageManifestReader());
+    projectServices.register(PackageManifestReader.class, new PackageManifestReader());
     applicationServices.register(ExperimentService.class, new MockExperimentService());
 
     // will silently fall back to FilePathJavaPackageReader